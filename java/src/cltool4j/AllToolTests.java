@@ -4,9 +4,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import cltool4j.args4j.TestArgs4J;
+import cltool4j.args4j.TestSliceParser;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ TestArgs4J.class, TestBaseCommandlineTool.class, TestLinewiseCommandlineTool.class,
-        TestBatchCommandlineTool.class })
+        TestBatchCommandlineTool.class, TestRecordReader.class,
+        TestBinaryCommandlineTool.class, TestFieldTokenizer.class,
+        TestSliceParser.class, TestRowWriter.class,
+        TestJsonCommandlineTool.class, TestCheckpoint.class, TestContextCommandlineTool.class,
+        TestLineIndex.class, TestExecutionContext.class, TestToolChain.class,
+        TestFanOut.class, TestSetupSnapshot.class })
 public class AllToolTests {
 }
@@ -2,6 +2,8 @@ package cltool4j;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -10,21 +12,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.SequenceInputStream;
+import java.io.StringReader;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.logging.Handler;
@@ -72,6 +82,16 @@ public abstract class BaseCommandlineTool {
     /** Maximum width (in screen columns) of usage output. Longer lines will be wrapped to meet this limit */
     private final static int USAGE_OUTPUT_WIDTH = 120;
 
+    /**
+     * The cltool4j base classes, whose fields hold per-run state and are not copied from a daemon to its
+     * jobs (see {@link #runJob(BaseCommandlineTool, ExecutionContext, String[])})
+     */
+    private final static Set<Class<?>> LIBRARY_CLASSES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(
+            BaseCommandlineTool.class, ThreadableCommandlineTool.class, LinewiseCommandlineTool.class,
+            ThreadLocalLinewiseClTool.class, RecordBatchCommandlineTool.class, BatchCommandlineTool.class,
+            ColumnBatchCommandlineTool.class, BinaryCommandlineTool.class, ContextCommandlineTool.class,
+            JsonCommandlineTool.class));
+
     @Option(name = "-help", aliases = { "--help", "-?" }, ignoreRequired = true, usage = "Print usage information")
     protected boolean printHelp = false;
 
@@ -96,6 +116,19 @@ public abstract class BaseCommandlineTool {
     @Option(name = "-charset", hidden = true, usage = "Charset of all input (STDIN and files)")
     private String inputCharset = null;
 
+    /**
+     * Selects a disjoint slice of the input, so N independent processes (e.g. on N hosts) can divide shared
+     * input between them without coordination or a separate splitting pass. See {@link ShardMode}.
+     */
+    @Option(name = "-shard", metaVar = "i/n", hidden = true, usage = "Process only shard i of n (numbered from 0) of the input")
+    private String shardSpec = null;
+
+    @Option(name = "-shard-by", metaVar = "mode", hidden = true, requires = "-shard", usage = "Sharding mode (files, bytes, hash)")
+    protected ShardMode shardMode = ShardMode.files;
+
+    /** The shard processed by this process, and the total number of shards (see <code>-shard</code>) */
+    protected int shard = 0, shards = 1;
+
     /**
      * If specified, execution will pause after {@link #setup()}, waiting for a single carriage-return. Any
      * input will be discarded. This is primarily intended to allow connecting a profiler and starting data
@@ -104,8 +137,42 @@ public abstract class BaseCommandlineTool {
     @Option(name = "-pause", hidden = true, usage = "Pause for a single carriage-return after setup")
     protected boolean pauseAfterSetup = false;
 
+    /**
+     * If specified, the tool runs {@link #setup()} once and then serves jobs submitted with
+     * <code>-connect</code> (see {@link Daemon}), until the address file is deleted.
+     */
+    @Option(name = "-daemon", metaVar = "file", hidden = true, usage = "Run setup once and serve jobs from -connect (writing the daemon address to file)")
+    private File daemonFile;
+
+    @Option(name = "-connect", metaVar = "file", hidden = true, usage = "Run as a job on the -daemon whose address is in file")
+    private File connectFile;
+
     private static String commandLineArguments;
 
+    /** Arguments supplied to {@link #runInternal(String[])} */
+    private String[] arguments = new String[0];
+
+    /**
+     * Snapshot directory for tools implementing {@link Snapshottable}. The first run stores its setup state,
+     * and later runs with the same options, properties, and model files reload it in place of
+     * {@link #setup()} (see {@link SetupSnapshot}).
+     */
+    @Option(name = "-setup-cache", metaVar = "dir", hidden = true, usage = "Store setup state in (and reload it from) dir")
+    private File setupCacheDirectory;
+
+    @Option(name = "-startup-trace", hidden = true, usage = "Report time spent in each startup phase (to STDERR)")
+    private boolean printStartupTrace = false;
+
+    /**
+     * Writes an AppCDS archive of the classes loaded by a training run on the input (see {@link CdsArchive}),
+     * and prints the JVM flags which use it, in place of a normal run.
+     */
+    @Option(name = "-cds-dump", metaVar = "archive", hidden = true, usage = "Write an AppCDS archive from a training run on the input (and print JVM flags to use it)")
+    private File cdsArchiveFile;
+
+    /** Input, output, and configuration of the current run; see {@link #context()} */
+    private volatile ExecutionContext context;
+
     /**
      * Non-threadable tools use a single thread; tools annotated as {@link Threadable} default to either the
      * optional 'defaultThreads' parameter or the number of CPUs
@@ -123,13 +190,19 @@ public abstract class BaseCommandlineTool {
     protected String currentInputFile;
 
     private static Object log4jConsoleAppender;
-    static {
-        // Initialize the Log4j subsystem at INFO (if Log4j is present in CLASSPATH); This level will
-        // subsequently be modified by
-        // {@link BaseCommandlineTool#configureLog4j(cltool4j.BaseCommandlineTool.LogLevel)}
-        // to match the verbosity supplied on the command-line.
-        initializeLog4j();
-    }
+
+    /**
+     * True once Log4j has been initialized (if present in CLASSPATH). Initialization is deferred until
+     * {@link #configureLogging(LogLevel)}, so tools which never configure logging (e.g. embedded tools, or
+     * runs printing usage information) don't pay for it.
+     */
+    private static boolean log4jInitialized;
+
+    /** Times at which this class was initialized, for <code>-startup-trace</code> */
+    private final static long initTimeMillis = System.currentTimeMillis(), initTime = System.nanoTime();
+
+    /** Startup phase timing of the current command-line run (see <code>-startup-trace</code>) */
+    private StartupTrace startupTrace;
 
     /**
      * Default constructor
@@ -172,15 +245,50 @@ public abstract class BaseCommandlineTool {
         return inputCharset == null ? Charset.defaultCharset() : Charset.forName(inputCharset);
     }
 
+    /**
+     * Returns the {@link Charset} in which output is encoded: the platform default when running from the
+     * command-line (the encoding of {@link System#out}), and UTF-8 for
+     * {@link #execute(Iterable, String...)}. Tools which encode output themselves (e.g. with
+     * {@link RowWriter#local(Charset)}) should use this {@link Charset}.
+     * 
+     * @return the {@link Charset} in which output is encoded
+     */
+    protected final Charset outputCharset() {
+        return context().outputCharset();
+    }
+
     /**
      * Callback executed when starting to process a new input file. Subclasses may override
-     * {@link #beginFile(String)} if they wish to be notified when the input source changes.
+     * {@link #beginFile(String)} if they wish to be notified when the input source changes.<br/>
+     * <br/>
+     * 
+     * {@link ThreadableCommandlineTool} executes file callbacks in the output step, in input order: after all
+     * output for the previous file, and before any output for this file.
      * 
      * @param filename File
      */
     protected void beginFile(final String filename) {
     }
 
+    /**
+     * Callback executed when finished processing an input file (see {@link #beginFile(String)}).
+     * 
+     * @param filename File
+     */
+    protected void endFile(final String filename) {
+    }
+
+    /**
+     * Returns true if the tool opens the input files specified on the command-line itself (one at a time).
+     * Otherwise (the default), all input files are opened before {@link #run()}, and concatenated into
+     * {@link System#in}.
+     * 
+     * @return True if the tool opens its own input files
+     */
+    protected boolean opensInputFiles() {
+        return false;
+    }
+
     /**
      * Attempts to determine the actual subclass which was called on the command-line, implements an instance
      * of that class, and calls {@link #runInternal(String[])}. <br/>
@@ -193,24 +301,80 @@ public abstract class BaseCommandlineTool {
      * {@link #main(String[])}. <br/>
      * <br/>
      * 
-     * We first attempt to use sun.jvmstat.monitor and sun.jvmstat.perfdata classes to connect to the local VM
-     * and obtain the command-line. <br/>
+     * We first read the main class from the 'sun.java.command' system property (set by the Sun / Oracle and
+     * OpenJDK launchers), which costs nothing. <br/>
      * <br/>
      * 
-     * Failing that, we execute 'jps' and parse its output. <br/>
+     * Failing that, we attempt to use sun.jvmstat.monitor and sun.jvmstat.perfdata classes to connect to the
+     * local VM and obtain the command-line, and then execute 'jps' and parse its output. Both are expensive
+     * (tens to hundreds of milliseconds) and trouble-prone. <br/>
      * <br/>
      * 
-     * If both methods fail, we give up and warn the user to implement {@link #main(String[])}. <br/>
-     * <br/>
-     * 
-     * Note: both of these methods are trouble-prone, but we do not know which is more-so, nor which is more
-     * computationally expensive. i.e., is it more expensive to connect to a running VM or to fork a new
-     * process? Perhaps the order of the search should be reversed?
+     * If all methods fail, we give up and warn the user to implement {@link #main(String[])}.
      * 
      * @param args Command-line arguments
      */
     public static void main(final String[] args) throws Exception {
 
+        String mainClass = mainClass(System.getProperty("sun.java.command"));
+        if (mainClass == null) {
+            mainClass = mainClassFromVm();
+        }
+
+        try {
+            @SuppressWarnings("unchecked")
+            final Class<? extends BaseCommandlineTool> c = (Class<? extends BaseCommandlineTool>) Class
+                    .forName(mainClass);
+            run(c, args);
+        } catch (final ClassNotFoundException e) {
+            System.err.println("Unable to instantiate target class: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Returns the main class named in a JVM command (the 'sun.java.command' system property), which begins
+     * with either the main class or, for <code>java -jar</code>, the jar file.
+     * 
+     * @param command JVM command
+     * @return The main class, or <code>null</code> if it cannot be determined (e.g. if the jar filename
+     *         contains spaces, since arguments are also separated by spaces)
+     */
+    static String mainClass(final String command) {
+        if (command == null) {
+            return null;
+        }
+        final String first = command.trim().split(" ")[0];
+        if (first.endsWith(".jar")) {
+            return jarMainClass(first);
+        }
+        return first.matches("[\\w$]+(\\.[\\w$]+)*") ? first : null;
+    }
+
+    /**
+     * @return The 'Main-Class' attribute of the specified jar file's manifest, or <code>null</code> if
+     *         unavailable
+     */
+    private static String jarMainClass(final String jarFile) {
+        try {
+            final JarFile j = new JarFile(jarFile);
+            try {
+                return j.getManifest() != null ? j.getManifest().getMainAttributes().getValue("Main-Class")
+                        : null;
+            } finally {
+                j.close();
+            }
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the main class by connecting to the local VM with sun.jvmstat, or failing that, by executing
+     * 'jps'. Exits if neither succeeds.
+     */
+    private static String mainClassFromVm() {
         String mainClass = null;
         try {
             final String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
@@ -253,9 +417,10 @@ public abstract class BaseCommandlineTool {
             // If the main class was invoked using java -jar, read the 'Main-Class' attribute from the jar
             // manifest
             if (mainClass.endsWith(".jar")) {
-                final JarFile j = new JarFile(mainClass);
-                mainClass = j.getManifest().getMainAttributes().getValue("Main-Class");
-                j.close();
+                mainClass = jarMainClass(mainClass);
+            }
+            if (mainClass == null) {
+                throw new RuntimeException("");
             }
 
         } catch (final Throwable t2) {
@@ -263,17 +428,7 @@ public abstract class BaseCommandlineTool {
             System.err.println("  Tool classes should implement main(String[]) and call run(String[]).");
             System.exit(-1);
         }
-
-        try {
-            @SuppressWarnings("unchecked")
-            final Class<? extends BaseCommandlineTool> c = (Class<? extends BaseCommandlineTool>) Class
-                    .forName(mainClass);
-            run(c, args);
-        } catch (final ClassNotFoundException e) {
-            System.err.println("Unable to instantiate target class: " + e.getMessage());
-            e.printStackTrace();
-            System.exit(-1);
-        }
+        return mainClass;
     }
 
     /**
@@ -310,14 +465,19 @@ public abstract class BaseCommandlineTool {
         }
     }
 
-    private static void run(final Class<? extends BaseCommandlineTool> c, final String[] args)
-            throws Exception {
+    static void run(final Class<? extends BaseCommandlineTool> c, final String[] args) throws Exception {
+        final StartupTrace trace = new StartupTrace(initTimeMillis, initTime);
+        trace.mark("class initialization");
 
         // Configure GlobalConfigProperties from property files or command-line options (-O).
         initGlobalConfigProperties(c, args);
+        trace.mark("configuration");
 
         try {
-            createTool(c).runInternal(args);
+            final BaseCommandlineTool tool = createTool(c);
+            trace.mark("tool initialization");
+            tool.startupTrace = trace;
+            tool.runInternal(args);
 
         } catch (final Throwable t) {
             t.printStackTrace();
@@ -325,7 +485,7 @@ public abstract class BaseCommandlineTool {
         }
     }
 
-    private static BaseCommandlineTool createTool(final Class<? extends BaseCommandlineTool> c) {
+    static BaseCommandlineTool createTool(final Class<? extends BaseCommandlineTool> c) {
         // Create and initialize an instance of the tool class
         // For Scala objects
         try {
@@ -345,12 +505,19 @@ public abstract class BaseCommandlineTool {
     }
 
     protected final void runInternal(final String[] args) throws Exception {
+        this.context = ExecutionContext.system();
+        this.arguments = args.clone();
+        if (startupTrace == null) {
+            // Not run from main()
+            startupTrace = new StartupTrace(System.currentTimeMillis(), System.nanoTime());
+        }
 
         final CmdLineParser parser = new CmdLineParser(this);
         parser.setUsageWidth(USAGE_OUTPUT_WIDTH);
 
         try {
             parser.parseArguments(args);
+            startupTrace.mark("argument parsing");
 
             // If the user specified -help, print extended usage information and exit
             if (printHelp) {
@@ -400,67 +567,387 @@ public abstract class BaseCommandlineTool {
                 return;
             }
 
-            // Configure java.util.logging to log to the console, and only the message actually
-            // logged, without any header or formatting.
-            for (final Handler h : baseLogger.getHandlers()) {
-                baseLogger.removeHandler(h);
+            configureLogging(verbosityLevel);
+            startupTrace.mark("logging");
+
+            // A training run in a child JVM replaces setup and input processing
+            if (cdsArchiveFile != null) {
+                checkArguments();
+                CdsArchive.dump(this, cdsArchiveFile);
+                return;
             }
-            baseLogger.setUseParentHandlers(false);
-            final Level l = verbosityLevel.toLevel();
-            baseLogger.addHandler(new SystemOutHandler(l));
-            baseLogger.setLevel(l);
-
-            // Configure Log4J similarly, if present in CLASSPATH
-            configureLog4j(verbosityLevel);
-
-            // If input files were specified on the command-line, check for the first one before running
-            // setup(). If it cannot be found, we'd prefer to fail here than after a potentially expensive
-            // setup() call
-            if (inputFiles.length > 0 && inputFiles[0].length() > 0) {
-                if (!new File(inputFiles[0]).exists()) {
-                    throw new CmdLineException("Unable to find file: " + inputFiles[0]);
+
+            // Jobs submitted to a daemon are checked (and set up) by the daemon
+            if (connectFile == null) {
+                checkArguments();
+                if (daemonFile == null) {
+                    beforeSetup();
                 }
+                runSetup();
+                startupTrace.mark("setup");
+            }
+            if (printStartupTrace) {
+                startupTrace.report(context().errorOutput());
             }
-
-            setup();
         } catch (final Exception e) {
-            System.err.println(e.getMessage() + '\n');
+            context().errorOutput().println(e.getMessage() + '\n');
             printUsage(parser, false);
             System.exit(-1);
         }
 
+        if (connectFile != null) {
+            final int status = Daemon.submit(this, connectFile);
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+
         if (pauseAfterSetup) {
             BaseLogger.singleton().info("Setup complete. Hit [Enter] to continue: ");
             // Read (and discard) a single input line
-            new BufferedReader(new InputStreamReader(System.in)).readLine();
+            new BufferedReader(new InputStreamReader(context().input())).readLine();
+        }
+
+        try {
+            if (daemonFile != null) {
+                Daemon.serve(this, daemonFile);
+            } else {
+                processInput();
+            }
+        } finally {
+            cleanup();
+            context().output().flush();
+        }
+    }
+
+    /**
+     * Runs the tool within the current JVM, using the specified context in place of STDIN, STDOUT, STDERR,
+     * and {@link GlobalConfigProperties}. Unlike a command-line run, errors are reported by throwing
+     * exceptions (rather than printing usage information and exiting), and logging is not reconfigured.
+     * Tools may be executed concurrently, each with its own context, as long as they read and write through
+     * {@link #context()}.
+     * 
+     * @param executionContext Input, output, and configuration for this run
+     * @param args Command-line arguments
+     * @throws CmdLineException if the arguments are invalid
+     * @throws Exception if an error occurs while executing the tool
+     */
+    public final void execute(final ExecutionContext executionContext, final String... args)
+            throws Exception {
+        this.context = executionContext;
+        this.arguments = args.clone();
+        loadConfigProperties(getClass(), args, executionContext.properties());
+
+        final CmdLineParser parser = new CmdLineParser(this);
+        parser.parseArguments(args);
+        if (daemonFile != null || connectFile != null || cdsArchiveFile != null) {
+            throw new CmdLineException(
+                    "-daemon, -connect, and -cds-dump are only supported from the command-line");
         }
+        checkArguments();
 
+        beforeSetup();
+        runSetup();
         try {
-            // Handle arguments
-            if (inputFiles.length > 0 && inputFiles[0].length() > 0) {
-                // Handle one or more input files from the command-line, translating gzipped
-                // files as appropriate. Re-route multiple files into a single InputStream so we can execute
-                // the tool a single time. Open all files prior to processing, so we can fail early if one or
-                // more files cannot be opened
-                final LinkedList<InputStream> inputList = new LinkedList<InputStream>();
-                for (final String filename : inputFiles) {
-                    inputList.add(fileAsInputStream(filename));
+            processInput();
+        } finally {
+            cleanup();
+            context().output().flush();
+        }
+    }
+
+    /**
+     * Runs the tool within the current JVM on in-memory input (see
+     * {@link #execute(ExecutionContext, String...)}), and returns its output. Input lines are encoded with
+     * the input {@link Charset} (see <code>-charset</code>), and output is encoded and decoded as UTF-8 (see
+     * {@link #outputCharset()}). Error output is written to STDERR.
+     * 
+     * @param input Input lines
+     * @param args Command-line arguments
+     * @return Output lines
+     * @throws CmdLineException if the arguments are invalid
+     * @throws Exception if an error occurs while executing the tool
+     */
+    public final List<String> execute(final Iterable<String> input, final String... args) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(bos, false, StandardCharsets.UTF_8.name());
+        execute(new ExecutionContext(new LineInputStream(input), out, System.err, new ConfigProperties(),
+                StandardCharsets.UTF_8), args);
+        out.flush();
+
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader br = new BufferedReader(new StringReader(new String(bos.toByteArray(),
+                StandardCharsets.UTF_8)));
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * @return The input, output, and configuration of the current run: the JVM's standard streams and
+     *         {@link GlobalConfigProperties} when run from the command-line, or the context supplied to
+     *         {@link #execute(ExecutionContext, String...)}.
+     */
+    protected final ExecutionContext context() {
+        final ExecutionContext c = context;
+        return c != null ? c : ExecutionContext.system();
+    }
+
+    /**
+     * Replaces the input of the current run. When running from the command-line, {@link System#in} is
+     * replaced as well, for tools which read it directly.
+     */
+    final void redirectInput(final InputStream input) {
+        context = context().withInput(input);
+        if (context.isSystem()) {
+            System.setIn(input);
+        }
+    }
+
+    /**
+     * Replaces the output of the current run. When running from the command-line, {@link System#out} is
+     * replaced as well, for tools which write to it directly.
+     * 
+     * @return The previous output
+     */
+    final PrintStream redirectOutput(final PrintStream output) {
+        final PrintStream previous = context().output();
+        context = context().withOutput(output);
+        if (context.isSystem()) {
+            System.setOut(output);
+        }
+        return previous;
+    }
+
+    /**
+     * Runs a job submitted to a daemon (see <code>-daemon</code>) on this newly-created tool, using the
+     * specified context. Fields declared by the tool's own classes (i.e., excluding those of the cltool4j
+     * base classes) are first copied from the daemon, so the job shares its {@link #setup()} state and uses
+     * its options as defaults; options are then parsed from the job's arguments. Jobs may run concurrently,
+     * and should not modify shared setup state. Logging is not reconfigured.
+     * 
+     * @param daemon Daemon tool, after {@link #setup()}
+     * @param jobContext Input, output, and configuration for the job
+     * @param args Job arguments
+     * @return Exit status
+     */
+    final int runJob(final BaseCommandlineTool daemon, final ExecutionContext jobContext,
+            final String[] args) {
+        if (daemon == this) {
+            throw new UnsupportedOperationException(
+                    "-daemon requires a tool class with a no-argument constructor");
+        }
+        for (Class<?> c = getClass(); !LIBRARY_CLASSES.contains(c); c = c.getSuperclass()) {
+            for (final Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        f.setAccessible(true);
+                        f.set(this, f.get(daemon));
+                    } catch (final IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
                 }
+            }
+        }
+
+        this.context = jobContext;
+        this.arguments = args.clone();
+        final CmdLineParser parser = new CmdLineParser(this);
+        parser.setUsageWidth(USAGE_OUTPUT_WIDTH);
+        try {
+            loadConfigProperties(getClass(), args, jobContext.properties());
+            parser.parseArguments(args);
+            checkArguments();
+        } catch (final Exception e) {
+            context().errorOutput().println(e.getMessage() + '\n');
+            printUsage(parser, false);
+            return 1;
+        }
 
-                final InputStream is = new MultiInputStream(inputList);
-                System.setIn(is);
-                run();
-                is.close();
+        try {
+            processInput();
+            return 0;
+        } catch (final Exception e) {
+            e.printStackTrace(context().errorOutput());
+            return 1;
+        } finally {
+            context().output().flush();
+        }
+    }
 
-            } else {
-                // Handle input on STDIN
-                run();
+    /**
+     * Configures java.util.logging to log to the console (STDOUT), and only the message actually logged,
+     * without any header or formatting; and Log4J similarly, if present in CLASSPATH.
+     */
+    static void configureLogging(final LogLevel level) {
+        for (final Handler h : baseLogger.getHandlers()) {
+            baseLogger.removeHandler(h);
+        }
+        baseLogger.setUseParentHandlers(false);
+        final Level l = level.toLevel();
+        baseLogger.addHandler(new SystemOutHandler(l));
+        baseLogger.setLevel(l);
+
+        synchronized (BaseCommandlineTool.class) {
+            if (!log4jInitialized) {
+                log4jInitialized = true;
+                initializeLog4j();
             }
+        }
+        configureLog4j(level);
+    }
+
+    /**
+     * Runs {@link #setup()}, or loads its state from a snapshot (see <code>-setup-cache</code>)
+     */
+    private void runSetup() throws Exception {
+        if (setupCacheDirectory == null) {
+            setupAll();
+            return;
+        }
+
+        // checkArguments() ensures that the tool is Snapshottable
+        final Snapshottable tool = (Snapshottable) this;
+        final byte[] key = SetupSnapshot.key(tool, context().properties());
+        final File snapshot = SetupSnapshot.file(setupCacheDirectory, tool, key);
+        final long start = System.currentTimeMillis();
+        if (SetupSnapshot.load(snapshot, key, tool)) {
+            BaseLogger.singleton().fine("Loaded setup snapshot " + snapshot + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return;
+        }
+
+        setupAll();
+        try {
+            setupCacheDirectory.mkdirs();
+            SetupSnapshot.store(snapshot, key, tool);
+            BaseLogger.singleton().fine("Stored setup snapshot " + snapshot);
+        } catch (final IOException e) {
+            BaseLogger.singleton().warning("Unable to store setup snapshot: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Runs {@link #setup()} and any {@link SetupStep} methods, concurrently
+     */
+    private void setupAll() throws Exception {
+        final List<Method> steps = new ArrayList<Method>();
+        for (Class<?> c = getClass(); c != BaseCommandlineTool.class; c = c.getSuperclass()) {
+            for (final Method m : c.getDeclaredMethods()) {
+                if (m.isAnnotationPresent(SetupStep.class)) {
+                    if (m.getParameterTypes().length > 0) {
+                        throw new IllegalStateException("Setup step " + m.getName() + " takes arguments");
+                    }
+                    m.setAccessible(true);
+                    steps.add(m);
+                }
+            }
+        }
+        if (steps.isEmpty()) {
+            setup();
+            return;
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final Method step : steps) {
+            final Thread t = new Thread("setup-" + step.getName()) {
+                @Override
+                public void run() {
+                    final long start = System.currentTimeMillis();
+                    try {
+                        step.invoke(BaseCommandlineTool.this);
+                        BaseLogger.singleton().fine("Setup step " + step.getName() + " completed in "
+                                + (System.currentTimeMillis() - start) + " ms");
+                    } catch (final InvocationTargetException e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e.getCause();
+                            }
+                        }
+                    } catch (final IllegalAccessException e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        try {
+            setup();
         } finally {
+            for (final Thread t : threads) {
+                t.join();
+            }
+        }
 
-            cleanup();
-            System.out.flush();
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+    }
+
+    /**
+     * Hook run after argument validation and immediately before {@link #setup()} (e.g. to start reading
+     * input ahead during setup). Not run for <code>-daemon</code> or <code>-connect</code>.
+     */
+    void beforeSetup() throws Exception {
+    }
+
+    /**
+     * Validates arguments after parsing, before {@link #setup()}. Subclasses within the package extend this to
+     * validate their own options.
+     */
+    void checkArguments() throws Exception {
+        if (shardSpec != null) {
+            parseShard();
+        }
+
+        if (setupCacheDirectory != null && !(this instanceof Snapshottable)) {
+            throw new CmdLineException(getClass().getSimpleName() + " does not support -setup-cache");
+        }
+
+        // If input files were specified on the command-line, check for them before running setup(). If one
+        // cannot be found, we'd prefer to fail here than after a potentially expensive setup() call
+        if (inputFiles.length > 0 && inputFiles[0].length() > 0) {
+            for (final String filename : inputFiles) {
+                if (!new File(filename).exists()) {
+                    throw new CmdLineException("Unable to find file: " + filename);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tool on the input files specified on the command-line, or on STDIN
+     */
+    private void processInput() throws Exception {
+        if (inputFiles.length > 0 && inputFiles[0].length() > 0 && !opensInputFiles()) {
+            // Handle one or more input files from the command-line, translating gzipped
+            // files as appropriate. Re-route multiple files into a single InputStream so we can execute
+            // the tool a single time. Open all files prior to processing, so we can fail early if one or
+            // more files cannot be opened
+            final LinkedList<InputStream> inputList = new LinkedList<InputStream>();
+            for (final String filename : inputFiles) {
+                inputList.add(fileAsInputStream(filename));
+            }
+
+            final InputStream is = new MultiInputStream(inputList);
+            redirectInput(is);
+            run();
+            is.close();
+
+        } else {
+            // Handle input on STDIN
+            run();
         }
     }
 
@@ -512,6 +999,10 @@ public abstract class BaseCommandlineTool {
      * for compilation or at runtime.
      */
     protected static void configureLog4j(final LogLevel level) {
+        if (log4jConsoleAppender == null) {
+            // Log4j is not initialized, or is not present in CLASSPATH
+            return;
+        }
         try {
             // ConsoleAppender consoleAppender = new ConsoleAppender();
             final Class<?> consoleAppenderClass = Class.forName("org.apache.log4j.ConsoleAppender");
@@ -592,9 +1083,10 @@ public abstract class BaseCommandlineTool {
         if (classname.endsWith("$")) {
             classname = classname.substring(0, classname.length() - 1);
         }
-        System.err.print("Usage: " + classname);
-        parser.printOneLineUsage(new OutputStreamWriter(System.err), includeHiddenOptions);
-        parser.printUsage(new OutputStreamWriter(System.err), includeHiddenOptions);
+        final PrintStream err = context().errorOutput();
+        err.print("Usage: " + classname);
+        parser.printOneLineUsage(new OutputStreamWriter(err), includeHiddenOptions);
+        parser.printUsage(new OutputStreamWriter(err), includeHiddenOptions);
     }
 
     /**
@@ -610,6 +1102,20 @@ public abstract class BaseCommandlineTool {
      */
     protected static void initGlobalConfigProperties(final Class<? extends BaseCommandlineTool> c,
             final String[] args) throws IOException, FileNotFoundException {
+        loadConfigProperties(c, args, GlobalConfigProperties.singleton());
+    }
+
+    /**
+     * Populates the specified properties from 'META-INF/defaults.properties' and from '-O' options
+     * 
+     * @param c Class
+     * @param args Command-line arguments
+     * @param properties Properties to populate
+     * @throws IOException If an error occurs while reading from a config file
+     * @throws FileNotFoundException If unable to find a config file specified with '-o'
+     */
+    static void loadConfigProperties(final Class<? extends BaseCommandlineTool> c, final String[] args,
+            final ConfigProperties properties) throws IOException, FileNotFoundException {
 
         final ArrayList<String> options = new ArrayList<String>();
         for (int i = 0; i < args.length - 1; i++) {
@@ -625,7 +1131,7 @@ public abstract class BaseCommandlineTool {
         if (defaultPropIs != null) {
             final Properties p = new Properties();
             p.load(defaultPropIs);
-            GlobalConfigProperties.singleton().mergeUnder(p);
+            properties.mergeUnder(p);
         }
 
         // Iterate through any property files specified, 'merging' the file contents together (in
@@ -636,7 +1142,7 @@ public abstract class BaseCommandlineTool {
                 // Treat it as a property file name
                 final Properties p = new Properties();
                 p.load(new FileReader(o));
-                GlobalConfigProperties.singleton().mergeOver(p);
+                properties.mergeOver(p);
             }
         }
 
@@ -645,7 +1151,7 @@ public abstract class BaseCommandlineTool {
         for (final String o : options) {
             final String[] keyValue = o.split("=");
             if (keyValue.length == 2) {
-                GlobalConfigProperties.singleton().setProperty(keyValue[0], keyValue[1]);
+                properties.setProperty(keyValue[0], keyValue[1]);
             }
         }
     }
@@ -654,6 +1160,13 @@ public abstract class BaseCommandlineTool {
         return commandLineArguments;
     }
 
+    /**
+     * @return The arguments with which this tool instance was executed
+     */
+    final String[] arguments() {
+        return arguments.clone();
+    }
+
     /**
      * At logging levels >= {@link LogLevel#info}, outputs a progress-bar formatted as periods (at specified
      * intervals) followed by a number (at larger intervals). E.g. '.....100'. Intended to report progress
@@ -685,7 +1198,7 @@ public abstract class BaseCommandlineTool {
      * @throws IOException If an error occurs while reading from {@link System#in}
      */
     protected Iterable<String> inputLines(final int skipHeaderLines) throws IOException {
-        return inputLines(System.in, skipHeaderLines);
+        return inputLines(context().input(), skipHeaderLines);
     }
 
     /**
@@ -693,7 +1206,7 @@ public abstract class BaseCommandlineTool {
      * @throws IOException if an error occurs while reading from {@link System#in}
      */
     protected Iterable<String> inputLines() throws IOException {
-        return inputLines(System.in, 0);
+        return inputLines(context().input(), 0);
     }
 
     /**
@@ -809,7 +1322,7 @@ public abstract class BaseCommandlineTool {
      * @throws IOException if an error occurs while reading from {@link System#in}.
      */
     protected BufferedReader inputAsBufferedReader() throws IOException {
-        return new BufferedReader(new InputStreamReader(inputStream(System.in), inputCharset()));
+        return new BufferedReader(new InputStreamReader(inputStream(context().input()), inputCharset()));
     }
 
     /**
@@ -821,7 +1334,19 @@ public abstract class BaseCommandlineTool {
      * @throws IOException if an error occurs while reading from {@link System#in}.
      */
     protected BufferedReader inputAsBufferedReader(final int size) throws IOException {
-        return new BufferedReader(new InputStreamReader(inputStream(System.in), inputCharset()), size);
+        return new BufferedReader(new InputStreamReader(inputStream(context().input()), inputCharset()),
+                size);
+    }
+
+    /**
+     * Convenience method; returns STDIN as an {@link InputStream}, buffered and decompressed if the input is in
+     * gzip format.
+     * 
+     * @return STDIN
+     * @throws IOException if an error occurs while reading from {@link System#in}.
+     */
+    protected InputStream inputAsStream() throws IOException {
+        return inputStream(context().input());
     }
 
     /**
@@ -865,6 +1390,7 @@ public abstract class BaseCommandlineTool {
      * 
      * @param filename File to open
      * @return InputStream
+     * @throws FileNotFoundException If <code>filename</code> does not exist
      * @throws IOException If an error occurs while opening <code>filename</code>
      */
     public static InputStream fileAsInputStream(final String filename) throws IOException {
@@ -876,13 +1402,12 @@ public abstract class BaseCommandlineTool {
      * 
      * @param f File
      * @return InputStream
+     * @throws FileNotFoundException If <code>f</code> does not exist
      * @throws IOException If an error occurs while opening <code>f</code>
      */
     public static InputStream fileAsInputStream(final File f) throws IOException {
         if (!f.exists()) {
-            System.err.println("Unable to find file: " + f.getName());
-            System.err.flush();
-            System.exit(-1);
+            throw new FileNotFoundException("Unable to find file: " + f.getPath());
         }
 
         return inputStream(new FileInputStream(f));
@@ -985,7 +1510,7 @@ public abstract class BaseCommandlineTool {
     private void printToStdout(final InputStream input) throws IOException {
         final BufferedReader br = new BufferedReader(new InputStreamReader(input));
         for (String line = br.readLine(); line != null; line = br.readLine()) {
-            System.out.println(line);
+            context().output().println(line);
         }
     }
 
@@ -1024,6 +1549,63 @@ public abstract class BaseCommandlineTool {
         return cal.getTime();
     }
 
+    /**
+     * Parses the <code>-shard</code> option, and selects input files for {@link ShardMode#files}
+     */
+    private void parseShard() throws CmdLineException {
+        final int slash = shardSpec.indexOf('/');
+        try {
+            shard = Integer.parseInt(shardSpec.substring(0, slash));
+            shards = Integer.parseInt(shardSpec.substring(slash + 1));
+        } catch (final RuntimeException e) {
+            throw new CmdLineException("Illegal shard: " + shardSpec);
+        }
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new CmdLineException("Illegal shard: " + shardSpec);
+        }
+
+        if (shardMode != ShardMode.files) {
+            // Byte-range and hash sharding are implemented by record-processing tools
+            if (!(this instanceof ThreadableCommandlineTool)) {
+                throw new CmdLineException("-shard-by " + shardMode + " is not supported by "
+                        + getClass().getSimpleName());
+            }
+            return;
+        }
+
+        if (inputFiles.length == 0 || inputFiles[0].length() == 0) {
+            throw new CmdLineException("-shard-by files requires input files");
+        }
+        final ArrayList<String> selected = new ArrayList<String>();
+        for (int i = shard; i < inputFiles.length; i += shards) {
+            selected.add(inputFiles[i]);
+        }
+        inputFiles = selected.toArray(new String[selected.size()]);
+        if (inputFiles.length == 0) {
+            // An empty shard reads no input (rather than STDIN)
+            BaseLogger.singleton().fine("Shard " + shardSpec + " contains no input files");
+            redirectInput(new ByteArrayInputStream(new byte[0]));
+        }
+    }
+
+    /**
+     * Ways of dividing input between processes with <code>-shard i/n</code>
+     */
+    public static enum ShardMode {
+        /** Every n'th input file, starting from file i */
+        files,
+        /**
+         * The i'th of n byte ranges of each input file, aligned to line boundaries (for line-oriented input).
+         * GZIP-compressed files cannot be divided, and are assigned whole, as in {@link #files}.
+         */
+        bytes,
+        /**
+         * Records whose key (see {@link ThreadableCommandlineTool#shardKey(String)}) hashes to shard i, so
+         * all records with the same key are processed by the same shard
+         */
+        hash;
+    }
+
     /**
      * Enumeration of all log levels supported by the <code>java.util.logging</code> system, with aliases
      * mapping integer values relative to a default log level of {@link Level#INFO}.
@@ -1064,6 +1646,9 @@ public abstract class BaseCommandlineTool {
 
     private static class SystemOutHandler extends Handler {
 
+        /** STDOUT at startup, so log messages are not written to redirected output (e.g. '-output-file') */
+        private final PrintStream out = System.out;
+
         public SystemOutHandler(final Level level) {
             setLevel(level);
         }
@@ -1075,12 +1660,64 @@ public abstract class BaseCommandlineTool {
 
         @Override
         public void flush() {
-            System.out.flush();
+            out.flush();
         }
 
         @Override
         public void publish(final LogRecord record) {
-            System.out.println(record.getMessage());
+            out.println(record.getMessage());
+        }
+    }
+
+    /**
+     * Encodes in-memory input lines (see {@link BaseCommandlineTool#execute(Iterable, String...)}) as they
+     * are read, using the input {@link Charset}.
+     */
+    private class LineInputStream extends InputStream {
+        private final Iterator<String> lines;
+        private byte[] buffer = new byte[0];
+        private int position;
+
+        public LineInputStream(final Iterable<String> lines) {
+            this.lines = lines.iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Encodes the next line if the current line has been consumed
+         * 
+         * @return False at the end of input
+         */
+        private boolean fill() {
+            while (position == buffer.length) {
+                if (!lines.hasNext()) {
+                    return false;
+                }
+                buffer = (lines.next() + '\n').getBytes(inputCharset());
+                position = 0;
+            }
+            return true;
         }
     }
 
@@ -1109,6 +1746,7 @@ public abstract class BaseCommandlineTool {
         final void next() throws IOException {
             if (currentStream != null) {
                 currentStream.close();
+                endFile(currentInputFile);
             }
 
             if (streamIterator.hasNext()) {
@@ -19,53 +19,103 @@
  */
 package cltool4j;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.FutureTask;
 
 import cltool4j.args4j.Option;
 
 /**
- * Threadable tool which processes input in batches (e.g. each task handled 50 lines)
+ * Threadable tool which processes input in batches (e.g. each task handled 50 lines). Input is split into
+ * lines by default, or into other record formats as specified by <code>-records</code> or the {@link Records}
+ * annotation.<br/>
+ * <br/>
+ * 
+ * With <code>-workers</code>, batches are distributed to worker processes running the same tool (each calling
+ * {@link #setup()} once), and results are output in input order as usual. Workers are launched on the local
+ * machine by default; override {@link #launchWorker(int, List)} and {@link #coordinatorAddress()} to start
+ * them elsewhere. Tools using <code>-workers</code> must be instantiable by {@link Worker} (i.e., public,
+ * with a public no-argument constructor).
  */
-public abstract class BatchCommandlineTool extends ThreadableCommandlineTool<List<String>, List<String>> {
+public abstract class BatchCommandlineTool extends RecordBatchCommandlineTool<List<String>> {
 
-    @Option(name = "-batch", metaVar = "lines", usage = "Batch size")
-    private int batchSize = 25;
+    @Option(name = "-workers", metaVar = "count", usage = "Distribute batches to worker processes (each running -xt threads)")
+    private int workers = 0;
 
-    private BufferedReader inputReader;
+    /** Coordinator address (<code>host:port:token</code>), when launched as a worker */
+    @Option(name = "-worker", hidden = true, metaVar = "address", usage = "Serve batches for a coordinator")
+    private String coordinator;
+
+    private BatchWorkers batchWorkers;
 
     @Override
     public final List<String> nextInput() throws IOException {
-        synchronized (this) {
-            if (inputReader == null) {
-                inputReader = inputAsBufferedReader();
-            }
+        return nextBatch();
+    }
+
+    @Override
+    final FutureTask<List<String>> newTask(final List<String> input) {
+        return batchWorkers != null ? batchWorkers.task(input) : task(input);
+    }
+
+    @Override
+    final boolean serveAsWorker() throws Exception {
+        if (coordinator == null) {
+            return false;
         }
+        BatchWorkers.serve(this, coordinator, maxThreads);
+        return true;
+    }
 
-        // Read in a batch of lines
-        synchronized (inputReader) {
-            final ArrayList<String> input = new ArrayList<String>(batchSize);
-            for (int i = 0; i < batchSize; i++) {
-                final String line = inputReader.readLine();
-                if (line == null) {
-                    // We hit EOF; return the batch we have
-                    return input.size() > 0 ? input : null;
-                }
-                input.add(line);
-            }
-            return input;
+    @Override
+    final void startWorkers() throws IOException {
+        if (workers > 0) {
+            batchWorkers = new BatchWorkers(this, workers, maxThreads);
+            maxThreads = workers * maxThreads;
         }
     }
 
     @Override
-    protected final void output(final List<String> result) {
-        for (final String s : result) {
-            if (s.length() > 0) {
-                System.out.println(s);
-            }
+    final void stopWorkers() {
+        if (batchWorkers != null) {
+            batchWorkers.close();
+            batchWorkers = null;
+        }
+    }
+
+    /**
+     * Launches a worker process (see <code>-workers</code>). The default implementation runs the command on
+     * the local machine; tools may override it to start workers on other hosts (e.g. by prefixing the command
+     * with <code>ssh</code>), in which case {@link #coordinatorAddress()} must also be overridden.
+     * 
+     * @param index Worker index (0..workers-1)
+     * @param command Command line of a local worker JVM
+     * @return The worker process, or <code>null</code> if the worker is not managed by this process
+     * @throws IOException if the process cannot be started
+     */
+    protected Process launchWorker(final int index, final List<String> command) throws IOException {
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /**
+     * @return The address on which to accept worker connections. The default is the loopback address.
+     * @throws IOException if the address cannot be determined
+     */
+    protected InetAddress coordinatorAddress() throws IOException {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * Entry point for worker processes: <code>Worker &lt;tool class&gt; [arguments]</code>
+     */
+    public static class Worker {
+
+        @SuppressWarnings("unchecked")
+        public static void main(final String[] args) throws Exception {
+            BaseCommandlineTool.run((Class<? extends BaseCommandlineTool>) Class.forName(args[0]),
+                    Arrays.copyOfRange(args, 1, args.length));
         }
-        System.out.flush();
     }
 }
@@ -0,0 +1,512 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cltool4j.args4j.Option;
+
+/**
+ * Distributes the batches of a {@link BatchCommandlineTool} to worker processes over TCP (see
+ * <code>-workers</code>). The coordinator reads input and writes output as usual; each task sends its batch
+ * to an idle worker connection and waits for the result, so ordering, failure handling, timeouts, and
+ * checkpoints are unchanged.<br/>
+ * <br/>
+ * 
+ * Each worker process runs the same tool class (calling {@link BaseCommandlineTool#setup()} once), and opens
+ * one connection per worker thread. Requests and responses are framed as a sequence number followed by a
+ * list of UTF-8 strings; a worker reports a failed task with a negative count and an error message. Workers
+ * exit when the coordinator closes their connections.
+ */
+final class BatchWorkers {
+
+    private final static int HANDSHAKE_TIMEOUT = 30000;
+
+    private final BatchCommandlineTool tool;
+    private final ServerSocket server;
+    private final String token = Long.toHexString(new SecureRandom().nextLong());
+
+    /** Worker connections awaiting a batch */
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final List<Process> processes = new ArrayList<Process>();
+    private final List<Thread> pumps = new ArrayList<Thread>();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Listens for worker connections, and launches the worker processes
+     * 
+     * @param tool Coordinating tool
+     * @param workers Number of worker processes
+     * @param threadsPerWorker Connections (and threads) per worker
+     */
+    BatchWorkers(final BatchCommandlineTool tool, final int workers, final int threadsPerWorker)
+            throws IOException {
+        this.tool = tool;
+        this.server = new ServerSocket(0, 50, tool.coordinatorAddress());
+
+        final Thread acceptor = new Thread("worker-acceptor") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        final String address = server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + ":"
+                + token;
+        final List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BatchCommandlineTool.Worker.class.getName());
+        command.add(tool.getClass().getName());
+        command.addAll(workerArguments(tool));
+        command.addAll(Arrays.asList("-worker", address, "-xt", Integer.toString(threadsPerWorker)));
+
+        final PrintStream err = tool.context().errorOutput();
+        for (int i = 0; i < workers; i++) {
+            final Process p = tool.launchWorker(i, new ArrayList<String>(command));
+            if (p != null) {
+                processes.add(p);
+                pumps.add(pump(p.getInputStream(), err));
+            }
+        }
+        BaseLogger.singleton().fine(
+                "Launched " + workers + " workers; listening on " + server.getLocalSocketAddress());
+    }
+
+    /**
+     * Accepts worker connections until closed
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                final Connection c = new Connection(socket);
+                if (!token.equals(c.in.readUTF())) {
+                    BaseLogger.singleton().warning(
+                            "Rejected connection from " + socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                socket.setSoTimeout(0);
+                synchronized (connections) {
+                    if (closed) {
+                        socket.close();
+                        return;
+                    }
+                    connections.add(c);
+                }
+                idle.add(c);
+            } catch (final IOException e) {
+                if (!closed) {
+                    BaseLogger.singleton().warning("Worker connection failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A task which executes {@link BatchCommandlineTool#task(List)} for the batch on a worker
+     */
+    FutureTask<List<String>> task(final List<String> batch) {
+        return new FutureTask<List<String>>(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                final long seq = sequence.incrementAndGet();
+                final Connection c = take();
+                final List<String> result;
+                try {
+                    result = c.execute(seq, batch);
+                } catch (final IOException e) {
+                    // Discard the connection; the batch may be retried on another (see -failure-policy)
+                    c.close();
+                    throw e;
+                } catch (final ExecutionException e) {
+                    // The task failed, but the worker remains usable
+                    idle.add(c);
+                    throw e;
+                }
+                idle.add(c);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Waits for an idle worker connection
+     */
+    private Connection take() throws IOException, InterruptedException {
+        while (true) {
+            final Connection c = idle.poll(1, TimeUnit.SECONDS);
+            if (c != null) {
+                return c;
+            }
+            if (!workersAlive()) {
+                throw new IOException("All worker processes have exited");
+            }
+        }
+    }
+
+    /**
+     * @return False if all worker processes launched by this coordinator have exited (workers launched
+     *         externally are assumed to be alive)
+     */
+    private boolean workersAlive() {
+        if (processes.isEmpty()) {
+            return true;
+        }
+        for (final Process p : processes) {
+            try {
+                p.exitValue();
+            } catch (final IllegalThreadStateException running) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes all connections (so workers exit), and waits briefly for worker processes to exit and their
+     * output to be copied
+     */
+    void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (final IOException ignore) {
+        }
+        synchronized (connections) {
+            for (final Connection c : connections) {
+                c.close();
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        for (final Process p : processes) {
+            while (true) {
+                try {
+                    p.exitValue();
+                    break;
+                } catch (final IllegalThreadStateException running) {
+                    if (System.currentTimeMillis() > deadline) {
+                        p.destroy();
+                        break;
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (final InterruptedException e) {
+                        p.destroy();
+                        break;
+                    }
+                }
+            }
+        }
+        for (final Thread t : pumps) {
+            try {
+                t.join(1000);
+            } catch (final InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Serves batches for a coordinator, with one connection per thread, until the coordinator closes the
+     * connections
+     * 
+     * @param tool Worker tool
+     * @param coordinator Coordinator address, as <code>host:port:token</code>
+     * @param threads Number of connections
+     */
+    static void serve(final BatchCommandlineTool tool, final String coordinator, final int threads)
+            throws Exception {
+        final String[] split = coordinator.split(":");
+        if (split.length != 3) {
+            throw new IllegalArgumentException("Illegal coordinator address: " + coordinator);
+        }
+
+        final List<Thread> workers = new ArrayList<Thread>();
+        final IOException[] failure = new IOException[1];
+        for (int i = 0; i < threads; i++) {
+            final Connection c;
+            try {
+                c = new Connection(new Socket(split[0], Integer.parseInt(split[1])));
+            } catch (final ConnectException e) {
+                // The coordinator finished (or failed) before this worker started
+                BaseLogger.singleton().fine("Unable to connect to coordinator: " + e.getMessage());
+                break;
+            }
+            try {
+                c.socket.setTcpNoDelay(true);
+                c.out.writeUTF(split[2]);
+                c.out.flush();
+            } catch (final SocketException e) {
+                // The coordinator finished between accepting the connection and reading the token
+                BaseLogger.singleton().fine("Coordinator closed the connection: " + e.getMessage());
+                c.close();
+                break;
+            }
+
+            final Thread t = new Thread("worker-" + i) {
+                @Override
+                public void run() {
+                    try {
+                        c.serve(tool);
+                    } catch (final IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+            };
+            t.start();
+            workers.add(t);
+        }
+
+        for (final Thread t : workers) {
+            t.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Returns the arguments for worker processes: the coordinator's arguments, excluding input files and
+     * the options which control input, output, and scheduling (those declared by
+     * {@link ThreadableCommandlineTool}, {@link BatchCommandlineTool} and its batching superclass, and
+     * <code>-xt</code> and <code>-shard</code>), which apply only to the coordinator.
+     */
+    static List<String> workerArguments(final BaseCommandlineTool tool) {
+        // Coordinator options, and the number of values each takes
+        final Map<String, Integer> excluded = new HashMap<String, Integer>();
+        for (Class<?> c = BatchCommandlineTool.class; c != BaseCommandlineTool.class; c = c.getSuperclass()) {
+            for (final Field f : c.getDeclaredFields()) {
+                final Option option = f.getAnnotation(Option.class);
+                if (option != null) {
+                    final int arity = f.getType() == boolean.class ? 0 : 1;
+                    excluded.put(option.name(), arity);
+                    for (final String alias : option.aliases()) {
+                        excluded.put(alias, arity);
+                    }
+                }
+            }
+        }
+        excluded.put("-xt", 1);
+        excluded.put("-shard", 1);
+        excluded.put("-shard-by", 1);
+
+        // Run modes, which would replace serving batches (or, for -startup-trace and -pause, apply to the
+        // coordinator's own startup)
+        excluded.put("-daemon", 1);
+        excluded.put("-connect", 1);
+        excluded.put("-cds-dump", 1);
+        excluded.put("-setup-cache", 1);
+        excluded.put("-startup-trace", 0);
+        excluded.put("-pause", 0);
+
+        final Set<String> inputFiles = new HashSet<String>(Arrays.asList(tool.inputFiles));
+        final List<String> args = new ArrayList<String>();
+        final String[] arguments = tool.arguments();
+        for (int i = 0; i < arguments.length; i++) {
+            final Integer arity = excluded.get(arguments[i]);
+            if (arity != null) {
+                i += arity;
+            } else if (!inputFiles.contains(arguments[i])) {
+                args.add(arguments[i]);
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Copies worker output (e.g. log messages) to the coordinator's STDERR
+     */
+    private static Thread pump(final InputStream is, final PrintStream err) {
+        final Thread t = new Thread("worker-output") {
+            @Override
+            public void run() {
+                final byte[] buf = new byte[4096];
+                try {
+                    for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+                        err.write(buf, 0, n);
+                        err.flush();
+                    }
+                } catch (final IOException ignore) {
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A connection between the coordinator and a worker thread
+     */
+    private static final class Connection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        }
+
+        /**
+         * Sends a batch to the worker, and waits for the result (coordinator side)
+         * 
+         * @return The result
+         * @throws IOException if the connection fails
+         * @throws ExecutionException if the task failed on the worker, with the worker's error message
+         */
+        List<String> execute(final long seq, final List<String> batch) throws IOException,
+                ExecutionException {
+            out.writeLong(seq);
+            writeStrings(batch);
+            out.flush();
+
+            if (in.readLong() != seq) {
+                throw new IOException("Unexpected response from worker");
+            }
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new ExecutionException("Batch " + seq + " failed on worker: " + readString(), null);
+            }
+            return readStrings(count);
+        }
+
+        /**
+         * Executes batches until the coordinator closes the connection (worker side)
+         */
+        void serve(final BatchCommandlineTool tool) throws IOException {
+            while (true) {
+                final long seq;
+                try {
+                    seq = in.readLong();
+                } catch (final EOFException e) {
+                    // The coordinator closed the connection
+                    return;
+                } catch (final SocketException e) {
+                    // A coordinator closing the connection with unread data (e.g. the handshake of a worker
+                    // thread it no longer needs) resets it; any other failure is reported
+                    if ("Connection reset".equals(e.getMessage())) {
+                        return;
+                    }
+                    BaseLogger.singleton().warning("Connection to coordinator failed: " + e.getMessage());
+                    throw e;
+                }
+                final List<String> batch = readStrings(in.readInt());
+
+                List<String> result = null;
+                String failure = null;
+                try {
+                    final FutureTask<List<String>> task = tool.task(batch);
+                    task.run();
+                    result = task.get();
+                } catch (final ExecutionException e) {
+                    failure = String.valueOf(e.getCause());
+                } catch (final InterruptedException e) {
+                    failure = e.toString();
+                } catch (final RuntimeException e) {
+                    failure = e.toString();
+                }
+
+                out.writeLong(seq);
+                if (failure == null) {
+                    // A null result produces no output
+                    writeStrings(result != null ? result : Collections.<String> emptyList());
+                } else {
+                    out.writeInt(-1);
+                    writeString(failure);
+                }
+                out.flush();
+            }
+        }
+
+        private void writeStrings(final List<String> strings) throws IOException {
+            out.writeInt(strings.size());
+            for (final String s : strings) {
+                writeString(s);
+            }
+        }
+
+        /**
+         * Writes a length-prefixed string, encoding <code>null</code> as length -1
+         */
+        private void writeString(final String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private List<String> readStrings(final int count) throws IOException {
+            final List<String> strings = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                strings.add(readString());
+            }
+            return strings;
+        }
+
+        private String readString() throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (final IOException ignore) {
+            }
+        }
+    }
+}
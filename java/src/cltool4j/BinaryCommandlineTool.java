@@ -0,0 +1,208 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.FutureTask;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Processes length-prefixed binary records (from files or STDIN), optionally using multiple threads, and
+ * writes results in the same framing. Each record is encoded as its length (an unsigned base-128 varint, as
+ * used by Protocol Buffers) followed by the record bytes. Chained tools can exchange data in this format
+ * without escaping and re-parsing text, and compressed input is still detected and decompressed
+ * automatically.<br/>
+ * <br/>
+ * 
+ * Subclasses must implement a {@link FutureTask} task to do the processing. A <code>null</code> result
+ * produces no output, while an empty array produces an empty record. Tasks producing text records should
+ * encode them with {@link #outputCharset()} (e.g. using {@link RowWriter#local(java.nio.charset.Charset)}).
+ */
+public abstract class BinaryCommandlineTool extends ThreadableCommandlineTool<byte[], byte[]> {
+
+    /** Upper bound on the length of a single record (the maximum array size) */
+    private final static long MAX_RECORD_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * Initial allocation when reading a record. Larger records grow the buffer as they are read, so a corrupt
+     * or non-framed length fails with {@link EOFException} at the end of the input, rather than allocating
+     * (up to 2 GB) up front.
+     */
+    private final static int INITIAL_RECORD_BUFFER = 65536;
+
+    private InputStream inputStream;
+
+    /**
+     * @return a {@link FutureTask} which will process an input record and return the output record
+     */
+    protected abstract FutureTask<byte[]> recordTask(byte[] record);
+
+    @Override
+    public final byte[] nextInput() throws IOException {
+        synchronized (this) {
+            if (inputStream == null) {
+                // Varints are decoded a byte at a time, so buffer the decompressed stream as well
+                inputStream = new BufferedInputStream(inputAsStream(), 65536);
+            }
+        }
+        synchronized (inputStream) {
+            return admitRecord() ? readRecord(inputStream) : null;
+        }
+    }
+
+    /**
+     * Rejects the text record options of {@link ThreadableCommandlineTool}, which do not apply to binary
+     * records
+     */
+    @Override
+    void checkArguments() throws Exception {
+        super.checkArguments();
+
+        if (recordFormat != RecordFormat.line || recordDelimiter != null || recordLines != 1) {
+            throw new CmdLineException(
+                    "-records, -record-delimiter, and -record-lines are not supported for binary input");
+        }
+        if (lineRange != null || createLineIndex) {
+            throw new CmdLineException("-lines and -index are not supported for binary input");
+        }
+        if (prefetchRecords > 0) {
+            throw new CmdLineException("-prefetch is not supported for binary input");
+        }
+    }
+
+    /**
+     * Binary input is read directly from {@link System#in}, so <code>-checkpoint</code> is not supported
+     */
+    @Override
+    protected final boolean opensInputFiles() {
+        return false;
+    }
+
+    @Override
+    protected final FutureTask<byte[]> task(final byte[] record) {
+        return recordTask(record);
+    }
+
+    /**
+     * Writes the length-prefixed result to STDOUT
+     * 
+     * @param result Result to write
+     */
+    @Override
+    protected void output(final byte[] result) {
+        if (result == null) {
+            return;
+        }
+        try {
+            writeRecord(context().output(), result);
+        } catch (final IOException e) {
+            // PrintStream does not throw IOExceptions
+        }
+    }
+
+    /**
+     * Reads a single length-prefixed record
+     * 
+     * @param is Source of input
+     * @return The record, or <code>null</code> if <code>is</code> is at EOF
+     * @throws IOException If the read fails or the input is truncated
+     */
+    public static byte[] readRecord(final InputStream is) throws IOException {
+        final long length = readVarint(is);
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Illegal record length: " + length);
+        }
+
+        byte[] record = new byte[(int) Math.min(length, INITIAL_RECORD_BUFFER)];
+        for (int offset = 0; offset < length;) {
+            if (offset == record.length) {
+                record = Arrays.copyOf(record, (int) Math.min(length, 2L * record.length));
+            }
+            final int n = is.read(record, offset, record.length - offset);
+            if (n < 0) {
+                throw new EOFException("Truncated record: expected " + length + " bytes, found " + offset);
+            }
+            offset += n;
+        }
+        return record;
+    }
+
+    /**
+     * Writes a single length-prefixed record
+     * 
+     * @param os Output destination
+     * @param record Record
+     * @throws IOException If the write fails
+     */
+    public static void writeRecord(final OutputStream os, final byte[] record) throws IOException {
+        writeRecord(os, record, 0, record.length);
+    }
+
+    /**
+     * Writes a single length-prefixed record
+     * 
+     * @param os Output destination
+     * @param buf Buffer containing the record
+     * @param offset Start offset of the record within <code>buf</code>
+     * @param length Record length
+     * @throws IOException If the write fails
+     */
+    public static void writeRecord(final OutputStream os, final byte[] buf, final int offset,
+            final int length) throws IOException {
+        // Keep the length and the record contiguous if several threads write to the same stream
+        synchronized (os) {
+            writeVarint(os, length);
+            os.write(buf, offset, length);
+        }
+    }
+
+    /**
+     * Reads an unsigned base-128 varint
+     * 
+     * @param is Source of input
+     * @return The decoded value, or -1 if <code>is</code> is at EOF before the first byte
+     * @throws IOException If the read fails, the input is truncated, or the varint exceeds 63 bits
+     */
+    public static long readVarint(final InputStream is) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            final int b = is.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Writes an unsigned base-128 varint
+     * 
+     * @param os Output destination
+     * @param value Non-negative value
+     * @throws IOException If the write fails
+     */
+    public static void writeVarint(final OutputStream os, long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint: " + value);
+        }
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+}
@@ -0,0 +1,245 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Implements <code>-cds-dump</code>. Short-lived tools spend much of their startup loading and verifying
+ * classes; an application class-data sharing (AppCDS) archive stores those classes pre-parsed, and the JVM
+ * maps it at startup instead.<br/>
+ * <br/>
+ * 
+ * The archive is created by a training run of the tool in a child JVM, with the same arguments (other than
+ * <code>-cds-dump</code>) and input, so it contains the classes loaded by argument parsing,
+ * {@link BaseCommandlineTool#setup()}, and input processing. The tool is then timed on the same input with
+ * and without the archive, and the JVM flags which use it are printed to STDOUT (e.g. for a launcher script).
+ * Java 13 and later write a dynamic archive at exit from the training run; Java 10-12 record the loaded
+ * classes and dump the archive from that list. Earlier versions do not support archiving application
+ * classes.<br/>
+ * <br/>
+ * 
+ * As with any AppCDS archive, the classpath must consist of jar files, and the tool must be run with the same
+ * classpath (and JVM) which created it; otherwise the JVM ignores the archive.
+ */
+final class CdsArchive {
+
+    /** Timed runs with and without the archive; the fastest of each is reported */
+    private final static int TIMING_RUNS = 3;
+
+    private CdsArchive() {
+    }
+
+    /**
+     * Creates an archive from a training run, and reports the startup savings
+     * 
+     * @param tool Tool, with arguments parsed and checked
+     * @param archive Archive file
+     * @throws IOException if the archive cannot be created, or if any run of the tool fails
+     * @throws InterruptedException if interrupted while waiting for a run
+     */
+    static void dump(final BaseCommandlineTool tool, final File archive) throws IOException,
+            InterruptedException {
+        final String specificationVersion = System.getProperty("java.specification.version");
+        final int version = featureVersion(specificationVersion);
+        if (version < 10) {
+            throw new IOException("AppCDS archives of application classes require Java 10 or later (running "
+                    + specificationVersion + ")");
+        }
+
+        // The JVM archives only classes loaded from jar files
+        for (final String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            final String[] contents = new File(entry).list();
+            if (contents != null && contents.length > 0) {
+                throw new IOException("AppCDS archives require a classpath of jar files (" + entry
+                        + " is a directory)");
+            }
+        }
+
+        final File archiveFile = archive.getAbsoluteFile();
+        final List<String> jvm = jvmCommand(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        final List<String> toolCommand = toolCommand(tool.getClass().getName(), tool.arguments());
+        final List<String> archiveFlags = archiveFlags(version, archiveFile);
+
+        // The tool reads STDIN only if there are no input files, and each run needs a copy
+        File sampleInput = null;
+        final File discard = File.createTempFile("cds", ".out");
+        final File classList = File.createTempFile("cds", ".classlist");
+        try {
+            if (tool.inputFiles.length == 0) {
+                sampleInput = File.createTempFile("cds", ".in");
+                final InputStream is = tool.context().input();
+                Files.copy(is, sampleInput.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Training run
+            if (!archiveFile.delete() && archiveFile.exists()) {
+                throw new IOException("Unable to replace " + archiveFile);
+            }
+            if (version >= 13) {
+                run(concat(jvm, Arrays.asList("-XX:ArchiveClassesAtExit=" + archiveFile), toolCommand),
+                        sampleInput, discard, false);
+            } else {
+                run(concat(jvm, appCds(version), Arrays.asList("-Xshare:off", "-XX:DumpLoadedClassList="
+                        + classList.getAbsolutePath()), toolCommand), sampleInput, discard, false);
+                run(concat(jvm, appCds(version), Arrays.asList("-Xshare:dump",
+                        "-XX:SharedClassListFile=" + classList.getAbsolutePath(), "-XX:SharedArchiveFile="
+                                + archiveFile, "-cp", System.getProperty("java.class.path"))), null, discard,
+                        false);
+            }
+            if (!archiveFile.exists()) {
+                throw new IOException("The JVM did not write " + archiveFile);
+            }
+
+            // Timed runs, alternating so both are equally affected by the OS file cache
+            long without = Long.MAX_VALUE, with = Long.MAX_VALUE;
+            for (int i = 0; i < TIMING_RUNS; i++) {
+                without = Math.min(without, run(concat(jvm, toolCommand), sampleInput, discard, true));
+                with = Math.min(with,
+                        run(concat(jvm, archiveFlags, toolCommand), sampleInput, discard, true));
+            }
+
+            tool.context().errorOutput().println(report(archiveFile, without, with));
+            final StringBuilder sb = new StringBuilder();
+            for (final String flag : archiveFlags) {
+                sb.append(sb.length() > 0 ? " " : "").append(flag);
+            }
+            tool.context().output().println(sb);
+            tool.context().output().flush();
+
+        } finally {
+            if (sampleInput != null) {
+                sampleInput.delete();
+            }
+            discard.delete();
+            classList.delete();
+        }
+    }
+
+    /**
+     * @param specificationVersion <code>java.specification.version</code> (e.g. '1.8' or '11')
+     * @return The Java feature version (e.g. 8 or 11)
+     */
+    static int featureVersion(final String specificationVersion) {
+        final String[] split = specificationVersion.split("\\.");
+        try {
+            return Integer.parseInt(split[0].equals("1") && split.length > 1 ? split[1] : split[0]);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param inputArguments Arguments of the current JVM
+     * @return The Java executable and the current JVM arguments, excluding any class-data sharing arguments
+     *         and debugger agents (which would conflict between the child JVMs)
+     */
+    static List<String> jvmCommand(final List<String> inputArguments) {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (final String arg : inputArguments) {
+            if (!arg.startsWith("-Xshare:") && !arg.startsWith("-XX:SharedArchiveFile=")
+                    && !arg.startsWith("-XX:ArchiveClassesAtExit=")
+                    && !arg.startsWith("-XX:DumpLoadedClassList=")
+                    && !arg.startsWith("-XX:SharedClassListFile=") && !arg.endsWith("UseAppCDS")
+                    && !arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+                command.add(arg);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * @return The classpath, main class, and arguments with which to run the tool, excluding
+     *         <code>-cds-dump</code>
+     */
+    static List<String> toolCommand(final String mainClass, final String[] arguments) {
+        final List<String> command = new ArrayList<String>();
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].equals("-cds-dump")) {
+                i++;
+            } else {
+                command.add(arguments[i]);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * @return The JVM flags which use the archive
+     */
+    static List<String> archiveFlags(final int version, final File archive) {
+        return concat(appCds(version), Arrays.asList("-XX:SharedArchiveFile=" + archive.getPath()));
+    }
+
+    /**
+     * @return The flag enabling application classes in the archive, required only by Java 10
+     */
+    private static List<String> appCds(final int version) {
+        return version == 10 ? Arrays.asList("-XX:+UseAppCDS") : new ArrayList<String>();
+    }
+
+    /**
+     * Runs a child JVM to completion
+     * 
+     * @param command Command
+     * @param input Input file, or <code>null</code> for none
+     * @param output File to which output is written (and discarded)
+     * @param discardErrorOutput Discard STDERR output as well (otherwise it is written to STDERR)
+     * @return Elapsed time (ns)
+     * @throws IOException if the JVM exits with non-zero status
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static long run(final List<String> command, final File input, final File output,
+            final boolean discardErrorOutput) throws IOException, InterruptedException {
+        final ProcessBuilder pb = new ProcessBuilder(command);
+        if (input != null) {
+            pb.redirectInput(input);
+        }
+        pb.redirectOutput(output);
+        pb.redirectError(discardErrorOutput ? Redirect.appendTo(output) : Redirect.INHERIT);
+
+        BaseLogger.singleton().fine("Running " + command);
+        final long start = System.nanoTime();
+        final Process process = pb.start();
+        if (input == null) {
+            process.getOutputStream().close();
+        }
+        final int status = process.waitFor();
+        final long elapsed = System.nanoTime() - start;
+        if (status != 0) {
+            throw new IOException("Run failed with exit status " + status + ": " + command);
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return A report of the archive size and the time saved by using it
+     */
+    static String report(final File archive, final long without, final long with) {
+        return String.format(Locale.ROOT,
+                "Wrote %s (%d KB). Sample run: %.0f ms without the archive, %.0f ms with it (%.0f%% faster)",
+                archive, archive.length() >> 10, without / 1e6, with / 1e6,
+                100.0 * (without - with) / without);
+    }
+
+    @SafeVarargs
+    private static List<String> concat(final List<String>... lists) {
+        final List<String> concatenated = new ArrayList<String>();
+        for (final List<String> list : lists) {
+            concatenated.addAll(list);
+        }
+        return concatenated;
+    }
+}
@@ -0,0 +1,147 @@
+package cltool4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Progress of a {@link ThreadableCommandlineTool}, recorded periodically with the <code>-checkpoint</code>
+ * option and read by <code>-resume</code>. A checkpoint records the input position up to which all output
+ * has been written (an input file and the number of records read from it), and the length of that
+ * output.<br/>
+ * <br/>
+ * 
+ * Checkpoints are stored in Java properties format, and replaced atomically, so a job killed while writing a
+ * checkpoint leaves the previous one intact.
+ */
+public final class Checkpoint {
+
+    /** Index of the current input file, or -1 for STDIN */
+    public final int fileIndex;
+
+    /** Name of the current input file, or <code>null</code> for STDIN */
+    public final String filename;
+
+    /** Records read from the current input file, all of which have been output */
+    public final long records;
+
+    /** Length of the output written (in bytes) */
+    public final long outputLength;
+
+    /** True if all input has been processed */
+    public final boolean complete;
+
+    public Checkpoint(final int fileIndex, final String filename, final long records, final long outputLength,
+            final boolean complete) {
+        this.fileIndex = fileIndex;
+        this.filename = filename;
+        this.records = records;
+        this.outputLength = outputLength;
+        this.complete = complete;
+    }
+
+    /**
+     * Reads a checkpoint
+     * 
+     * @param f Checkpoint file
+     * @return The checkpoint stored in <code>f</code>
+     * @throws IOException If the file cannot be read, or does not contain a checkpoint
+     */
+    public static Checkpoint load(final File f) throws IOException {
+        final Properties p = new Properties();
+        final InputStream is = new FileInputStream(f);
+        try {
+            p.load(is);
+        } finally {
+            is.close();
+        }
+
+        try {
+            return new Checkpoint(Integer.parseInt(p.getProperty("file.index")), p.getProperty("file"),
+                    Long.parseLong(p.getProperty("records")), Long.parseLong(p.getProperty("output.length")),
+                    Boolean.parseBoolean(p.getProperty("complete")));
+        } catch (final NumberFormatException e) {
+            throw new IOException("Malformed checkpoint: " + f);
+        }
+    }
+
+    /**
+     * Writes this checkpoint to a temporary file and renames it to <code>f</code>
+     * 
+     * @param f Checkpoint file
+     * @throws IOException If the file cannot be written
+     */
+    public void store(final File f) throws IOException {
+        final Properties p = new Properties();
+        p.setProperty("file.index", Integer.toString(fileIndex));
+        if (filename != null) {
+            p.setProperty("file", filename);
+        }
+        p.setProperty("records", Long.toString(records));
+        p.setProperty("output.length", Long.toString(outputLength));
+        p.setProperty("complete", Boolean.toString(complete));
+
+        final File tmp = new File(f.getPath() + ".tmp");
+        final FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            p.store(os, null);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return (filename != null ? filename : "STDIN") + ": " + records + " records (" + outputLength
+                + " bytes output)" + (complete ? ", complete" : "");
+    }
+
+    /**
+     * Counts bytes written to an underlying stream
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count;
+
+        public CountingOutputStream(final OutputStream out, final long initialCount) {
+            this.out = out;
+            this.count = initialCount;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        public long count() {
+            return count;
+        }
+    }
+}
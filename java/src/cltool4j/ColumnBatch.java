@@ -0,0 +1,171 @@
+package cltool4j;
+
+import java.util.List;
+
+import cltool4j.args4j.SliceParser;
+
+/**
+ * A batch of delimited input lines, exposed as columns. Lines are tokenized lazily (on first access, and
+ * therefore generally on the worker thread processing the batch) with a {@link FieldTokenizer}, recording
+ * only field offsets for the projected columns. Column accessors then parse or extract an entire column at a
+ * time.
+ * 
+ * @see ColumnBatchCommandlineTool
+ */
+public final class ColumnBatch {
+
+    private final List<String> lines;
+    private final char delimiter;
+    private final boolean csv;
+    private final int[] columns;
+
+    /** Tokenizes lines, and maps from column index to its index in {@link #columns} */
+    private FieldTokenizer tokenizer;
+
+    /** Field offsets, indexed by slot and row; -1 for fields missing from a line */
+    private int[][] starts;
+    private int[][] ends;
+
+    /** Quoted CSV fields containing escaped quotes must be unescaped; all others are simple substrings */
+    private boolean[][] escaped;
+
+    ColumnBatch(final List<String> lines, final char delimiter, final boolean csv, final int[] columns) {
+        this.lines = lines;
+        this.delimiter = delimiter;
+        this.csv = csv;
+        this.columns = columns;
+    }
+
+    private void tokenize() {
+        if (starts != null) {
+            return;
+        }
+
+        tokenizer = new FieldTokenizer(delimiter, csv, columns);
+        final int rows = lines.size();
+        starts = new int[columns.length][rows];
+        ends = new int[columns.length][rows];
+        escaped = new boolean[columns.length][rows];
+
+        for (int row = 0; row < rows; row++) {
+            tokenizer.tokenize(lines.get(row));
+            for (int slot = 0; slot < columns.length; slot++) {
+                final int column = columns[slot];
+                starts[slot][row] = tokenizer.start(column);
+                ends[slot][row] = tokenizer.end(column);
+                escaped[slot][row] = tokenizer.escaped(column);
+            }
+        }
+    }
+
+    private int slot(final int column) {
+        tokenize();
+        final int slot = tokenizer.projection(column);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Column " + column + " is not projected");
+        }
+        return slot;
+    }
+
+    /**
+     * @return The number of lines in the batch
+     */
+    public int size() {
+        return lines.size();
+    }
+
+    /**
+     * @return The raw input lines
+     */
+    public List<String> lines() {
+        return lines;
+    }
+
+    /**
+     * @param row Row (0-based)
+     * @param column Column (0-based)
+     * @return True if the specified line contains the specified column
+     */
+    public boolean hasField(final int row, final int column) {
+        return starts[slot(column)][row] >= 0;
+    }
+
+    /**
+     * @param row Row (0-based)
+     * @param column Column (0-based)
+     * @return The specified field, or <code>null</code> if the line does not contain that column
+     */
+    public String field(final int row, final int column) {
+        final int slot = slot(column);
+        if (starts[slot][row] < 0) {
+            return null;
+        }
+        final String field = lines.get(row).substring(starts[slot][row], ends[slot][row]);
+        return escaped[slot][row] ? field.replace("\"\"", "\"") : field;
+    }
+
+    /**
+     * @param column Column (0-based)
+     * @return The specified column, as {@link String}s (with <code>null</code> for lines lacking the column)
+     */
+    public String[] stringColumn(final int column) {
+        final String[] values = new String[size()];
+        for (int row = 0; row < values.length; row++) {
+            values[row] = field(row, column);
+        }
+        return values;
+    }
+
+    /**
+     * @param column Column (0-based)
+     * @return The specified column, parsed as integers
+     * @throws NumberFormatException if any field is missing or cannot be parsed
+     */
+    public int[] intColumn(final int column) {
+        final long[] longs = longColumn(column);
+        final int[] values = new int[longs.length];
+        for (int row = 0; row < values.length; row++) {
+            if (longs[row] < Integer.MIN_VALUE || longs[row] > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Integer overflow: " + longs[row]);
+            }
+            values[row] = (int) longs[row];
+        }
+        return values;
+    }
+
+    /**
+     * @param column Column (0-based)
+     * @return The specified column, parsed as longs
+     * @throws NumberFormatException if any field is missing or cannot be parsed
+     */
+    public long[] longColumn(final int column) {
+        final int slot = slot(column);
+        final long[] values = new long[size()];
+        for (int row = 0; row < values.length; row++) {
+            checkPresent(slot, row, column);
+            values[row] = SliceParser.parseLong(lines.get(row), starts[slot][row], ends[slot][row]);
+        }
+        return values;
+    }
+
+    /**
+     * @param column Column (0-based)
+     * @return The specified column, parsed as doubles
+     * @throws NumberFormatException if any field is missing or cannot be parsed
+     */
+    public double[] doubleColumn(final int column) {
+        final int slot = slot(column);
+        final double[] values = new double[size()];
+        for (int row = 0; row < values.length; row++) {
+            checkPresent(slot, row, column);
+            values[row] = SliceParser.parseDouble(lines.get(row), starts[slot][row], ends[slot][row]);
+        }
+        return values;
+    }
+
+    private void checkPresent(final int slot, final int row, final int column) {
+        if (starts[slot][row] < 0) {
+            throw new NumberFormatException("Missing column " + column + " in row " + row);
+        }
+    }
+}
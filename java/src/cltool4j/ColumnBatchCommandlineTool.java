@@ -0,0 +1,67 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import cltool4j.args4j.CmdLineException;
+import cltool4j.args4j.Option;
+
+/**
+ * A variant of {@link BatchCommandlineTool} for delimited (TSV or CSV) input, which exposes each batch as a
+ * {@link ColumnBatch}. Subclasses declare the columns they need once, by implementing {@link #columns()};
+ * each batch then records field offsets for those columns only, and offers whole-column accessors (e.g.
+ * {@link ColumnBatch#doubleColumn(int)}).
+ */
+public abstract class ColumnBatchCommandlineTool extends RecordBatchCommandlineTool<ColumnBatch> {
+
+    @Option(name = "-fs", metaVar = "char", usage = "Field separator (supports \\t, \\xHH, etc.; default tab)")
+    private String fieldSeparatorSpec;
+
+    @Option(name = "-csv", usage = "Comma-separated input, with CSV quoting (overrides -fs)")
+    private boolean csv = false;
+
+    private char fieldSeparator = '\t';
+
+    private int[] columns;
+
+    /**
+     * @return The (0-based) column indices used by this tool. Only these columns will be tokenized.
+     */
+    protected abstract int[] columns();
+
+    /**
+     * Parses <code>-fs</code>, interpreting escape sequences in the input {@link Charset} as for
+     * <code>-record-delimiter</code> (see {@link RecordReader#parseDelimiter(String, Charset)})
+     */
+    @Override
+    void checkArguments() throws Exception {
+        super.checkArguments();
+
+        if (fieldSeparatorSpec != null) {
+            final String separator;
+            try {
+                final Charset charset = inputCharset();
+                separator = new String(RecordReader.parseDelimiter(fieldSeparatorSpec, charset), charset);
+            } catch (final IllegalArgumentException e) {
+                throw new CmdLineException("Illegal -fs: " + e.getMessage());
+            }
+            if (separator.length() != 1) {
+                throw new CmdLineException("-fs must be a single character: " + fieldSeparatorSpec);
+            }
+            fieldSeparator = separator.charAt(0);
+        }
+    }
+
+    @Override
+    public final ColumnBatch nextInput() throws IOException {
+        synchronized (this) {
+            if (columns == null) {
+                columns = columns().clone();
+            }
+            final List<String> lines = nextBatch();
+            // Tokenization is deferred to the worker thread
+            return lines != null ? new ColumnBatch(lines, csv ? ',' : fieldSeparator, csv, columns) : null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.FutureTask;
+
+import cltool4j.ContextRecord.Chunk;
+
+/**
+ * Processes input (from files or STDIN) record-by-record (optionally using multiple threads), as
+ * {@link LinewiseCommandlineTool} does, but each task also sees the records preceding and following its own
+ * (e.g. for <code>grep -C</code>-style tools). The context size is specified by implementing
+ * {@link #contextRecords()}.<br/>
+ * <br/>
+ * 
+ * Context is not copied for each task: records are read into shared, reference-counted chunks, and each
+ * {@link ContextRecord} refers to the (at most 3) chunks containing it and its context. Chunks are reused
+ * once all results referring to them have been output, so memory use is bounded by the number of pending
+ * tasks rather than by the size of the input.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * protected int contextRecords() {
+ *     return contextLines;
+ * }
+ * 
+ * protected FutureTask&lt;String&gt; contextTask(final ContextRecord record) {
+ *     ...
+ *     if (record.record().contains(pattern)) {
+ *         for (int i = -record.before(); i &lt;= record.after(); i++) {
+ *             sb.append(record.get(i));
+ *             ...
+ * </pre>
+ * 
+ * @param <R> Type produced by processing of each record
+ */
+public abstract class ContextCommandlineTool<R> extends ThreadableCommandlineTool<ContextRecord, R> {
+
+    /** Minimum records per chunk (chunks are at least as large as the context size) */
+    int chunkSize = 1024;
+
+    /** Context size; -1 until the first input is read */
+    private int context = -1;
+
+    /** Released chunks, available for reuse */
+    private final Queue<Chunk> freeChunks = new ConcurrentLinkedQueue<Chunk>();
+    int chunksAllocated;
+
+    /** Chunk being filled, and the oldest chunk still referenced by the input thread */
+    private Chunk fill, held;
+
+    /** Chunk containing the next record to be returned, and that record's index within the chunk */
+    private Chunk emit;
+    private int emitIndex;
+
+    private long recordsRead, recordsReturned;
+    private boolean endOfInput;
+
+    /**
+     * @return The number of records preceding and following each record to be made available to its task.
+     *         Called once, before the first record is read.
+     */
+    protected abstract int contextRecords();
+
+    /**
+     * @return a {@link FutureTask} which will process a record (with its context) and return the result
+     */
+    protected abstract FutureTask<R> contextTask(ContextRecord record);
+
+    @Override
+    public final synchronized ContextRecord nextInput() throws IOException {
+        if (context < 0) {
+            context = Math.max(contextRecords(), 0);
+            chunkSize = Math.max(chunkSize, context);
+            emit = held = allocate();
+        }
+
+        // Read ahead until the following context of the next record is available
+        while (!endOfInput && recordsRead - recordsReturned <= context) {
+            final String record = nextRecord();
+            if (record == null) {
+                endOfInput = true;
+                break;
+            }
+            if (fill.full()) {
+                allocate();
+            }
+            recordProvenance(fill, fill.size);
+            fill.records[fill.size++] = record;
+            recordsRead++;
+        }
+
+        if (recordsReturned == recordsRead) {
+            // Release the chunks held by the input thread
+            while (held != null) {
+                final Chunk nextHeld = held == fill ? null : held.next;
+                held.release();
+                held = nextHeld;
+            }
+            return null;
+        }
+
+        if (emitIndex == emit.size) {
+            emit = emit.next;
+            emitIndex = 0;
+        }
+        final ContextRecord record = new ContextRecord(emit, emitIndex, context);
+        attributeInput(emit, emitIndex);
+        emitIndex++;
+        recordsReturned++;
+
+        // Release chunks which later records cannot reach as preceding context
+        while (held != emit && (held.next != emit || emitIndex >= context)) {
+            final Chunk nextHeld = held.next;
+            held.release();
+            held = nextHeld;
+        }
+        return record;
+    }
+
+    /**
+     * Appends a new (or reused) chunk, referenced by the input thread until no later record needs it
+     */
+    private Chunk allocate() {
+        Chunk chunk = freeChunks.poll();
+        if (chunk == null) {
+            chunk = new Chunk(chunkSize, freeChunks);
+            chunksAllocated++;
+        }
+        chunk.retain();
+        chunk.previous = fill;
+        if (fill != null) {
+            fill.next = chunk;
+        }
+        fill = chunk;
+        return chunk;
+    }
+
+    @Override
+    protected final FutureTask<R> task(final ContextRecord record) {
+        return contextTask(record);
+    }
+
+    @Override
+    protected void releaseInput(final ContextRecord record) {
+        record.release();
+    }
+}
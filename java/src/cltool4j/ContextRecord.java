@@ -0,0 +1,206 @@
+package cltool4j;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An input record, with the records preceding and following it (up to the context size specified by
+ * {@link ContextCommandlineTool#contextRecords()}). Context does not extend across input files.<br/>
+ * <br/>
+ * 
+ * Records are not copied into each {@link ContextRecord}; all records reference shared {@link Chunk}s of
+ * input, which are reference-counted and reused once no pending record refers to them.
+ * 
+ * @see ContextCommandlineTool
+ */
+public final class ContextRecord {
+
+    private final Chunk chunk;
+    private final int index;
+
+    /** Adjacent chunks containing context, if any */
+    private final Chunk previous, next;
+
+    private final int before, after;
+
+    /**
+     * Creates a record, retaining the chunks containing it and its context. Called by the input thread.
+     */
+    ContextRecord(final Chunk chunk, final int index, final int context) {
+        this.chunk = chunk;
+        this.index = index;
+        this.previous = index < context ? chunk.previous : null;
+        this.next = index + context >= chunk.size ? chunk.next : null;
+
+        chunk.retain();
+        if (previous != null) {
+            previous.retain();
+        }
+        if (next != null) {
+            next.retain();
+        }
+
+        final int fileIndex = chunk.fileIndices[index];
+        int b = 0;
+        while (b < context && contains(-b - 1) && fileIndex(-b - 1) == fileIndex) {
+            b++;
+        }
+        this.before = b;
+        int a = 0;
+        while (a < context && contains(a + 1) && fileIndex(a + 1) == fileIndex) {
+            a++;
+        }
+        this.after = a;
+    }
+
+    /**
+     * @return The record
+     */
+    public String record() {
+        return chunk.records[index];
+    }
+
+    /**
+     * @param offset Offset from this record (negative for preceding records, 0 for this record)
+     * @return The record at the specified offset, or <code>null</code> if it is outside the available context
+     *         (see {@link #before()} and {@link #after()})
+     */
+    public String get(final int offset) {
+        if (offset < -before || offset > after) {
+            return null;
+        }
+        final int i = index + offset;
+        if (i < 0) {
+            return previous.records[i + previous.capacity()];
+        } else if (i >= chunk.capacity()) {
+            return next.records[i - chunk.capacity()];
+        }
+        return chunk.records[i];
+    }
+
+    /**
+     * @param offset Offset from this record (negative for preceding records, 0 for this record)
+     * @return The line number (starting from 1) of the record at the specified offset, or -1 if it is outside
+     *         the available context or if the record format is not line-oriented
+     */
+    public long lineNumber(final int offset) {
+        if (offset < -before || offset > after) {
+            return -1;
+        }
+        final int i = index + offset;
+        if (i < 0) {
+            return previous.lines[i + previous.capacity()];
+        } else if (i >= chunk.capacity()) {
+            return next.lines[i - chunk.capacity()];
+        }
+        return chunk.lines[i];
+    }
+
+    /**
+     * @return The number of preceding records available (less than the context size at the beginning of an
+     *         input file)
+     */
+    public int before() {
+        return before;
+    }
+
+    /**
+     * @return The number of following records available (less than the context size at the end of an input
+     *         file)
+     */
+    public int after() {
+        return after;
+    }
+
+    private boolean contains(final int offset) {
+        final int i = index + offset;
+        if (i < 0) {
+            return previous != null && i + previous.capacity() >= 0;
+        }
+        return i < chunk.size || (next != null && i - chunk.capacity() < next.size);
+    }
+
+    private int fileIndex(final int offset) {
+        final int i = index + offset;
+        if (i < 0) {
+            return previous.fileIndices[i + previous.capacity()];
+        } else if (i >= chunk.capacity()) {
+            return next.fileIndices[i - chunk.capacity()];
+        }
+        return chunk.fileIndices[i];
+    }
+
+    /**
+     * Releases the chunks referenced by this record. Called by the output step, once no task for this record
+     * can still be running.
+     */
+    void release() {
+        chunk.release();
+        if (previous != null) {
+            previous.release();
+        }
+        if (next != null) {
+            next.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return record();
+    }
+
+    /**
+     * A block of consecutive input records, with their provenance. Chunks are filled by the input thread,
+     * and read-only while any {@link ContextRecord} refers to them. A chunk is returned to its pool when its
+     * reference count falls to 0.
+     */
+    static final class Chunk {
+
+        final String[] records;
+        final int[] fileIndices;
+        final long[] recordNumbers, lines, offsets;
+        int size;
+
+        /** Adjacent chunks. Linked by the input thread, and unlinked when the chunk is released */
+        Chunk previous, next;
+
+        private final AtomicInteger references = new AtomicInteger();
+        private final Queue<Chunk> pool;
+
+        Chunk(final int capacity, final Queue<Chunk> pool) {
+            this.records = new String[capacity];
+            this.fileIndices = new int[capacity];
+            this.recordNumbers = new long[capacity];
+            this.lines = new long[capacity];
+            this.offsets = new long[capacity];
+            this.pool = pool;
+        }
+
+        /**
+         * @return The number of records in the chunk when full. Only the last chunk of the input is not full,
+         *         so a record's position in the following chunk is measured from the capacity, not the
+         *         (possibly still growing) size.
+         */
+        int capacity() {
+            return records.length;
+        }
+
+        boolean full() {
+            return size == records.length;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                Arrays.fill(records, 0, size, null);
+                size = 0;
+                previous = next = null;
+                pool.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements <code>-daemon</code> and <code>-connect</code>. A daemon runs
+ * {@link BaseCommandlineTool#setup()} once, and then executes jobs submitted by clients (the same tool, run
+ * with <code>-connect</code>), so expensive setup (e.g. loading models) and JIT warmup are amortized across
+ * invocations.<br/>
+ * <br/>
+ * 
+ * Each job runs in its own thread, on a new instance of the tool class, which shares the daemon's setup
+ * state (see {@link BaseCommandlineTool#runJob(BaseCommandlineTool, ExecutionContext, String[])}), with the
+ * client's arguments, and an {@link ExecutionContext} reading the client's STDIN and writing to its STDOUT
+ * and STDERR. Jobs may run concurrently, so setup state must be safe to read from multiple threads (as it
+ * must be for {@link ThreadableCommandlineTool}s in any case), and tools must read and write through
+ * {@link BaseCommandlineTool#context()} rather than {@link System#in} and {@link System#out}. Logging is
+ * configured by the daemon. The client exits with the job's exit status.<br/>
+ * <br/>
+ * 
+ * The daemon listens on a loopback TCP port (Java 7 does not support Unix domain sockets), and writes the
+ * port and a random token to the address file, readable only by its owner; clients must present the token.
+ * The daemon exits when the address file is deleted.
+ */
+final class Daemon {
+
+    /** Frame types sent from the daemon to a client */
+    private final static byte STDOUT = 1, STDERR = 2, EXIT = 3;
+
+    private final static int HANDSHAKE_TIMEOUT = 30000;
+
+    private final static int BUFFER_SIZE = 65536;
+
+    private Daemon() {
+    }
+
+    /**
+     * Serves jobs until the address file is deleted
+     * 
+     * @param tool Daemon tool, after {@link BaseCommandlineTool#setup()}
+     * @param addressFile File to which the daemon address is written
+     * @throws IOException if the daemon cannot listen or write its address file
+     */
+    static void serve(final BaseCommandlineTool tool, final File addressFile) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            final String token = Long.toHexString(new SecureRandom().nextLong());
+            writeAddress(addressFile, server.getLocalPort() + ":" + token);
+            BaseLogger.singleton().info(
+                    "Listening on " + server.getLocalSocketAddress() + " (" + addressFile + ")");
+
+            server.setSoTimeout(1000);
+            final ExecutorService jobs = Executors.newCachedThreadPool();
+            try {
+                while (addressFile.exists()) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (final SocketTimeoutException e) {
+                        continue;
+                    }
+                    jobs.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                serveJob(tool, socket, token);
+                            } catch (final IOException e) {
+                                BaseLogger.singleton().warning("Job failed: " + e.getMessage());
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (final IOException ignore) {
+                                }
+                            }
+                        }
+                    });
+                }
+                BaseLogger.singleton().info("Address file removed; exiting");
+            } finally {
+                // Let running jobs complete
+                jobs.shutdown();
+                try {
+                    jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Writes the daemon address, readable only by the current user
+     */
+    private static void writeAddress(final File addressFile, final String address) throws IOException {
+        final File tmp = new File(addressFile.getPath() + ".tmp");
+        tmp.delete();
+        if (!tmp.createNewFile()) {
+            throw new IOException("Unable to create " + tmp);
+        }
+        tmp.setReadable(false, false);
+        tmp.setReadable(true, true);
+        Files.write(tmp.toPath(), address.getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp.toPath(), addressFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        addressFile.deleteOnExit();
+    }
+
+    /**
+     * Executes a single job, reading input from and writing output to the client
+     */
+    private static void serveJob(final BaseCommandlineTool tool, final Socket socket, final String token)
+            throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                BUFFER_SIZE));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                BUFFER_SIZE));
+        if (!token.equals(in.readUTF())) {
+            BaseLogger.singleton().warning("Rejected connection from " + socket.getRemoteSocketAddress());
+            return;
+        }
+        final String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(in);
+        }
+        socket.setSoTimeout(0);
+        BaseLogger.singleton().fine("Running job: " + Arrays.toString(args));
+
+        final PrintStream jobOut = new PrintStream(new BufferedOutputStream(
+                new FrameOutputStream(out, STDOUT), BUFFER_SIZE), false);
+        final PrintStream jobErr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+
+        // Each job has its own properties, so its -O options do not affect the daemon or other jobs
+        final ConfigProperties properties = new ConfigProperties();
+        properties.mergeOver(tool.context().properties());
+        final ExecutionContext context = new ExecutionContext(new FrameInputStream(in), jobOut, jobErr,
+                properties);
+
+        int status = 1;
+        try {
+            status = BaseCommandlineTool.createTool(tool.getClass()).runJob(tool, context, args);
+        } catch (final RuntimeException e) {
+            e.printStackTrace(jobErr);
+        } finally {
+            jobOut.flush();
+            jobErr.flush();
+        }
+
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+
+        // Wait for the client to close the connection, discarding any unread input, so the client reads the
+        // exit status before the connection is reset
+        socket.shutdownOutput();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        final byte[] discard = new byte[BUFFER_SIZE];
+        try {
+            while (in.read(discard) >= 0) {
+            }
+        } catch (final SocketTimeoutException ignore) {
+        }
+    }
+
+    /**
+     * Submits a job to a daemon, and copies its output to STDOUT and STDERR
+     * 
+     * @param tool Client tool, with arguments parsed
+     * @param addressFile Daemon address file
+     * @return Exit status of the job
+     * @throws IOException if the daemon cannot be reached, or closes the connection before the job completes
+     */
+    static int submit(final BaseCommandlineTool tool, final File addressFile) throws IOException {
+        final String[] address = new String(Files.readAllBytes(addressFile.toPath()),
+                StandardCharsets.US_ASCII).trim().split(":");
+        if (address.length != 2) {
+            throw new IOException("Invalid daemon address file: " + addressFile);
+        }
+        final List<String> args = jobArguments(tool);
+
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0]));
+        try {
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                    BUFFER_SIZE));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), BUFFER_SIZE));
+            out.writeUTF(address[1]);
+            out.writeInt(args.size());
+            for (final String arg : args) {
+                writeString(out, arg);
+            }
+            out.flush();
+
+            // The daemon reads input files itself, so STDIN is only forwarded if there are none
+            final InputStream stdin = tool.inputFiles.length == 0 ? tool.context().input() : null;
+            final Thread forwarder = new Thread("stdin-forwarder") {
+                @Override
+                public void run() {
+                    try {
+                        if (stdin != null) {
+                            final byte[] buf = new byte[BUFFER_SIZE];
+                            for (int n = stdin.read(buf); n >= 0; n = stdin.read(buf)) {
+                                if (n > 0) {
+                                    out.writeInt(n);
+                                    out.write(buf, 0, n);
+                                    out.flush();
+                                }
+                            }
+                        }
+                        out.writeInt(0);
+                        out.flush();
+                    } catch (final IOException ignore) {
+                        // The job has completed (or failed) without reading all input
+                    }
+                }
+            };
+            forwarder.setDaemon(true);
+            forwarder.start();
+
+            final PrintStream stdout = tool.context().output(), stderr = tool.context().errorOutput();
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (true) {
+                final byte type;
+                try {
+                    type = in.readByte();
+                } catch (final EOFException e) {
+                    throw new IOException("Daemon closed the connection");
+                }
+                if (type == EXIT) {
+                    stdout.flush();
+                    return in.readInt();
+                }
+                final int length = in.readInt();
+                if (length > buf.length) {
+                    buf = new byte[length];
+                }
+                in.readFully(buf, 0, length);
+                final PrintStream target = type == STDERR ? stderr : stdout;
+                target.write(buf, 0, length);
+                target.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return The client's arguments, excluding <code>-connect</code>, with input files as absolute paths
+     *         (other relative paths are resolved in the daemon's working directory)
+     */
+    private static List<String> jobArguments(final BaseCommandlineTool tool) {
+        final Set<String> inputFiles = new HashSet<String>(Arrays.asList(tool.inputFiles));
+        final String[] arguments = tool.arguments();
+        final List<String> args = new ArrayList<String>();
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].equals("-connect")) {
+                i++;
+            } else if (inputFiles.contains(arguments[i])) {
+                args.add(new File(arguments[i]).getAbsolutePath());
+            } else {
+                args.add(arguments[i]);
+            }
+        }
+        return args;
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes STDOUT or STDERR output to a client as frames
+     */
+    private static final class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameOutputStream(final DataOutputStream out, final byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Reads STDIN frames from a client, until an empty frame
+     */
+    private static final class FrameInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private int remaining;
+        private boolean eof;
+
+        FrameInputStream(final DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (remaining == 0) {
+                if (eof) {
+                    return -1;
+                }
+                remaining = in.readInt();
+                eof = remaining == 0;
+            }
+            final int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("Client closed the connection");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(remaining, in.available());
+        }
+    }
+}
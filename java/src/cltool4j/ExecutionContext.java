@@ -0,0 +1,134 @@
+package cltool4j;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * The input, output, error output, and configuration of a single tool run. Command-line runs use
+ * {@link #system()}, which wraps {@link System#in}, {@link System#out}, {@link System#err}, and
+ * {@link GlobalConfigProperties}. Programs embedding a tool supply their own context to
+ * {@link BaseCommandlineTool#execute(ExecutionContext, String...)}, so multiple tools can run concurrently in
+ * a single JVM.<br/>
+ * <br/>
+ * 
+ * Tools which read or write directly (rather than through {@link BaseCommandlineTool#inputLines()},
+ * {@link ThreadableCommandlineTool#output(Object)}, etc.) should use {@link BaseCommandlineTool#context()}
+ * instead of {@link System#in} and {@link System#out} if they are to be embedded.
+ */
+public final class ExecutionContext {
+
+    private final InputStream input;
+    private final PrintStream output;
+    private final PrintStream errorOutput;
+    private final ConfigProperties properties;
+    private final Charset outputCharset;
+
+    /** True if this context wraps the JVM's standard streams */
+    private final boolean system;
+
+    /**
+     * @param input Tool input (in place of STDIN)
+     * @param output Tool output (in place of STDOUT)
+     * @param errorOutput Error and usage output (in place of STDERR)
+     * @param properties Configuration properties (in place of {@link GlobalConfigProperties}); options
+     *            specified with <code>-O</code> are added to these properties
+     */
+    public ExecutionContext(final InputStream input, final PrintStream output, final PrintStream errorOutput,
+            final ConfigProperties properties) {
+        this(input, output, errorOutput, properties, Charset.defaultCharset(), false);
+    }
+
+    /**
+     * @param input Tool input (in place of STDIN)
+     * @param output Tool output (in place of STDOUT)
+     * @param errorOutput Error and usage output (in place of STDERR)
+     * @param properties Configuration properties (in place of {@link GlobalConfigProperties}); options
+     *            specified with <code>-O</code> are added to these properties
+     * @param outputCharset The {@link Charset} with which <code>output</code> encodes text. Output written as
+     *            bytes (e.g. {@link RowWritable} results) is encoded with the same {@link Charset}.
+     */
+    public ExecutionContext(final InputStream input, final PrintStream output, final PrintStream errorOutput,
+            final ConfigProperties properties, final Charset outputCharset) {
+        this(input, output, errorOutput, properties, outputCharset, false);
+    }
+
+    private ExecutionContext(final InputStream input, final PrintStream output, final PrintStream errorOutput,
+            final ConfigProperties properties, final Charset outputCharset, final boolean system) {
+        this.input = input;
+        this.output = output;
+        this.errorOutput = errorOutput;
+        this.properties = properties;
+        this.outputCharset = outputCharset;
+        this.system = system;
+    }
+
+    /**
+     * @return A context wrapping the current {@link System#in}, {@link System#out}, and {@link System#err},
+     *         and {@link GlobalConfigProperties}
+     */
+    public static ExecutionContext system() {
+        return new ExecutionContext(System.in, System.out, System.err, GlobalConfigProperties.singleton(),
+                Charset.defaultCharset(), true);
+    }
+
+    public InputStream input() {
+        return input;
+    }
+
+    public PrintStream output() {
+        return output;
+    }
+
+    public PrintStream errorOutput() {
+        return errorOutput;
+    }
+
+    public ConfigProperties properties() {
+        return properties;
+    }
+
+    /**
+     * @return The {@link Charset} in which output is encoded (the platform default, unless specified)
+     */
+    public Charset outputCharset() {
+        return outputCharset;
+    }
+
+    /**
+     * @return True if this context wraps the JVM's standard streams (in which case redirecting the context
+     *         also redirects {@link System#in} or {@link System#out}, for tools which use them directly)
+     */
+    boolean isSystem() {
+        return system;
+    }
+
+    /**
+     * Returns a context for a tool run on behalf of this one (e.g. a {@link ToolChain} stage, or a daemon
+     * job), with the same error output and output {@link Charset}, and a copy of the properties, so
+     * <code>-O</code> options of one run do not affect this context's properties (or those of other runs)
+     * 
+     * @param newInput Input of the new run
+     * @param newOutput Output of the new run, encoding text with {@link #outputCharset()}
+     * @return A new context
+     */
+    ExecutionContext fork(final InputStream newInput, final PrintStream newOutput) {
+        final ConfigProperties newProperties = new ConfigProperties();
+        newProperties.mergeOver(properties);
+        return new ExecutionContext(newInput, newOutput, errorOutput, newProperties, outputCharset, false);
+    }
+
+    /**
+     * @return A copy of this context, reading from the specified input (e.g. concatenated input files)
+     */
+    ExecutionContext withInput(final InputStream newInput) {
+        return new ExecutionContext(newInput, output, errorOutput, properties, outputCharset, system);
+    }
+
+    /**
+     * @return A copy of this context, writing to the specified output (e.g. <code>-output-file</code>)
+     */
+    ExecutionContext withOutput(final PrintStream newOutput) {
+        return new ExecutionContext(input, newOutput, errorOutput, properties, outputCharset, system);
+    }
+}
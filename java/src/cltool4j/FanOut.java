@@ -0,0 +1,312 @@
+package cltool4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs several {@link ThreadableCommandlineTool}s over a single read of the input. The input is read,
+ * decompressed, decoded, and split into records once, and each batch of records is shared by all tools (in
+ * place of their own input). Each tool runs with its own arguments (e.g. its own <code>-xt</code> thread
+ * count), and writes to its own output file.<br/>
+ * <br/>
+ * 
+ * Each tool receives batches through a bounded queue, so input is read no faster than the slowest tool
+ * consumes it. A tool which finishes early (or fails) no longer receives input, and the others continue;
+ * {@link #execute(ExecutionContext, String...)} throws the first failure after all tools complete.<br/>
+ * <br/>
+ * 
+ * Tools receive records through {@link ThreadableCommandlineTool#nextRecord()}, so the record format and
+ * input {@link Charset} are specified for the fan-out (see {@link #records(RecordFormat, String, int)} and
+ * {@link #charset(Charset)}). Options which control reading input (<code>-records</code>,
+ * <code>-lines</code>, <code>-shard</code>, <code>-checkpoint</code>, etc.) cannot be honored for individual
+ * tools, and are rejected by {@link #add(ThreadableCommandlineTool, File, String...)}; other options (e.g.
+ * <code>-max-records</code>) apply to each tool as usual. Tools which read input directly (e.g.
+ * {@link BinaryCommandlineTool}) are not supported.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * new FanOut().add(new ErrorCounts(), new File("errors.txt"), "-xt", "2")
+ *         .add(new SessionStats(), new File("sessions.txt"), "-xt", "8", "-batch", "100")
+ *         .execute(ExecutionContext.system(), logFiles);
+ * </pre>
+ */
+public final class FanOut {
+
+    /** Records per batch */
+    private final static int BATCH_SIZE = 256;
+
+    /** Batches queued for each tool */
+    private final static int QUEUE_CAPACITY = 64;
+
+    /** Input options which do not apply to records shared by a fan-out */
+    private final static Set<String> INPUT_OPTIONS = new HashSet<String>(Arrays.asList("-records",
+            "-record-delimiter", "-record-lines", "-lines", "-index", "-charset", "-shard", "-shard-by",
+            "-checkpoint", "-resume"));
+
+    private final List<Target> targets = new ArrayList<Target>();
+
+    private RecordFormat recordFormat = RecordFormat.line;
+    private String recordDelimiter;
+    private int recordLines = 1;
+    private Charset charset = Charset.defaultCharset();
+
+    /**
+     * Adds a tool
+     * 
+     * @param tool Tool
+     * @param outputFile Output file for the tool (truncated if it exists)
+     * @param args Command-line arguments for the tool (excluding input files and input options)
+     * @return This fan-out
+     * @throws IllegalArgumentException if the tool reads its input directly, or if <code>args</code>
+     *             include input options (e.g. <code>-records</code> or <code>-shard</code>)
+     */
+    public FanOut add(final ThreadableCommandlineTool<?, ?> tool, final File outputFile,
+            final String... args) {
+        if (!tool.opensInputFiles()) {
+            throw new IllegalArgumentException(tool.getClass().getSimpleName()
+                    + " reads its input directly, and cannot share input");
+        }
+        for (final String arg : args) {
+            if (INPUT_OPTIONS.contains(arg)) {
+                throw new IllegalArgumentException(arg + " is not supported for tools in a fan-out");
+            }
+        }
+        targets.add(new Target(tool, outputFile, args));
+        return this;
+    }
+
+    /**
+     * Sets the input record format (the default is single lines)
+     * 
+     * @param format Record format
+     * @param delimiter Record delimiter for {@link RecordFormat#delimiter}
+     * @param lines Lines per record for {@link RecordFormat#lines}
+     * @return This fan-out
+     */
+    public FanOut records(final RecordFormat format, final String delimiter, final int lines) {
+        this.recordFormat = format;
+        this.recordDelimiter = delimiter;
+        this.recordLines = lines;
+        return this;
+    }
+
+    /**
+     * Sets the input {@link Charset} (the default is the platform default)
+     * 
+     * @param inputCharset Input charset
+     * @return This fan-out
+     */
+    public FanOut charset(final Charset inputCharset) {
+        this.charset = inputCharset;
+        return this;
+    }
+
+    /**
+     * Reads the input once, executing all tools concurrently, and waits for them to complete
+     * 
+     * @param context Input (if no input files are specified), error output, output
+     *            {@link java.nio.charset.Charset}, and configuration of all tools. Each tool's
+     *            <code>-O</code> options are added to its own copy of the configuration.
+     * @param inputFiles Input files (plain or GZIP)
+     * @throws Exception the first failure of any tool, or an error reading input
+     */
+    public void execute(final ExecutionContext context, final String... inputFiles) throws Exception {
+        if (targets.isEmpty()) {
+            throw new IllegalStateException("No tools to execute");
+        }
+        for (final String filename : inputFiles) {
+            if (!new File(filename).exists()) {
+                throw new FileNotFoundException("Unable to find file: " + filename);
+            }
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final Target target : targets) {
+            if (target.tool.recordFeed != null) {
+                throw new IllegalStateException(target.tool.getClass().getSimpleName()
+                        + " is already executing in a fan-out");
+            }
+            target.feed = new ToolChain.Link<List<String>>(QUEUE_CAPACITY);
+            target.tool.recordFeed = target.feed;
+            final PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(
+                    target.outputFile), 65536), false, context.outputCharset().name());
+            final ExecutionContext toolContext = context.fork(new ByteArrayInputStream(new byte[0]), output);
+
+            threads.add(new Thread("fan-out-" + target.tool.getClass().getSimpleName()) {
+                @Override
+                public void run() {
+                    try {
+                        target.tool.execute(toolContext, target.args);
+                    } catch (final Throwable e) {
+                        BaseLogger.singleton().severe(
+                                target.tool.getClass().getSimpleName() + " failed: " + e.getMessage());
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    } finally {
+                        // Stop sending input to this tool
+                        target.feed.close();
+                        output.close();
+                    }
+                }
+            });
+        }
+
+        try {
+            for (final Thread t : threads) {
+                t.start();
+            }
+            if (inputFiles.length == 0) {
+                read(context.input());
+            } else {
+                for (final String filename : inputFiles) {
+                    if (!read(BaseCommandlineTool.fileAsInputStream(filename))) {
+                        break;
+                    }
+                }
+            }
+        } catch (final Exception e) {
+            synchronized (failure) {
+                if (failure[0] == null) {
+                    failure[0] = e;
+                }
+            }
+            for (final Target target : targets) {
+                target.tool.requestStop();
+            }
+        } finally {
+            for (final Target target : targets) {
+                target.feed.finish();
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+            for (final Target target : targets) {
+                target.tool.recordFeed = null;
+            }
+        }
+
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+    }
+
+    /**
+     * Reads records from an input source, and sends each batch to all tools
+     * 
+     * @return False if all tools have finished
+     */
+    private boolean read(final InputStream input) throws IOException, InterruptedException {
+        final RecordReader reader = recordFormat.reader(input, charset, recordDelimiter, recordLines);
+        try {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            for (String record = reader.readRecord(); record != null; record = reader.readRecord()) {
+                batch.add(record);
+                if (batch.size() == BATCH_SIZE) {
+                    if (!send(batch)) {
+                        return false;
+                    }
+                    batch = new ArrayList<String>(BATCH_SIZE);
+                }
+            }
+            return batch.isEmpty() || send(batch);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Sends a batch to all tools still consuming input, waiting for space in each tool's queue
+     * 
+     * @return False if all tools have finished
+     */
+    private boolean send(final List<String> batch) throws InterruptedException {
+        final List<String> shared = Collections.unmodifiableList(batch);
+        boolean consumed = false;
+        for (final Target target : targets) {
+            consumed |= target.feed.put(shared);
+        }
+        return consumed;
+    }
+
+    private static final class Target {
+        final ThreadableCommandlineTool<?, ?> tool;
+        final File outputFile;
+        final String[] args;
+        ToolChain.Link<List<String>> feed;
+
+        Target(final ThreadableCommandlineTool<?, ?> tool, final File outputFile, final String[] args) {
+            this.tool = tool;
+            this.outputFile = outputFile;
+            this.args = args.clone();
+        }
+    }
+
+    /**
+     * Reads records from the batches sent to a tool
+     */
+    static final class FeedReader extends RecordReader {
+
+        private final ToolChain.Link<List<String>> feed;
+        private List<String> batch = Collections.emptyList();
+        private int index;
+        private long records;
+
+        FeedReader(final ToolChain.Link<List<String>> feed) {
+            this.feed = feed;
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            while (index == batch.size()) {
+                final List<String> next;
+                try {
+                    next = feed.take();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (next == null) {
+                    return null;
+                }
+                batch = next;
+                index = 0;
+            }
+            records++;
+            return batch.get(index++);
+        }
+
+        /**
+         * @return The number of the most recent record (which is its line number for single-line records)
+         */
+        @Override
+        public long lineNumber() {
+            return records;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package cltool4j;
+
+import java.util.Arrays;
+
+import cltool4j.args4j.SliceParser;
+
+/**
+ * Splits delimited lines (e.g. TSV or CSV) into fields without copying them. The tokenizer records only the
+ * start and end offsets of each field within the original line, and (optionally) only for a declared set of
+ * projected columns, so a tool which needs 2 columns of a 40-column file neither allocates the other 38
+ * {@link String}s nor scans beyond the last column it needs. Typed accessors ({@link #intField(int)},
+ * {@link #longField(int)}, {@link #doubleField(int)}) parse directly from the line without allocating.<br/>
+ * <br/>
+ * 
+ * In CSV mode, fields may be enclosed in double quotes, in which case they may contain the delimiter, and
+ * embedded quotes are escaped by doubling them (<code>""</code>). Quoted fields containing newlines are not
+ * supported, since input is tokenized line-by-line.<br/>
+ * <br/>
+ * 
+ * A {@link FieldTokenizer} is reused from line to line, and is not thread-safe; threaded tools should
+ * maintain one per thread (e.g., using {@link ThreadLocalLinewiseClTool}). Values returned by
+ * {@link #field(int)} are only valid until the next call to {@link #tokenize(CharSequence)}.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * // Columns 0 and 3 of a tab-delimited file
+ * final FieldTokenizer tokenizer = FieldTokenizer.tsv(0, 3);
+ * ...
+ * tokenizer.tokenize(line);
+ * if (tokenizer.fieldEquals(0, &quot;GET&quot;)) {
+ *     total += tokenizer.longField(3);
+ * }
+ * </pre>
+ */
+public class FieldTokenizer {
+
+    private final char delimiter;
+    private final boolean csv;
+
+    /** Projected columns, or <code>null</code> to record all columns */
+    private final int[] columns;
+
+    /** Maps from column index to the slot in which its offsets are stored (-1 for unprojected columns) */
+    private final int[] slotsByColumn;
+
+    private CharSequence line;
+    private int fieldCount;
+
+    private int[] starts;
+    private int[] ends;
+    /** True for quoted fields containing escaped (doubled) quotes */
+    private boolean[] escaped;
+
+    private Slice[] slices;
+    private StringBuilder[] unescapedFields;
+
+    /**
+     * @param delimiter Field delimiter
+     * @param csv Interpret CSV-style quoting
+     * @param columns Columns to project (0-based). If none are specified, all columns will be recorded.
+     * @throws IllegalArgumentException if a column is negative, or is specified more than once
+     */
+    public FieldTokenizer(final char delimiter, final boolean csv, final int... columns) {
+        this.delimiter = delimiter;
+        this.csv = csv;
+
+        if (columns == null || columns.length == 0) {
+            this.columns = null;
+            this.slotsByColumn = null;
+            allocate(16);
+        } else {
+            this.columns = columns.clone();
+            int maxColumn = 0;
+            for (final int column : columns) {
+                if (column < 0) {
+                    throw new IllegalArgumentException("Illegal column: " + column);
+                }
+                maxColumn = Math.max(maxColumn, column);
+            }
+            this.slotsByColumn = new int[maxColumn + 1];
+            Arrays.fill(slotsByColumn, -1);
+            for (int i = 0; i < columns.length; i++) {
+                if (slotsByColumn[columns[i]] >= 0) {
+                    throw new IllegalArgumentException("Duplicate column: " + columns[i]);
+                }
+                slotsByColumn[columns[i]] = i;
+            }
+            allocate(columns.length);
+        }
+    }
+
+    /**
+     * @param columns Columns to project (0-based). If none are specified, all columns will be recorded.
+     * @return A tokenizer for tab-delimited input
+     */
+    public static FieldTokenizer tsv(final int... columns) {
+        return new FieldTokenizer('\t', false, columns);
+    }
+
+    /**
+     * @param columns Columns to project (0-based). If none are specified, all columns will be recorded.
+     * @return A tokenizer for comma-delimited input, with CSV quoting
+     */
+    public static FieldTokenizer csv(final int... columns) {
+        return new FieldTokenizer(',', true, columns);
+    }
+
+    private void allocate(final int slots) {
+        final int previousSlots = starts == null ? 0 : starts.length;
+        starts = starts == null ? new int[slots] : Arrays.copyOf(starts, slots);
+        ends = ends == null ? new int[slots] : Arrays.copyOf(ends, slots);
+        escaped = escaped == null ? new boolean[slots] : Arrays.copyOf(escaped, slots);
+        slices = slices == null ? new Slice[slots] : Arrays.copyOf(slices, slots);
+        unescapedFields = unescapedFields == null ? new StringBuilder[slots] : Arrays.copyOf(unescapedFields,
+                slots);
+        for (int i = previousSlots; i < slots; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    /**
+     * Splits a line into fields, replacing the fields of the previous line. In projected mode, scanning stops
+     * after the last projected column.
+     * 
+     * @param newLine Line to tokenize
+     * @return this tokenizer
+     */
+    public FieldTokenizer tokenize(final CharSequence newLine) {
+        this.line = newLine;
+        if (columns != null) {
+            Arrays.fill(starts, -1);
+        }
+
+        final int length = newLine.length();
+        final int lastColumn = slotsByColumn != null ? slotsByColumn.length - 1 : Integer.MAX_VALUE;
+
+        int column = 0;
+        for (int position = 0;; column++) {
+            int start = position, end, next;
+            boolean containsEscapes = false;
+
+            if (csv && position < length && newLine.charAt(position) == '"') {
+                // Quoted field; find the closing quote, skipping escaped (doubled) quotes
+                start = position + 1;
+                end = start;
+                while (end < length) {
+                    if (newLine.charAt(end) == '"') {
+                        if (end + 1 < length && newLine.charAt(end + 1) == '"') {
+                            containsEscapes = true;
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                // Ignore anything between the closing quote and the next delimiter
+                next = indexOf(newLine, delimiter, Math.min(end + 1, length));
+            } else {
+                next = indexOf(newLine, delimiter, position);
+                end = next < 0 ? length : next;
+            }
+
+            record(column, start, end, containsEscapes);
+
+            if (next < 0 || column == lastColumn) {
+                break;
+            }
+            position = next + 1;
+        }
+        fieldCount = column + 1;
+        return this;
+    }
+
+    private void record(final int column, final int start, final int end, final boolean containsEscapes) {
+        final int slot;
+        if (slotsByColumn == null) {
+            if (column >= starts.length) {
+                allocate(starts.length * 2);
+            }
+            slot = column;
+        } else {
+            slot = slotsByColumn[column];
+            if (slot < 0) {
+                return;
+            }
+        }
+        starts[slot] = start;
+        ends[slot] = end;
+        escaped[slot] = containsEscapes;
+    }
+
+    private static int indexOf(final CharSequence s, final char c, final int fromIndex) {
+        if (s instanceof String) {
+            return ((String) s).indexOf(c, fromIndex);
+        }
+        for (int i = fromIndex; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The line most recently tokenized
+     */
+    public CharSequence line() {
+        return line;
+    }
+
+    /**
+     * @return The number of fields scanned in the current line. In projected mode, scanning stops after the
+     *         last projected column, so this is a lower bound on the number of fields in the line.
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return True if the specified column was found in the current line
+     * @throws IllegalArgumentException if the column is not projected
+     */
+    public boolean hasField(final int column) {
+        return slot(column) >= 0;
+    }
+
+    /**
+     * Returns the slot in which the offsets of <code>column</code> are stored, or -1 if the current line
+     * does not contain that column.
+     */
+    private int slot(final int column) {
+        if (slotsByColumn == null) {
+            return column < fieldCount ? column : -1;
+        }
+        if (column >= slotsByColumn.length || slotsByColumn[column] < 0) {
+            throw new IllegalArgumentException("Column " + column + " is not projected");
+        }
+        final int slot = slotsByColumn[column];
+        return starts[slot] >= 0 ? slot : -1;
+    }
+
+    private int checkedSlot(final int column) {
+        final int slot = slot(column);
+        if (slot < 0) {
+            throw new NumberFormatException("Missing column " + column);
+        }
+        return slot;
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return Start offset of the specified field within the line (excluding any opening quote), or -1 if the
+     *         current line does not contain that column
+     */
+    public int start(final int column) {
+        final int slot = slot(column);
+        return slot >= 0 ? starts[slot] : -1;
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return End offset (exclusive) of the specified field within the line (excluding any closing quote), or
+     *         -1 if the current line does not contain that column
+     */
+    public int end(final int column) {
+        final int slot = slot(column);
+        return slot >= 0 ? ends[slot] : -1;
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return True if the specified field is a quoted CSV field containing escaped quotes, so
+     *         {@link #field(int)} differs from the text between {@link #start(int)} and {@link #end(int)}
+     */
+    public boolean escaped(final int column) {
+        final int slot = slot(column);
+        return slot >= 0 && escaped[slot];
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The index of <code>column</code> in the projected columns, or -1 if it is not projected (or if
+     *         all columns are recorded)
+     */
+    int projection(final int column) {
+        return slotsByColumn != null && column >= 0 && column < slotsByColumn.length ? slotsByColumn[column]
+                : -1;
+    }
+
+    /**
+     * Returns the specified field, as a view of the current line (or, for quoted CSV fields containing
+     * escaped quotes, a reused buffer). The returned value is only valid until the next call to
+     * {@link #tokenize(CharSequence)}; call {@link Object#toString()} to retain it.
+     * 
+     * @param column Column index (0-based)
+     * @return The specified field, or <code>null</code> if the current line does not contain that column
+     */
+    public CharSequence field(final int column) {
+        final int slot = slot(column);
+        if (slot < 0) {
+            return null;
+        }
+
+        if (escaped[slot]) {
+            StringBuilder sb = unescapedFields[slot];
+            if (sb == null) {
+                sb = unescapedFields[slot] = new StringBuilder(ends[slot] - starts[slot]);
+            }
+            sb.setLength(0);
+            for (int i = starts[slot]; i < ends[slot]; i++) {
+                final char c = line.charAt(i);
+                sb.append(c);
+                // Skip the second quote of an escaped pair
+                if (c == '"') {
+                    i++;
+                }
+            }
+            return sb;
+        }
+
+        return slices[slot].set(line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The specified field, as a newly-allocated {@link String}, or <code>null</code> if the current
+     *         line does not contain that column
+     */
+    public String stringField(final int column) {
+        final CharSequence field = field(column);
+        return field != null ? field.toString() : null;
+    }
+
+    /**
+     * Compares a field to a {@link CharSequence} without allocating.
+     * 
+     * @param column Column index (0-based)
+     * @param value Value to compare
+     * @return True if the field is present and equal to <code>value</code>
+     */
+    public boolean fieldEquals(final int column, final CharSequence value) {
+        final CharSequence field = field(column);
+        if (field == null || field.length() != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (field.charAt(i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The specified field, parsed as an integer
+     * @throws NumberFormatException if the field is missing or cannot be parsed
+     */
+    public int intField(final int column) {
+        final int slot = checkedSlot(column);
+        return SliceParser.parseInt(line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The specified field, parsed as a long
+     * @throws NumberFormatException if the field is missing or cannot be parsed
+     */
+    public long longField(final int column) {
+        final int slot = checkedSlot(column);
+        return SliceParser.parseLong(line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The specified field, parsed as a double
+     * @throws NumberFormatException if the field is missing or cannot be parsed
+     */
+    public double doubleField(final int column) {
+        final int slot = checkedSlot(column);
+        return SliceParser.parseDouble(line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param enumClass Enumeration class
+     * @param column Column index (0-based)
+     * @return The enumeration value matching the specified field (by name or alias, case-insensitively)
+     * @throws IllegalArgumentException if the field is missing or matches no value
+     */
+    public <E extends Enum<E>> E enumField(final Class<E> enumClass, final int column) {
+        final int slot = checkedSlot(column);
+        return SliceParser.parseEnum(enumClass, line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * @param column Column index (0-based)
+     * @return The specified field, parsed as an ISO 8601 timestamp (or '@'-prefixed epoch seconds), in
+     *         milliseconds since the epoch
+     * @throws IllegalArgumentException if the field is missing or cannot be parsed
+     */
+    public long timestampField(final int column) {
+        final int slot = checkedSlot(column);
+        return SliceParser.parseTimestamp(line, starts[slot], ends[slot]);
+    }
+
+    /**
+     * A reusable view of a range of a {@link CharSequence}
+     */
+    private final static class Slice implements CharSequence {
+        private CharSequence s;
+        private int start;
+        private int end;
+
+        Slice set(final CharSequence newS, final int newStart, final int newEnd) {
+            this.s = newS;
+            this.start = newStart;
+            this.end = newEnd;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+            return s.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int subStart, final int subEnd) {
+            return s.subSequence(start + subStart, start + subEnd);
+        }
+
+        @Override
+        public String toString() {
+            return s.subSequence(start, end).toString();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Processes JSON-lines input (one JSON value per line, from files or STDIN), optionally using multiple
+ * threads. Subclasses declare the field paths they need once, by implementing {@link #fields()}, and receive
+ * each line as a {@link JsonRecord}, from which those fields are extracted lazily (on the worker thread) with
+ * a single-pass scanner, instead of parsing each line into a tree.<br/>
+ * <br/>
+ * 
+ * Blank lines are skipped. Output remains in input order, as in {@link LinewiseCommandlineTool}.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * protected String[] fields() {
+ *     return new String[] { &quot;user.id&quot;, &quot;event&quot;, &quot;items[0].price&quot; };
+ * }
+ * 
+ * protected FutureTask&lt;String&gt; recordTask(final JsonRecord record) {
+ *     ...
+ *     final long userId = record.longValue(0);
+ *     if (record.valueEquals(1, &quot;purchase&quot;)) {
+ *         ...
+ * </pre>
+ * 
+ * @param <R> Type produced by processing of each record
+ */
+public abstract class JsonCommandlineTool<R> extends ThreadableCommandlineTool<JsonRecord, R> {
+
+    private JsonPaths paths;
+
+    /**
+     * @return Paths of the fields used by this tool (see {@link JsonPaths}). Fields are accessed by their
+     *         index in this array.
+     */
+    protected abstract String[] fields();
+
+    /**
+     * @return a {@link FutureTask} which will process a JSON record and return the result
+     */
+    protected abstract FutureTask<R> recordTask(JsonRecord record);
+
+    /**
+     * @return The compiled paths returned by {@link #fields()}
+     */
+    protected final JsonPaths paths() {
+        synchronized (this) {
+            if (paths == null) {
+                paths = JsonPaths.compile(fields());
+            }
+            return paths;
+        }
+    }
+
+    @Override
+    public final JsonRecord nextInput() throws IOException {
+        final JsonPaths p = paths();
+        for (String line = nextRecord(); line != null; line = nextRecord()) {
+            if (line.trim().length() > 0) {
+                // Scanning is deferred until the task accesses a field
+                return p.record(line);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected final FutureTask<R> task(final JsonRecord record) {
+        return recordTask(record);
+    }
+}
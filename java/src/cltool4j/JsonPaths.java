@@ -0,0 +1,167 @@
+package cltool4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compiled set of JSON field paths, which {@link JsonRecord} extracts from JSON text in a single pass.
+ * Paths are dot-separated object keys, optionally with array indices (e.g. <code>user.id</code>,
+ * <code>items[0].price</code>, or <code>matrix[1][2]</code>). Keys containing '.' or '[' cannot be
+ * addressed.<br/>
+ * <br/>
+ * 
+ * A {@link JsonPaths} instance is immutable, and may be shared by all threads.
+ * 
+ * @see JsonCommandlineTool
+ */
+public final class JsonPaths {
+
+    private final String[] paths;
+
+    /** Root of the path trie */
+    final Node root = new Node();
+
+    private JsonPaths(final String[] paths) {
+        this.paths = paths.clone();
+        for (int i = 0; i < paths.length; i++) {
+            add(paths[i], i);
+        }
+    }
+
+    /**
+     * @param paths Field paths
+     * @return A compiled {@link JsonPaths}, in which each path's index is its position in <code>paths</code>
+     * @throws IllegalArgumentException if a path is malformed or duplicated
+     */
+    public static JsonPaths compile(final String... paths) {
+        return new JsonPaths(paths);
+    }
+
+    /**
+     * @return The number of paths
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * @param index Path index
+     * @return The path at the specified index
+     */
+    public String path(final int index) {
+        return paths[index];
+    }
+
+    /**
+     * @param path Path, as supplied to {@link #compile(String...)}
+     * @return The index of the specified path, or -1 if it was not declared
+     */
+    public int index(final String path) {
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i].equals(path)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param json JSON text (a single object or other value)
+     * @return A {@link JsonRecord} from which the declared paths can be extracted. The text is not scanned
+     *         until the first field is accessed.
+     */
+    public JsonRecord record(final CharSequence json) {
+        return new JsonRecord(json, this);
+    }
+
+    private void add(final String path, final int index) {
+        if (path == null || path.length() == 0) {
+            throw new IllegalArgumentException("Empty JSON path");
+        }
+
+        Node node = root;
+        int i = 0;
+        while (i < path.length()) {
+            if (path.charAt(i) == '[') {
+                final int close = path.indexOf(']', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Malformed JSON path: " + path);
+                }
+                final int arrayIndex;
+                try {
+                    arrayIndex = Integer.parseInt(path.substring(i + 1, close));
+                } catch (final NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed JSON path: " + path);
+                }
+                if (arrayIndex < 0) {
+                    throw new IllegalArgumentException("Malformed JSON path: " + path);
+                }
+                node = node.elementChild(arrayIndex);
+                i = close + 1;
+            } else {
+                if (path.charAt(i) == '.') {
+                    if (node == root || i == path.length() - 1) {
+                        throw new IllegalArgumentException("Malformed JSON path: " + path);
+                    }
+                    i++;
+                }
+                int end = i;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i) {
+                    throw new IllegalArgumentException("Malformed JSON path: " + path);
+                }
+                node = node.memberChild(path.substring(i, end));
+                i = end;
+            }
+        }
+
+        if (node.pathIndex >= 0) {
+            throw new IllegalArgumentException("Duplicate JSON path: " + path);
+        }
+        node.pathIndex = index;
+    }
+
+    /**
+     * A node in the path trie, corresponding to a JSON value which is either extracted or contains values
+     * which are.
+     */
+    static final class Node {
+
+        /** Index of the path ending at this node, or -1 */
+        int pathIndex = -1;
+
+        private final List<String> memberNameList = new ArrayList<String>();
+        private final List<Node> memberList = new ArrayList<Node>();
+        String[] memberNames = new String[0];
+        Node[] members = new Node[0];
+
+        /** Children by array index (null entries for unused indices) */
+        Node[] elements = new Node[0];
+
+        Node memberChild(final String name) {
+            final int i = memberNameList.indexOf(name);
+            if (i >= 0) {
+                return memberList.get(i);
+            }
+            final Node child = new Node();
+            memberNameList.add(name);
+            memberList.add(child);
+            memberNames = memberNameList.toArray(new String[memberNameList.size()]);
+            members = memberList.toArray(new Node[memberList.size()]);
+            return child;
+        }
+
+        Node elementChild(final int index) {
+            if (index >= elements.length) {
+                elements = Arrays.copyOf(elements, index + 1);
+            }
+            if (elements[index] == null) {
+                elements[index] = new Node();
+            }
+            return elements[index];
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package cltool4j;
+
+import java.util.Arrays;
+
+import cltool4j.args4j.SliceParser;
+
+/**
+ * A single JSON value (generally one line of JSON-lines input), from which a declared set of
+ * {@link JsonPaths} is extracted lazily. The first field access scans the text once, recording only the
+ * offsets of the declared values; objects and arrays containing no declared paths are skipped without
+ * examining their keys, and scanning stops as soon as every declared path has been found. No tree is built,
+ * and numeric, boolean, enum, and timestamp accessors parse directly from the text.<br/>
+ * <br/>
+ * 
+ * Fields are addressed by their index in the {@link JsonPaths} (i.e., their declaration order). If a key
+ * occurs more than once in an object, the first occurrence is used. Malformed JSON is reported with an
+ * {@link IllegalArgumentException} when the record is scanned.<br/>
+ * <br/>
+ * 
+ * A {@link JsonRecord} is not thread-safe, but is generally created and consumed by a single task.
+ */
+public final class JsonRecord {
+
+    private final CharSequence json;
+    private final JsonPaths paths;
+
+    /** Value offsets, by path index (-1 for paths not present). Strings include their quotes. */
+    private int[] starts;
+    private int[] ends;
+    private int found;
+
+    JsonRecord(final CharSequence json, final JsonPaths paths) {
+        this.json = json;
+        this.paths = paths;
+    }
+
+    /**
+     * @return The JSON text
+     */
+    public CharSequence json() {
+        return json;
+    }
+
+    /**
+     * @return The paths extracted from this record
+     */
+    public JsonPaths paths() {
+        return paths;
+    }
+
+    /**
+     * @param path Path index
+     * @return True if the record contains the specified path (including values which are JSON
+     *         <code>null</code>)
+     */
+    public boolean has(final int path) {
+        scan();
+        return starts[path] >= 0;
+    }
+
+    /**
+     * @param path Path index
+     * @return True if the specified path is missing or JSON <code>null</code>
+     */
+    public boolean isNull(final int path) {
+        scan();
+        return starts[path] < 0 || rawEquals(path, "null");
+    }
+
+    /**
+     * @param path Path index
+     * @return The raw JSON text of the specified value (including quotes, for strings, and the entire
+     *         text of objects and arrays), or <code>null</code> if the path is missing
+     */
+    public String raw(final int path) {
+        scan();
+        return starts[path] >= 0 ? json.subSequence(starts[path], ends[path]).toString() : null;
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value as a {@link String} (unescaped, for JSON strings; the raw text for other
+     *         values), or <code>null</code> if the path is missing or JSON <code>null</code>
+     */
+    public String string(final int path) {
+        if (isNull(path)) {
+            return null;
+        }
+        final int start = starts[path], end = ends[path];
+        if (json.charAt(start) != '"') {
+            return json.subSequence(start, end).toString();
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (json.charAt(i) == '\\') {
+                return unescape(json, start + 1, end - 1).toString();
+            }
+        }
+        return json.subSequence(start + 1, end - 1).toString();
+    }
+
+    /**
+     * Compares the specified value with <code>value</code>, without allocating (unless the JSON string
+     * contains escape sequences)
+     * 
+     * @param path Path index
+     * @param value Expected value
+     * @return True if the specified value is a string (or other scalar) equal to <code>value</code>
+     */
+    public boolean valueEquals(final int path, final CharSequence value) {
+        if (isNull(path)) {
+            return false;
+        }
+        int start = starts[path], end = ends[path];
+        if (json.charAt(start) == '"') {
+            start++;
+            end--;
+            for (int i = start; i < end; i++) {
+                if (json.charAt(i) == '\\') {
+                    return unescape(json, start, end).toString().contentEquals(value);
+                }
+            }
+        }
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (json.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value, parsed as an integer (from a JSON number or a quoted number)
+     * @throws NumberFormatException if the path is missing, null, or not an integer
+     */
+    public int intValue(final int path) {
+        final int start = scalarStart(path);
+        return SliceParser.parseInt(json, start, scalarEnd(path, start));
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value, parsed as a long (from a JSON number or a quoted number)
+     * @throws NumberFormatException if the path is missing, null, or not an integer
+     */
+    public long longValue(final int path) {
+        final int start = scalarStart(path);
+        return SliceParser.parseLong(json, start, scalarEnd(path, start));
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value, parsed as a double (from a JSON number or a quoted number)
+     * @throws NumberFormatException if the path is missing, null, or not a number
+     */
+    public double doubleValue(final int path) {
+        final int start = scalarStart(path);
+        return SliceParser.parseDouble(json, start, scalarEnd(path, start));
+    }
+
+    /**
+     * @param path Path index
+     * @param defaultValue Value to return if the path is missing or null
+     * @return The specified value, parsed as a long
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public long longValue(final int path, final long defaultValue) {
+        return isNull(path) ? defaultValue : longValue(path);
+    }
+
+    /**
+     * @param path Path index
+     * @param defaultValue Value to return if the path is missing or null
+     * @return The specified value, parsed as a double
+     * @throws NumberFormatException if the value is not a number
+     */
+    public double doubleValue(final int path, final double defaultValue) {
+        return isNull(path) ? defaultValue : doubleValue(path);
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value, which must be JSON <code>true</code> or <code>false</code>
+     * @throws IllegalArgumentException if the path is missing or not a boolean
+     */
+    public boolean booleanValue(final int path) {
+        scan();
+        if (starts[path] >= 0) {
+            if (rawEquals(path, "true")) {
+                return true;
+            }
+            if (rawEquals(path, "false")) {
+                return false;
+            }
+        }
+        throw new IllegalArgumentException("Not a boolean: " + paths.path(path) + "=" + raw(path));
+    }
+
+    /**
+     * @param enumClass Enumeration class
+     * @param path Path index
+     * @return The enumeration value matching the specified string (by name or alias, case-insensitively)
+     * @throws IllegalArgumentException if the path is missing or matches no value
+     */
+    public <E extends Enum<E>> E enumValue(final Class<E> enumClass, final int path) {
+        final int start = scalarStart(path);
+        return SliceParser.parseEnum(enumClass, json, start, scalarEnd(path, start));
+    }
+
+    /**
+     * @param path Path index
+     * @return The specified value, parsed as an ISO 8601 timestamp (or '@'-prefixed epoch seconds), in
+     *         milliseconds since the epoch
+     * @throws IllegalArgumentException if the path is missing or not a timestamp
+     */
+    public long timestamp(final int path) {
+        final int start = scalarStart(path);
+        return SliceParser.parseTimestamp(json, start, scalarEnd(path, start));
+    }
+
+    private boolean rawEquals(final int path, final String s) {
+        if (ends[path] - starts[path] != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (json.charAt(starts[path] + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Start offset of a scalar value, excluding the opening quote of a string
+     */
+    private int scalarStart(final int path) {
+        if (isNull(path)) {
+            throw new NumberFormatException("Missing or null: " + paths.path(path));
+        }
+        return json.charAt(starts[path]) == '"' ? starts[path] + 1 : starts[path];
+    }
+
+    private int scalarEnd(final int path, final int start) {
+        return start != starts[path] ? ends[path] - 1 : ends[path];
+    }
+
+    private void scan() {
+        if (starts != null) {
+            return;
+        }
+        starts = new int[paths.size()];
+        ends = new int[paths.size()];
+        Arrays.fill(starts, -1);
+
+        final int end = scanValue(skipWhitespace(0), paths.root);
+        if (found < starts.length && skipWhitespace(end) != json.length()) {
+            throw malformed(end);
+        }
+    }
+
+    /**
+     * Scans a value, recording the offsets of any declared paths within it
+     * 
+     * @param position Start of the value
+     * @param node Path trie node corresponding to the value
+     * @return Offset following the value, or {@link Integer#MAX_VALUE} if all paths have been found
+     */
+    private int scanValue(int position, final JsonPaths.Node node) {
+        final int start = position;
+        if (position >= json.length()) {
+            throw malformed(position);
+        }
+
+        final char c = json.charAt(position);
+        if (c == '{' && node.members.length > 0) {
+            position = skipWhitespace(position + 1);
+            if (charAt(position) != '}') {
+                while (true) {
+                    if (charAt(position) != '"') {
+                        throw malformed(position);
+                    }
+                    final int keyEnd = skipString(position);
+                    final JsonPaths.Node child = member(node, position + 1, keyEnd - 1);
+                    position = skipWhitespace(keyEnd);
+                    if (charAt(position) != ':') {
+                        throw malformed(position);
+                    }
+                    position = skipWhitespace(position + 1);
+                    position = child != null ? scanValue(position, child) : skipValue(position);
+                    if (position == Integer.MAX_VALUE) {
+                        return position;
+                    }
+                    position = skipWhitespace(position);
+                    if (charAt(position) == ',') {
+                        position = skipWhitespace(position + 1);
+                        continue;
+                    }
+                    if (charAt(position) == '}') {
+                        break;
+                    }
+                    throw malformed(position);
+                }
+            }
+            position++;
+
+        } else if (c == '[' && node.elements.length > 0) {
+            position = skipWhitespace(position + 1);
+            if (charAt(position) != ']') {
+                for (int index = 0;; index++) {
+                    final JsonPaths.Node child = index < node.elements.length ? node.elements[index] : null;
+                    position = child != null ? scanValue(position, child) : skipValue(position);
+                    if (position == Integer.MAX_VALUE) {
+                        return position;
+                    }
+                    position = skipWhitespace(position);
+                    if (charAt(position) == ',') {
+                        position = skipWhitespace(position + 1);
+                        continue;
+                    }
+                    if (charAt(position) == ']') {
+                        break;
+                    }
+                    throw malformed(position);
+                }
+            }
+            position++;
+
+        } else {
+            position = skipValue(position);
+        }
+
+        if (node.pathIndex >= 0 && starts[node.pathIndex] < 0) {
+            starts[node.pathIndex] = start;
+            ends[node.pathIndex] = position;
+            if (++found == starts.length) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return The child of <code>node</code> matching the key between <code>start</code> and
+     *         <code>end</code>, or <code>null</code>
+     */
+    private JsonPaths.Node member(final JsonPaths.Node node, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (json.charAt(i) == '\\') {
+                final String key = unescape(json, start, end).toString();
+                for (int j = 0; j < node.memberNames.length; j++) {
+                    if (node.memberNames[j].equals(key)) {
+                        return node.members[j];
+                    }
+                }
+                return null;
+            }
+        }
+
+        final int length = end - start;
+        for (int j = 0; j < node.memberNames.length; j++) {
+            final String name = node.memberNames[j];
+            if (name.length() != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && json.charAt(start + i) == name.charAt(i)) {
+                i++;
+            }
+            if (i == length) {
+                return node.members[j];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skips over a value (including nested objects and arrays) without interpreting it
+     * 
+     * @return Offset following the value
+     */
+    private int skipValue(int position) {
+        if (position >= json.length()) {
+            throw malformed(position);
+        }
+        final char c = json.charAt(position);
+        if (c == '"') {
+            return skipString(position);
+        }
+
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            for (; position < json.length(); position++) {
+                final char d = json.charAt(position);
+                if (d == '"') {
+                    position = skipString(position) - 1;
+                } else if (d == '{' || d == '[') {
+                    depth++;
+                } else if (d == '}' || d == ']') {
+                    if (--depth == 0) {
+                        return position + 1;
+                    }
+                }
+            }
+            throw malformed(position);
+        }
+
+        // Number or literal
+        final int start = position;
+        while (position < json.length()) {
+            final char d = json.charAt(position);
+            if (d == ',' || d == '}' || d == ']' || d == ' ' || d == '\t' || d == '\r' || d == '\n') {
+                break;
+            }
+            position++;
+        }
+        if (position == start) {
+            throw malformed(position);
+        }
+        return position;
+    }
+
+    /**
+     * @param position Offset of the opening quote
+     * @return Offset following the closing quote
+     */
+    private int skipString(int position) {
+        for (position++; position < json.length(); position++) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                return position + 1;
+            }
+            if (c == '\\') {
+                position++;
+            }
+        }
+        throw malformed(position);
+    }
+
+    /**
+     * @return The character at the specified offset, or NUL if beyond the end of the text
+     */
+    private char charAt(final int position) {
+        return position < json.length() ? json.charAt(position) : '\0';
+    }
+
+    private int skipWhitespace(int position) {
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private IllegalArgumentException malformed(final int position) {
+        return new IllegalArgumentException("Malformed JSON at offset " + position + ": " + json);
+    }
+
+    /**
+     * Decodes JSON escape sequences
+     */
+    static StringBuilder unescape(final CharSequence s, final int start, final int end) {
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c != '\\' || i == end - 1) {
+                sb.append(c);
+                continue;
+            }
+            final char escaped = s.charAt(++i);
+            switch (escaped) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                if (i + 4 >= end) {
+                    throw new IllegalArgumentException("Illegal escape sequence: "
+                            + s.subSequence(start, end));
+                }
+                sb.append((char) Integer.parseInt(s.subSequence(i + 1, i + 5).toString(), 16));
+                i += 4;
+                break;
+            default:
+                // '"', '\\', and '/'
+                sb.append(escaped);
+            }
+        }
+        return sb;
+    }
+}
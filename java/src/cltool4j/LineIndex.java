@@ -0,0 +1,540 @@
+package cltool4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A sparse index from line numbers to byte offsets in a (possibly GZIP-compressed) file, so a tool can start
+ * reading at line N without scanning the preceding lines. The index records a checkpoint at the first line
+ * beginning after every <code>interval</code> bytes of (decompressed) input, and is stored in a compact
+ * sidecar file (<code>file.lidx</code>; see {@link #sidecar(File)}).<br/>
+ * <br/>
+ * 
+ * For GZIP files, each checkpoint also records the start of the GZIP member containing it. Decompression can
+ * only begin at a member boundary ({@link Inflater} cannot be primed with the state of a partially-inflated
+ * stream), so seeking is fast for files compressed as many members (e.g. with <code>bgzip</code>, or by
+ * concatenating compressed blocks), and falls back to decompressing (but not splitting into lines) from the
+ * beginning of a single-member file.<br/>
+ * <br/>
+ * 
+ * Lines are terminated by '\n', '\r', or "\r\n", as in {@link RecordReader.LineRecordReader}.
+ * 
+ * @see ThreadableCommandlineTool
+ */
+public final class LineIndex {
+
+    /** Default interval between checkpoints (in bytes) */
+    public final static long DEFAULT_INTERVAL = 1 << 20;
+
+    private final static int MAGIC = 0x4c494458; // "LIDX"
+    private final static int VERSION = 1;
+
+    /** Length and modification time of the indexed file, used to detect stale indices */
+    private final long fileLength, fileModified;
+
+    private final boolean gzip;
+    private final long interval;
+
+    /** Total lines and (decompressed) bytes */
+    private final long lineCount, length;
+
+    /** Checkpoints: line number, offset, and the compressed and decompressed offsets of its GZIP member */
+    private final long[] lines, offsets, memberOffsets, memberStarts;
+
+    private LineIndex(final long fileLength, final long fileModified, final boolean gzip, final long interval,
+            final long lineCount, final long length, final long[] lines, final long[] offsets,
+            final long[] memberOffsets, final long[] memberStarts) {
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+        this.gzip = gzip;
+        this.interval = interval;
+        this.lineCount = lineCount;
+        this.length = length;
+        this.lines = lines;
+        this.offsets = offsets;
+        this.memberOffsets = memberOffsets;
+        this.memberStarts = memberStarts;
+    }
+
+    /**
+     * @param f Indexed file
+     * @return The sidecar file for <code>f</code> (<code>f.lidx</code>)
+     */
+    public static File sidecar(final File f) {
+        return new File(f.getPath() + ".lidx");
+    }
+
+    /**
+     * Returns the index for a file, reading it from the sidecar file if present and current, and otherwise
+     * optionally building it (and storing it in the sidecar file).
+     * 
+     * @param f Indexed file
+     * @param create Build (and store) the index if there is no current sidecar file
+     * @return The index for <code>f</code>, or <code>null</code> if <code>create</code> is false and no
+     *         current index exists
+     * @throws IOException If unable to read <code>f</code> or to write the sidecar file
+     */
+    public static LineIndex forFile(final File f, final boolean create) throws IOException {
+        final File sidecar = sidecar(f);
+        if (sidecar.exists()) {
+            try {
+                final LineIndex index = load(sidecar);
+                if (index.matches(f)) {
+                    return index;
+                }
+                BaseLogger.singleton().fine("Ignoring stale line index " + sidecar);
+            } catch (final IOException e) {
+                BaseLogger.singleton().warning(
+                        "Ignoring unreadable line index " + sidecar + ": " + e.getMessage());
+            }
+        }
+
+        if (!create) {
+            return null;
+        }
+        final LineIndex index = build(f, DEFAULT_INTERVAL);
+        index.store(sidecar);
+        return index;
+    }
+
+    /**
+     * Scans a file and builds its index
+     * 
+     * @param f File to index
+     * @param interval Interval between checkpoints (in decompressed bytes)
+     * @return Index
+     * @throws IOException If unable to read <code>f</code>
+     */
+    public static LineIndex build(final File f, final long interval) throws IOException {
+        final long fileLength = f.length(), fileModified = f.lastModified();
+        final boolean gzip = isGzip(f);
+
+        long[] lines = new long[16], offsets = new long[16];
+        long[] memberOffsets = new long[16], memberStarts = new long[16];
+        int size = 0;
+
+        final InputStream is = gzip ? new MemberInputStream(f, 0) : new FileInputStream(f);
+        try {
+            final byte[] buffer = new byte[65536];
+            long position = 0, line = 0, nextCheckpoint = 0;
+            boolean lineStart = true, skipLinefeed = false;
+
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                // A read never spans GZIP members
+                final long memberOffset = gzip ? ((MemberInputStream) is).memberOffset : 0;
+                final long memberStart = gzip ? ((MemberInputStream) is).memberStart : 0;
+
+                for (int i = 0; i < n; i++, position++) {
+                    final byte b = buffer[i];
+                    if (skipLinefeed) {
+                        skipLinefeed = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+                    if (lineStart) {
+                        lineStart = false;
+                        line++;
+                        if (position >= nextCheckpoint) {
+                            if (size == lines.length) {
+                                lines = Arrays.copyOf(lines, size * 2);
+                                offsets = Arrays.copyOf(offsets, size * 2);
+                                memberOffsets = Arrays.copyOf(memberOffsets, size * 2);
+                                memberStarts = Arrays.copyOf(memberStarts, size * 2);
+                            }
+                            lines[size] = line;
+                            offsets[size] = position;
+                            memberOffsets[size] = gzip ? memberOffset : position;
+                            memberStarts[size] = gzip ? memberStart : position;
+                            size++;
+                            nextCheckpoint = position + interval;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        lineStart = true;
+                        skipLinefeed = b == '\r';
+                    }
+                }
+            }
+
+            return new LineIndex(fileLength, fileModified, gzip, interval, line, position,
+                    Arrays.copyOf(lines, size), Arrays.copyOf(offsets, size),
+                    Arrays.copyOf(memberOffsets, size), Arrays.copyOf(memberStarts, size));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @param f File
+     * @return True if this index is current for <code>f</code> (i.e., <code>f</code> has not been modified
+     *         since it was indexed)
+     */
+    public boolean matches(final File f) {
+        return f.length() == fileLength && f.lastModified() == fileModified;
+    }
+
+    /**
+     * @return The number of lines in the indexed file
+     */
+    public long lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return The length of the indexed file (decompressed, if GZIP-compressed)
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return The number of checkpoints
+     */
+    public int size() {
+        return lines.length;
+    }
+
+    /**
+     * @param line Line number (starting from 1)
+     * @return The index of the last checkpoint at or before <code>line</code>, or -1 if there is none (i.e.,
+     *         if the file is empty)
+     */
+    public int floor(final long line) {
+        final int i = Arrays.binarySearch(lines, line);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @param checkpoint Checkpoint index
+     * @return The line number at the specified checkpoint
+     */
+    public long line(final int checkpoint) {
+        return lines[checkpoint];
+    }
+
+    /**
+     * @param checkpoint Checkpoint index
+     * @return The (decompressed) byte offset of the line at the specified checkpoint
+     */
+    public long offset(final int checkpoint) {
+        return offsets[checkpoint];
+    }
+
+    /**
+     * Opens the indexed file at a checkpoint, decompressing it if it is GZIP-compressed
+     * 
+     * @param f Indexed file
+     * @param checkpoint Checkpoint index
+     * @return An {@link InputStream}, positioned at the beginning of the line at the specified checkpoint
+     * @throws IOException If unable to open <code>f</code>
+     */
+    public InputStream open(final File f, final int checkpoint) throws IOException {
+        final InputStream is;
+        if (gzip) {
+            is = new MemberInputStream(f, memberOffsets[checkpoint]);
+            ((MemberInputStream) is).memberStart = memberStarts[checkpoint];
+        } else {
+            final FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(offsets[checkpoint]);
+            is = fis;
+        }
+
+        // Skip from the start of the GZIP member to the checkpoint
+        final byte[] skipBuffer = new byte[65536];
+        for (long skip = offsets[checkpoint] - memberStarts[checkpoint]; skip > 0;) {
+            final int n = is.read(skipBuffer, 0, (int) Math.min(skip, skipBuffer.length));
+            if (n < 0) {
+                is.close();
+                throw new EOFException("Unexpected end of " + f);
+            }
+            skip -= n;
+        }
+        return is;
+    }
+
+    /**
+     * Reads an index from a sidecar file
+     * 
+     * @param sidecar Sidecar file
+     * @return The stored index
+     * @throws IOException If unable to read <code>sidecar</code>, or if it does not contain a line index
+     */
+    public static LineIndex load(final File sidecar) throws IOException {
+        final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (is.readInt() != MAGIC || is.readByte() != VERSION) {
+                throw new IOException("Not a line index: " + sidecar);
+            }
+            final long fileLength = is.readLong();
+            final long fileModified = is.readLong();
+            final boolean gzip = is.readBoolean();
+            final long interval = readVarLong(is);
+            final long lineCount = readVarLong(is);
+            final long length = readVarLong(is);
+
+            final int size = (int) readVarLong(is);
+            final long[] lines = new long[size], offsets = new long[size];
+            final long[] memberOffsets = new long[size], memberStarts = new long[size];
+            for (int i = 0; i < size; i++) {
+                // Checkpoints are delta-encoded
+                lines[i] = (i > 0 ? lines[i - 1] : 0) + readVarLong(is);
+                offsets[i] = (i > 0 ? offsets[i - 1] : 0) + readVarLong(is);
+                memberOffsets[i] = (i > 0 ? memberOffsets[i - 1] : 0) + readVarLong(is);
+                memberStarts[i] = (i > 0 ? memberStarts[i - 1] : 0) + readVarLong(is);
+            }
+            return new LineIndex(fileLength, fileModified, gzip, interval, lineCount, length, lines, offsets,
+                    memberOffsets, memberStarts);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Writes this index to a temporary file and renames it to <code>sidecar</code>
+     * 
+     * @param sidecar Sidecar file
+     * @throws IOException If unable to write the file
+     */
+    public void store(final File sidecar) throws IOException {
+        final File tmp = new File(sidecar.getPath() + ".tmp");
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            os.writeInt(MAGIC);
+            os.writeByte(VERSION);
+            os.writeLong(fileLength);
+            os.writeLong(fileModified);
+            os.writeBoolean(gzip);
+            writeVarLong(os, interval);
+            writeVarLong(os, lineCount);
+            writeVarLong(os, length);
+            writeVarLong(os, lines.length);
+            for (int i = 0; i < lines.length; i++) {
+                writeVarLong(os, lines[i] - (i > 0 ? lines[i - 1] : 0));
+                writeVarLong(os, offsets[i] - (i > 0 ? offsets[i - 1] : 0));
+                writeVarLong(os, memberOffsets[i] - (i > 0 ? memberOffsets[i - 1] : 0));
+                writeVarLong(os, memberStarts[i] - (i > 0 ? memberStarts[i - 1] : 0));
+            }
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeVarLong(final DataOutputStream os, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            os.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        os.writeByte((int) value);
+    }
+
+    private static long readVarLong(final DataInputStream is) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = is.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed line index");
+    }
+
+    private static boolean isGzip(final File f) throws IOException {
+        final InputStream is = new FileInputStream(f);
+        try {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return lineCount + " lines, " + length + " bytes, " + lines.length + " checkpoints";
+    }
+
+    /**
+     * Decompresses a (possibly multi-member) GZIP file, starting at a member boundary, and tracks the
+     * compressed offset and the decompressed position of the current member. A single read never returns data
+     * from more than one member.
+     */
+    static final class MemberInputStream extends InputStream {
+
+        private final FileInputStream input;
+        private final byte[] buffer = new byte[65536];
+        private int bufferPosition, bufferLimit;
+        /** Offset of the start of the buffer in the compressed file */
+        private long bufferOffset;
+
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private boolean memberActive, eof;
+
+        /** Compressed offset of the current member */
+        long memberOffset;
+        /** Decompressed position of the start of the current member (in the whole file) */
+        long memberStart;
+        private long memberLength;
+
+        MemberInputStream(final File f, final long offset) throws IOException {
+            this.input = new FileInputStream(f);
+            input.getChannel().position(offset);
+            this.bufferOffset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!eof) {
+                if (!memberActive && !startMember()) {
+                    eof = true;
+                    break;
+                }
+                try {
+                    final int n = inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        crc.update(b, off, n);
+                        memberLength += n;
+                        return n;
+                    }
+                    if (inflater.finished()) {
+                        endMember();
+                    } else if (inflater.needsInput()) {
+                        if (!fill()) {
+                            throw new EOFException("Unexpected end of GZIP input");
+                        }
+                        inflater.setInput(buffer, bufferPosition, bufferLimit - bufferPosition);
+                        bufferPosition = bufferLimit;
+                    } else if (inflater.needsDictionary()) {
+                        throw new ZipException("Malformed GZIP input");
+                    }
+                } catch (final DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads a member header, if another member follows
+         * 
+         * @return False at the end of input
+         */
+        private boolean startMember() throws IOException {
+            final int id1 = readByte();
+            if (id1 < 0) {
+                return false;
+            }
+            final long offset = bufferOffset + bufferPosition - 1;
+            if (id1 != 0x1f || readByte() != 0x8b || readByte() != 8) {
+                // Trailing garbage is ignored, as by GZIPInputStream
+                return false;
+            }
+            final int flags = readByte();
+            skip(6); // MTIME, XFL, OS
+            if ((flags & 4) != 0) {
+                skip(readByte() | readByte() << 8); // FEXTRA
+            }
+            if ((flags & 8) != 0) {
+                while (readByte() > 0) { // FNAME
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (readByte() > 0) { // FCOMMENT
+                }
+            }
+            if ((flags & 2) != 0) {
+                skip(2); // FHCRC
+            }
+
+            memberOffset = offset;
+            memberLength = 0;
+            memberActive = true;
+            inflater.reset();
+            crc.reset();
+            return true;
+        }
+
+        /**
+         * Verifies the trailer of the current member
+         */
+        private void endMember() throws IOException {
+            // Return unconsumed input to the buffer
+            bufferPosition -= inflater.getRemaining();
+            final long expectedCrc = readInt();
+            final long expectedLength = readInt();
+            if (expectedCrc != crc.getValue() || expectedLength != (memberLength & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+            memberStart += memberLength;
+            memberLength = 0;
+            memberActive = false;
+        }
+
+        private boolean fill() throws IOException {
+            if (bufferPosition < bufferLimit) {
+                return true;
+            }
+            bufferOffset += bufferLimit;
+            bufferPosition = 0;
+            bufferLimit = Math.max(input.read(buffer), 0);
+            return bufferLimit > 0;
+        }
+
+        private int readByte() throws IOException {
+            return fill() ? buffer[bufferPosition++] & 0xff : -1;
+        }
+
+        private long readInt() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                final int b = readByte();
+                if (b < 0) {
+                    throw new EOFException("Unexpected end of GZIP input");
+                }
+                value |= (long) b << (8 * i);
+            }
+            return value;
+        }
+
+        private void skip(final int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                if (readByte() < 0) {
+                    throw new EOFException("Unexpected end of GZIP input");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            input.close();
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package cltool4j;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.concurrent.FutureTask;
 
 /**
  * Processes input (from files or STDIN) line-by-line (optionally using multiple threads). Subclasses must
- * implement a {@link FutureTask} task to do the processing.
+ * implement a {@link FutureTask} task to do the processing. Other record formats (e.g. paragraphs or
+ * NUL-terminated records) can be selected with <code>-records</code> or the {@link Records} annotation; each
+ * record is then passed to {@link #lineTask(String)} in place of a single line.
  * 
  * @author Aaron Dunlop
  * @since Nov 5, 2008
@@ -20,18 +21,9 @@ public abstract class LinewiseCommandlineTool<R> extends ThreadableCommandlineTo
      */
     protected abstract FutureTask<R> lineTask(String line);
 
-    private BufferedReader inputReader;
-
     @Override
     public final String nextInput() throws IOException {
-        synchronized (this) {
-            if (inputReader == null) {
-                inputReader = inputAsBufferedReader();
-            }
-        }
-        synchronized (inputReader) {
-            return inputReader.readLine();
-        }
+        return nextRecord();
     }
 
     // Delegates to lineTask(), since previous subclasses use that name
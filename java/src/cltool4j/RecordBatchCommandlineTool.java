@@ -0,0 +1,52 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import cltool4j.args4j.Option;
+
+/**
+ * Batching shared by {@link BatchCommandlineTool} and {@link ColumnBatchCommandlineTool}: reads input records
+ * in batches of <code>-batch</code>, and outputs each result as a list of lines.
+ * 
+ * @param <I> Input type, built from a batch of records
+ */
+abstract class RecordBatchCommandlineTool<I> extends ThreadableCommandlineTool<I, List<String>> {
+
+    @Option(name = "-batch", metaVar = "lines", usage = "Batch size")
+    private int batchSize = 25;
+
+    /**
+     * Reads the next batch of records
+     * 
+     * @return Up to <code>-batch</code> records, or <code>null</code> at EOF
+     * @throws IOException if the read fails
+     */
+    final List<String> nextBatch() throws IOException {
+        synchronized (this) {
+            final ArrayList<String> input = new ArrayList<String>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                final String record = nextRecord();
+                if (record == null) {
+                    // We hit EOF; return the batch we have
+                    return input.size() > 0 ? input : null;
+                }
+                input.add(record);
+            }
+            return input;
+        }
+    }
+
+    @Override
+    protected final void output(final List<String> result) {
+        final PrintStream out = context().output();
+        for (final String s : result) {
+            if (s.length() > 0) {
+                out.println(s);
+            }
+        }
+        out.flush();
+    }
+}
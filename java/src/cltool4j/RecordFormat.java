@@ -0,0 +1,67 @@
+package cltool4j;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import cltool4j.args4j.EnumAliasMap;
+
+/**
+ * Input record formats supported by {@link ThreadableCommandlineTool}. Selected with the
+ * <code>-records</code> option, or declared as a tool's default with the {@link Records} annotation.
+ */
+public enum RecordFormat {
+
+    /** Single lines, split as they would be by a {@link BufferedReader} (the default) */
+    line,
+
+    /** NUL-terminated records, as produced by <code>find -print0</code> or <code>xargs -0</code> */
+    nul("null", "0", "print0"),
+
+    /** Records terminated by an arbitrary (possibly multi-byte) delimiter */
+    delimiter("delim"),
+
+    /** Paragraphs separated by one or more blank lines */
+    paragraph("blank"),
+
+    /** A fixed number of lines per record (e.g. 4-line FASTQ records) */
+    lines("multiline");
+
+    private RecordFormat(final String... aliases) {
+        EnumAliasMap.singleton().addAliases(this, aliases);
+    }
+
+    /**
+     * Creates a {@link RecordReader} for this format.
+     * 
+     * @param input Input source
+     * @param charset Input character set
+     * @param delimiterSpec Delimiter specification (see {@link RecordReader#parseDelimiter(String, Charset)}.
+     *            Only used by {@link #delimiter}.
+     * @param linesPerRecord Lines per record. Only used by {@link #lines}.
+     * @return A {@link RecordReader} for this format
+     * @throws IllegalArgumentException If a required delimiter or record size is missing or illegal
+     */
+    public RecordReader reader(final InputStream input, final Charset charset, final String delimiterSpec,
+            final int linesPerRecord) {
+
+        switch (this) {
+        case nul:
+            return new RecordReader.DelimitedRecordReader(input, new byte[] { 0 }, charset);
+
+        case delimiter:
+            return new RecordReader.DelimitedRecordReader(input, RecordReader.parseDelimiter(delimiterSpec,
+                    charset), charset);
+
+        case paragraph:
+            return new RecordReader.ParagraphRecordReader(new RecordReader.LineRecordReader(input, charset));
+
+        case lines:
+            return new RecordReader.MultiLineRecordReader(new RecordReader.LineRecordReader(input, charset),
+                    linesPerRecord);
+
+        default:
+            return new RecordReader.LineRecordReader(input, charset);
+        }
+    }
+}
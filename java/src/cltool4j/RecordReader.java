@@ -0,0 +1,620 @@
+package cltool4j;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Splits an input source into records. {@link ThreadableCommandlineTool} reads its input through a
+ * {@link RecordReader}, so subclasses processing input in units other than single lines (e.g. blank-line
+ * separated paragraphs, fixed-size multi-line records, or NUL-terminated filenames from
+ * <code>find -print0</code>) can still use the threaded, batched, and ordered execution paths.<br/>
+ * <br/>
+ * 
+ * The standard implementations are selected using {@link RecordFormat} (via the <code>-records</code>
+ * option or the {@link Records} annotation). Tools requiring other formats may override
+ * {@link ThreadableCommandlineTool#recordReader(InputStream)}.<br/>
+ * <br/>
+ * 
+ * Implementations are not required to be thread-safe; {@link ThreadableCommandlineTool} synchronizes access
+ * to its reader.
+ */
+public abstract class RecordReader {
+
+    /**
+     * @return The next record, or <code>null</code> at the end of input
+     * @throws IOException If the read fails
+     */
+    public abstract String readRecord() throws IOException;
+
+    /**
+     * @return The line number (starting from 1) at which the most recent record began, or -1 if unknown (or
+     *         if the input is not line-oriented)
+     */
+    public long lineNumber() {
+        return -1;
+    }
+
+    /**
+     * @return The byte offset (in the decompressed input) at which the most recent record began, or -1 if
+     *         unknown
+     */
+    public long offset() {
+        return -1;
+    }
+
+    /**
+     * Sets the position of the input source, for readers created on input which does not begin at the start
+     * of a file (e.g. after seeking with a {@link LineIndex}). Line numbers and offsets reported for
+     * subsequent records are relative to this position. Must be called before the first record is read. The
+     * default implementation does nothing.
+     * 
+     * @param lineNumber The number of lines preceding the input, or -1 if unknown (in which case
+     *            {@link #lineNumber()} reports -1)
+     * @param offset The byte offset of the input
+     */
+    public void setPosition(final long lineNumber, final long offset) {
+    }
+
+    /**
+     * Closes the underlying input source
+     * 
+     * @throws IOException If the close fails
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * Parses a delimiter specification as supplied on the command-line, interpreting the escape sequences
+     * <code>\n</code>, <code>\r</code>, <code>\t</code>, <code>\0</code>, <code>\\</code>, and
+     * <code>\xHH</code> (a single byte, in hexadecimal).
+     * 
+     * @param delimiter Delimiter specification
+     * @param charset {@link Charset} used to encode any characters other than escape sequences
+     * @return The delimiter, as a byte sequence
+     * @throws IllegalArgumentException If the delimiter is empty or contains an illegal escape sequence
+     */
+    public static byte[] parseDelimiter(final String delimiter, final Charset charset) {
+        if (delimiter == null || delimiter.length() == 0) {
+            throw new IllegalArgumentException("Empty record delimiter");
+        }
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final StringBuilder literal = new StringBuilder();
+
+        for (int i = 0; i < delimiter.length(); i++) {
+            final char c = delimiter.charAt(i);
+            if (c != '\\' || i == delimiter.length() - 1) {
+                literal.append(c);
+                continue;
+            }
+
+            // Flush any literal characters before the escape sequence
+            final byte[] literalBytes = literal.toString().getBytes(charset);
+            bos.write(literalBytes, 0, literalBytes.length);
+            literal.setLength(0);
+
+            final char escaped = delimiter.charAt(++i);
+            switch (escaped) {
+            case 'n':
+                bos.write('\n');
+                break;
+            case 'r':
+                bos.write('\r');
+                break;
+            case 't':
+                bos.write('\t');
+                break;
+            case '0':
+                bos.write(0);
+                break;
+            case '\\':
+                bos.write('\\');
+                break;
+            case 'x':
+                if (i + 2 >= delimiter.length()) {
+                    throw new IllegalArgumentException("Illegal escape sequence in delimiter: " + delimiter);
+                }
+                bos.write(Integer.parseInt(delimiter.substring(i + 1, i + 3), 16));
+                i += 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Illegal escape sequence in delimiter: " + delimiter);
+            }
+        }
+        final byte[] literalBytes = literal.toString().getBytes(charset);
+        bos.write(literalBytes, 0, literalBytes.length);
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Splits input into lines, as a {@link BufferedReader} would (terminated by '\n', '\r', or "\r\n"). When
+     * constructed from an {@link InputStream} in an ASCII-compatible {@link Charset} (e.g. UTF-8 or
+     * ISO-8859-1), lines are split directly from the input bytes, and {@link #offset()} reports exact byte
+     * offsets.
+     */
+    public static class LineRecordReader extends RecordReader {
+
+        /** Used for charsets which are not ASCII-compatible; otherwise null */
+        private final BufferedReader reader;
+
+        private final InputStream input;
+        private final Charset charset;
+        private byte[] buffer;
+        private int bufferPosition;
+        private int bufferLimit;
+        /** Offset of the start of the buffer in the input */
+        private long bufferOffset;
+
+        /** Accumulates a line which spans buffer boundaries */
+        private byte[] record;
+
+        /** True if the previous line ended with '\r', so a following '\n' is part of its terminator */
+        private boolean skipLinefeed;
+
+        private long lineNumber;
+        private boolean lineNumbersKnown = true;
+        private long offset = -1;
+
+        public LineRecordReader(final BufferedReader reader) {
+            this.reader = reader;
+            this.input = null;
+            this.charset = null;
+        }
+
+        /**
+         * @param input Input source
+         * @param charset Character set used to decode lines
+         */
+        public LineRecordReader(final InputStream input, final Charset charset) {
+            if (asciiCompatible(charset)) {
+                this.reader = null;
+                this.input = input;
+                this.charset = charset;
+                this.buffer = new byte[65536];
+                this.record = new byte[1024];
+            } else {
+                this.reader = new BufferedReader(new InputStreamReader(input, charset));
+                this.input = null;
+                this.charset = null;
+            }
+        }
+
+        /**
+         * @return True if '\r' and '\n' are encoded as single bytes, and those bytes never occur within other
+         *         characters
+         */
+        static boolean asciiCompatible(final Charset charset) {
+            return Arrays.equals("\r\n".getBytes(charset), new byte[] { '\r', '\n' })
+                    && (charset.newEncoder().maxBytesPerChar() == 1 || charset.name().equals("UTF-8"));
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            if (reader != null) {
+                final String line = reader.readLine();
+                if (line != null) {
+                    lineNumber++;
+                }
+                return line;
+            }
+
+            int length = 0;
+            boolean started = false;
+
+            while (true) {
+                if (bufferPosition == bufferLimit) {
+                    bufferOffset += bufferLimit;
+                    bufferLimit = input.read(buffer, 0, buffer.length);
+                    bufferPosition = 0;
+                    if (bufferLimit <= 0) {
+                        bufferLimit = 0;
+                        // EOF; return the final (unterminated) line if we have one
+                        return started ? new String(record, 0, length, charset) : null;
+                    }
+                }
+
+                if (skipLinefeed) {
+                    skipLinefeed = false;
+                    if (buffer[bufferPosition] == '\n') {
+                        bufferPosition++;
+                        continue;
+                    }
+                }
+
+                if (!started) {
+                    started = true;
+                    offset = bufferOffset + bufferPosition;
+                    lineNumber++;
+                }
+
+                // Scan for a line terminator within the buffer
+                final int start = bufferPosition;
+                while (bufferPosition < bufferLimit && buffer[bufferPosition] != '\n'
+                        && buffer[bufferPosition] != '\r') {
+                    bufferPosition++;
+                }
+                final int end = bufferPosition;
+
+                if (end < bufferLimit) {
+                    skipLinefeed = buffer[bufferPosition++] == '\r';
+                    if (length == 0) {
+                        // The whole line is in the buffer
+                        return new String(buffer, start, end - start, charset);
+                    }
+                }
+
+                if (length + end - start > record.length) {
+                    record = Arrays.copyOf(record, Math.max(record.length * 2, length + end - start));
+                }
+                System.arraycopy(buffer, start, record, length, end - start);
+                length += end - start;
+
+                if (end < bufferLimit) {
+                    return new String(record, 0, length, charset);
+                }
+            }
+        }
+
+        @Override
+        public long lineNumber() {
+            return lineNumbersKnown ? lineNumber : -1;
+        }
+
+        @Override
+        public long offset() {
+            return reader != null ? -1 : offset;
+        }
+
+        @Override
+        public void setPosition(final long lineNumber, final long offset) {
+            this.lineNumber = Math.max(lineNumber, 0);
+            this.lineNumbersKnown = lineNumber >= 0;
+            this.bufferOffset = offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            } else {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Splits input into records terminated by an arbitrary byte sequence (a single byte, such as NUL, or a
+     * multi-byte delimiter). The delimiter is matched against the raw input bytes, before character decoding,
+     * and is not included in the returned records. A final record lacking a terminating delimiter is returned
+     * as well.
+     */
+    public static class DelimitedRecordReader extends RecordReader {
+
+        private final InputStream input;
+        private final Charset charset;
+        private final byte[] delimiter;
+        private final byte lastDelimiterByte;
+
+        private final byte[] buffer = new byte[65536];
+        private int bufferPosition;
+        private int bufferLimit;
+        /** Offset of the start of the buffer in the input */
+        private long bufferOffset;
+
+        /** Accumulates the current record */
+        private byte[] record = new byte[1024];
+
+        private long offset = -1;
+
+        /**
+         * @param input Input source
+         * @param delimiter Record delimiter (at least one byte)
+         * @param charset Character set used to decode records
+         */
+        public DelimitedRecordReader(final InputStream input, final byte[] delimiter, final Charset charset) {
+            if (delimiter.length == 0) {
+                throw new IllegalArgumentException("Empty record delimiter");
+            }
+            this.input = input;
+            this.delimiter = delimiter.clone();
+            this.lastDelimiterByte = delimiter[delimiter.length - 1];
+            this.charset = charset;
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            int length = 0;
+
+            while (true) {
+                if (bufferPosition == bufferLimit) {
+                    bufferOffset += bufferLimit;
+                    bufferLimit = input.read(buffer, 0, buffer.length);
+                    bufferPosition = 0;
+                    if (bufferLimit <= 0) {
+                        bufferLimit = 0;
+                        // EOF; return the final (unterminated) record if we have one
+                        return length > 0 ? new String(record, 0, length, charset) : null;
+                    }
+                }
+
+                if (length == 0) {
+                    offset = bufferOffset + bufferPosition;
+                }
+
+                final byte b = buffer[bufferPosition++];
+                if (length == record.length) {
+                    record = Arrays.copyOf(record, record.length * 2);
+                }
+                record[length++] = b;
+
+                if (b == lastDelimiterByte && endsWithDelimiter(length)) {
+                    return new String(record, 0, length - delimiter.length, charset);
+                }
+            }
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        private boolean endsWithDelimiter(final int length) {
+            if (length < delimiter.length) {
+                return false;
+            }
+            for (int i = 0, j = length - delimiter.length; i < delimiter.length - 1; i++, j++) {
+                if (record[j] != delimiter[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Splits input into paragraphs separated by one or more blank (empty or whitespace-only) lines. Lines
+     * within a paragraph are joined with '\n', without a trailing newline.
+     */
+    public static class ParagraphRecordReader extends RecordReader {
+
+        private final LineRecordReader lines;
+        private long lineNumber = -1;
+        private long offset = -1;
+
+        public ParagraphRecordReader(final BufferedReader reader) {
+            this(new LineRecordReader(reader));
+        }
+
+        public ParagraphRecordReader(final LineRecordReader lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            final StringBuilder sb = new StringBuilder(256);
+
+            for (String line = lines.readRecord(); line != null; line = lines.readRecord()) {
+                if (line.trim().length() == 0) {
+                    if (sb.length() > 0) {
+                        return sb.toString();
+                    }
+                    // Skip leading and repeated blank lines
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                } else {
+                    lineNumber = lines.lineNumber();
+                    offset = lines.offset();
+                }
+                sb.append(line);
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        @Override
+        public long lineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+
+    /**
+     * Splits input into records of a fixed number of lines (e.g., 4-line FASTQ records). Lines are joined
+     * with '\n', without a trailing newline. If the input ends in the middle of a record, the final partial
+     * record is returned as-is.
+     */
+    public static class MultiLineRecordReader extends RecordReader {
+
+        private final LineRecordReader lines;
+        private final int linesPerRecord;
+        private long lineNumber = -1;
+        private long offset = -1;
+
+        public MultiLineRecordReader(final BufferedReader reader, final int linesPerRecord) {
+            this(new LineRecordReader(reader), linesPerRecord);
+        }
+
+        public MultiLineRecordReader(final LineRecordReader lines, final int linesPerRecord) {
+            if (linesPerRecord < 1) {
+                throw new IllegalArgumentException("Illegal record size: " + linesPerRecord + " lines");
+            }
+            this.lines = lines;
+            this.linesPerRecord = linesPerRecord;
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            final String firstLine = lines.readRecord();
+            if (firstLine == null) {
+                return null;
+            }
+            lineNumber = lines.lineNumber();
+            offset = lines.offset();
+            if (linesPerRecord == 1) {
+                return firstLine;
+            }
+
+            final StringBuilder sb = new StringBuilder(firstLine.length() * linesPerRecord + linesPerRecord);
+            sb.append(firstLine);
+            for (int i = 1; i < linesPerRecord; i++) {
+                final String line = lines.readRecord();
+                if (line == null) {
+                    break;
+                }
+                sb.append('\n');
+                sb.append(line);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public long lineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+
+    /**
+     * Reads records from another reader in a background thread, into a bounded buffer, so reading,
+     * decompression, and splitting can proceed while the consumer is busy (e.g. during
+     * {@link BaseCommandlineTool#setup()}; see <code>-prefetch</code>). Line numbers and offsets are reported
+     * for each record as they were by the underlying reader.
+     */
+    public static class PrefetchRecordReader extends RecordReader {
+
+        private final static Object END = new Object();
+
+        private final RecordReader reader;
+        private final BlockingQueue<Object> queue;
+        private final Thread thread;
+        private volatile Exception failure;
+
+        private long lineNumber = -1;
+        private long offset = -1;
+
+        /**
+         * Starts reading ahead
+         * 
+         * @param reader Underlying reader (which must not be used by the caller)
+         * @param capacity Maximum number of records read ahead
+         */
+        public PrefetchRecordReader(final RecordReader reader, final int capacity) {
+            this.reader = reader;
+            this.queue = new ArrayBlockingQueue<Object>(capacity);
+            this.thread = new Thread("prefetch") {
+                @Override
+                public void run() {
+                    try {
+                        try {
+                            for (String record = reader.readRecord(); record != null; record = reader
+                                    .readRecord()) {
+                                queue.put(new Prefetched(record, reader.lineNumber(), reader.offset()));
+                            }
+                        } catch (final IOException | RuntimeException e) {
+                            failure = e;
+                        }
+                        queue.put(END);
+                    } catch (final InterruptedException e) {
+                        // Closed by the consumer
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public String readRecord() throws IOException {
+            final Object o;
+            try {
+                o = queue.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (o == END) {
+                // Leave the marker for any subsequent call
+                queue.offer(END);
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                } else if (failure != null) {
+                    throw (RuntimeException) failure;
+                }
+                return null;
+            }
+            final Prefetched p = (Prefetched) o;
+            lineNumber = p.lineNumber;
+            offset = p.offset;
+            return p.record;
+        }
+
+        @Override
+        public long lineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        /**
+         * Stops reading ahead, and closes the underlying reader
+         */
+        @Override
+        public void close() throws IOException {
+            thread.interrupt();
+            try {
+                // The thread may be blocked reading (uninterruptibly) from the underlying reader
+                thread.join(1000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.clear();
+            reader.close();
+        }
+
+        private static final class Prefetched {
+            final String record;
+            final long lineNumber, offset;
+
+            Prefetched(final String record, final long lineNumber, final long offset) {
+                this.record = record;
+                this.lineNumber = lineNumber;
+                this.offset = offset;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cltool4j;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the default input record format of a {@link ThreadableCommandlineTool}. Tools which always
+ * consume (for example) 4-line FASTQ records can declare
+ * <code>@Records(format = RecordFormat.lines, lines = 4)</code> rather than requiring the user to specify the
+ * format on each invocation.
+ * 
+ * The defaults can be overridden on the command-line with the <code>-records</code>,
+ * <code>-record-delimiter</code>, and <code>-record-lines</code> options.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE })
+@Inherited
+public @interface Records {
+
+    /**
+     * @return The default record format
+     */
+    public RecordFormat format() default RecordFormat.line;
+
+    /**
+     * @return The default record delimiter, used with {@link RecordFormat#delimiter}. Escape sequences are
+     *         interpreted as described in
+     *         {@link RecordReader#parseDelimiter(String, java.nio.charset.Charset)}
+     */
+    public String delimiter() default "";
+
+    /**
+     * @return The default number of lines per record, used with {@link RecordFormat#lines}
+     */
+    public int lines() default 1;
+}
@@ -0,0 +1,17 @@
+package cltool4j;
+
+/**
+ * A result which formats itself directly into a {@link RowWriter}. {@link ThreadableCommandlineTool} writes
+ * results implementing this interface to STDOUT through a single reused {@link RowWriter}, instead of
+ * converting each result to a {@link String}.
+ */
+public interface RowWritable {
+
+    /**
+     * Formats this result. If the final row is not terminated with {@link RowWriter#endRow()}, a line
+     * separator is appended when the result is output. Writing nothing produces no output.
+     * 
+     * @param writer Destination
+     */
+    public void writeTo(RowWriter writer);
+}
@@ -0,0 +1,398 @@
+package cltool4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Formats delimited output rows directly into a reusable byte buffer, without the intermediate
+ * {@link String}s (and locale-dependent formatting) of {@link String#format(String, Object...)} or
+ * {@link StringBuilder} and {@link Double#toString(double)}. Integers and fixed-precision doubles are
+ * written digit-by-digit, and characters are encoded as they are appended.<br/>
+ * <br/>
+ * 
+ * The usual way to use a {@link RowWriter} is to return a {@link RowWritable} result from a
+ * {@link ThreadableCommandlineTool} task. The output step then formats each result into a single
+ * {@link RowWriter} and copies the bytes to STDOUT. Alternatively, a task may format its output on the
+ * worker thread using the per-thread instance returned by {@link #local(Charset)} (e.g., to return a
+ * <code>byte[]</code> from a {@link BinaryCommandlineTool}), encoding with the tool's
+ * {@link BaseCommandlineTool#outputCharset()}.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * writer.field(key).field(count).field(mean, 3).endRow();
+ * </pre>
+ * 
+ * A {@link RowWriter} is not thread-safe.
+ */
+public final class RowWriter {
+
+    private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /** Largest scaled magnitude which can be rounded exactly to a long */
+    private final static double MAX_SCALED_DOUBLE = 1L << 53;
+
+    private final static double[] POWERS_OF_10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15 };
+
+    private final static ThreadLocal<RowWriter> threadLocal = new ThreadLocal<RowWriter>();
+
+    private final char delimiter;
+    private final Charset charset;
+    private final boolean utf8;
+
+    private byte[] buf = new byte[1024];
+    private int length;
+
+    /** Offset at which the current row began */
+    private int rowStart;
+
+    /** Fields appended to the current row with the <code>field()</code> methods */
+    private int rowFields;
+
+    /**
+     * Creates a tab-delimited {@link RowWriter}, encoding output with the platform default {@link Charset}
+     * (the same encoding as {@link System#out})
+     */
+    public RowWriter() {
+        this('\t', Charset.defaultCharset());
+    }
+
+    /**
+     * @param delimiter Field delimiter
+     * @param charset Output {@link Charset}. Must encode ASCII characters as single bytes.
+     */
+    public RowWriter(final char delimiter, final Charset charset) {
+        this.delimiter = delimiter;
+        this.charset = charset;
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return An empty tab-delimited {@link RowWriter}, owned by the current thread. The same instance is
+     *         returned (and reset) on each call, so its contents must be consumed (e.g., with
+     *         {@link #toByteArray()}) before the thread formats another result.
+     */
+    public static RowWriter local() {
+        return local(Charset.defaultCharset());
+    }
+
+    /**
+     * @param charset Output {@link Charset} (e.g. {@link BaseCommandlineTool#outputCharset()})
+     * @return An empty tab-delimited {@link RowWriter}, owned by the current thread and encoding with the
+     *         specified {@link Charset} (see {@link #local()})
+     */
+    public static RowWriter local(final Charset charset) {
+        RowWriter writer = threadLocal.get();
+        if (writer == null || !writer.charset.equals(charset)) {
+            writer = new RowWriter('\t', charset);
+            threadLocal.set(writer);
+        }
+        return writer.reset();
+    }
+
+    /**
+     * Discards all content
+     * 
+     * @return this writer
+     */
+    public RowWriter reset() {
+        length = 0;
+        rowStart = 0;
+        rowFields = 0;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes written
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return True if nothing has been written since the last {@link #endRow()} (or {@link #reset()})
+     */
+    public boolean atRowStart() {
+        return length == rowStart;
+    }
+
+    /**
+     * @return A copy of the formatted bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, length);
+    }
+
+    /**
+     * Writes the formatted bytes to an {@link OutputStream}
+     * 
+     * @param os Output destination
+     * @throws IOException If the write fails
+     */
+    public void writeTo(final OutputStream os) throws IOException {
+        os.write(buf, 0, length);
+    }
+
+    /**
+     * @return The formatted content, decoded as a {@link String}
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, length, charset);
+    }
+
+    /**
+     * Appends a field delimiter, unless this is the first field in the row
+     */
+    private RowWriter beginField() {
+        if (rowFields++ > 0) {
+            appendAscii(delimiter);
+        }
+        return this;
+    }
+
+    /**
+     * Terminates the current row with a line separator
+     * 
+     * @return this writer
+     */
+    public RowWriter endRow() {
+        for (int i = 0; i < LINE_SEPARATOR.length(); i++) {
+            appendAscii(LINE_SEPARATOR.charAt(i));
+        }
+        rowStart = length;
+        rowFields = 0;
+        return this;
+    }
+
+    /**
+     * Appends a field, preceded by a delimiter if it is not the first field in the row
+     * 
+     * @param s Field value
+     * @return this writer
+     */
+    public RowWriter field(final CharSequence s) {
+        return beginField().append(s);
+    }
+
+    /**
+     * Appends a field, preceded by a delimiter if it is not the first field in the row
+     * 
+     * @param s Source text
+     * @param start Start offset of the field within <code>s</code>
+     * @param end End offset (exclusive)
+     * @return this writer
+     */
+    public RowWriter field(final CharSequence s, final int start, final int end) {
+        return beginField().append(s, start, end);
+    }
+
+    /**
+     * Appends an integer field, preceded by a delimiter if it is not the first field in the row
+     * 
+     * @param value Field value
+     * @return this writer
+     */
+    public RowWriter field(final long value) {
+        return beginField().append(value);
+    }
+
+    /**
+     * Appends a fixed-precision floating-point field, preceded by a delimiter if it is not the first field in
+     * the row
+     * 
+     * @param value Field value
+     * @param decimals Digits after the decimal point
+     * @return this writer
+     */
+    public RowWriter field(final double value, final int decimals) {
+        return beginField().append(value, decimals);
+    }
+
+    /**
+     * Appends a single character
+     * 
+     * @param c Character
+     * @return this writer
+     */
+    public RowWriter append(final char c) {
+        if (c < 0x80) {
+            appendAscii(c);
+        } else {
+            appendEncoded(String.valueOf(c), 0, 1);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a character sequence (<code>null</code> is written as the empty string)
+     * 
+     * @param s Character sequence
+     * @return this writer
+     */
+    public RowWriter append(final CharSequence s) {
+        return s != null ? append(s, 0, s.length()) : this;
+    }
+
+    /**
+     * Appends a range of a character sequence
+     * 
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return this writer
+     */
+    public RowWriter append(final CharSequence s, final int start, final int end) {
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Non-ASCII text; encode the remainder of the range
+                appendEncoded(s, i, end);
+                return this;
+            }
+            buf[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a decimal integer
+     * 
+     * @param value Value
+     * @return this writer
+     */
+    public RowWriter append(final long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[length++] = '-';
+        }
+
+        // Write digits (negated, so Long.MIN_VALUE needs no special case) in reverse, then reverse them
+        final int start = length;
+        long v = value < 0 ? value : -value;
+        do {
+            buf[length++] = (byte) ('0' - (v % 10));
+            v /= 10;
+        } while (v != 0);
+        reverse(start, length - 1);
+        return this;
+    }
+
+    /**
+     * Appends a floating-point number with a fixed number of digits after the decimal point, rounding half
+     * away from zero. Values too large to scale exactly (and more than 15 decimals) are formatted with
+     * {@link BigDecimal}. NaN and infinite values are written as by {@link Double#toString(double)}.
+     * 
+     * @param value Value
+     * @param decimals Digits after the decimal point
+     * @return this writer
+     */
+    public RowWriter append(final double value, final int decimals) {
+        if (decimals < 0) {
+            throw new IllegalArgumentException("Illegal precision: " + decimals);
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return append(Double.toString(value));
+        }
+
+        final double magnitude = Math.abs(value);
+        if (decimals >= POWERS_OF_10.length || magnitude * POWERS_OF_10[decimals] >= MAX_SCALED_DOUBLE) {
+            return append(new BigDecimal(value).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+        }
+
+        final long scaled = Math.round(magnitude * POWERS_OF_10[decimals]);
+        // Omit the sign of values which round to 0
+        if (value < 0 && scaled != 0) {
+            appendAscii('-');
+        }
+
+        final long factor = (long) POWERS_OF_10[decimals];
+        append(scaled / factor);
+        if (decimals > 0) {
+            ensureCapacity(decimals + 1);
+            buf[length++] = '.';
+            long fraction = scaled % factor;
+            for (int i = length + decimals - 1; i >= length; i--) {
+                buf[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            length += decimals;
+        }
+        return this;
+    }
+
+    /**
+     * Appends raw bytes, which must already be encoded in this writer's {@link Charset}
+     * 
+     * @param bytes Source bytes
+     * @param offset Start offset
+     * @param len Number of bytes
+     * @return this writer
+     */
+    public RowWriter appendBytes(final byte[] bytes, final int offset, final int len) {
+        ensureCapacity(len);
+        System.arraycopy(bytes, offset, buf, length, len);
+        length += len;
+        return this;
+    }
+
+    private void appendAscii(final char c) {
+        ensureCapacity(1);
+        buf[length++] = (byte) c;
+    }
+
+    private void appendEncoded(final CharSequence s, final int start, final int end) {
+        if (!utf8) {
+            final byte[] bytes = s.subSequence(start, end).toString().getBytes(charset);
+            appendBytes(bytes, 0, bytes.length);
+            return;
+        }
+
+        ensureCapacity((end - start) * 3);
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[length++] = (byte) (0xc0 | (c >> 6));
+                buf[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buf[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate
+                buf[length++] = '?';
+            } else {
+                buf[length++] = (byte) (0xe0 | (c >> 12));
+                buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void reverse(int i, int j) {
+        for (; i < j; i++, j--) {
+            final byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (length + additional > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + additional));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package cltool4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores and reloads the {@link BaseCommandlineTool#setup()} state of a {@link Snapshottable} tool. With
+ * <code>-setup-cache dir</code>, the first run stores a snapshot in <code>dir</code> after setup, and later
+ * runs with the same key (see {@link #key(Snapshottable, Properties)}) load it in place of setup.<br/>
+ * <br/>
+ * 
+ * A snapshot consists of a fixed-length header (magic number, format version, key digest, payload length,
+ * and payload CRC-32) followed by the payload written by
+ * {@link Snapshottable#writeSnapshot(DataOutputStream)}. Snapshots are memory-mapped for reading, and the
+ * payload is verified before it is passed to {@link Snapshottable#readSnapshot(ByteBuffer)}. A stale,
+ * truncated, or corrupt snapshot is ignored (and replaced). Snapshots are written to a temporary file and
+ * renamed, so concurrent runs never read a partial snapshot.
+ */
+public final class SetupSnapshot {
+
+    private final static int MAGIC = 0x534e4150; // "SNAP"
+    private final static int VERSION = 1;
+
+    /** Magic number, version, SHA-1 key digest, payload length, payload CRC */
+    private final static int HEADER_LENGTH = 4 + 1 + 20 + 8 + 8;
+
+    private SetupSnapshot() {
+    }
+
+    /**
+     * Computes a snapshot key from the tool class, {@link Snapshottable#snapshotKey()}, and configuration
+     * properties
+     * 
+     * @param tool Tool (after option parsing)
+     * @param properties Configuration properties of the run
+     * @return SHA-1 digest of the key
+     */
+    public static byte[] key(final Snapshottable tool, final Properties properties) {
+        final StringBuilder sb = new StringBuilder(tool.getClass().getName()).append('\n');
+        for (final Object o : tool.snapshotKey()) {
+            if (o instanceof File) {
+                final File f = (File) o;
+                sb.append(f.getAbsolutePath()).append(':').append(f.length()).append(':')
+                        .append(f.lastModified());
+            } else if (o instanceof Object[]) {
+                sb.append(Arrays.deepToString((Object[]) o));
+            } else {
+                sb.append(String.valueOf(o));
+            }
+            sb.append('\n');
+        }
+        for (final String name : new TreeSet<String>(properties.stringPropertyNames())) {
+            sb.append(name).append('=').append(properties.getProperty(name)).append('\n');
+        }
+
+        try {
+            final byte[] bytes = sb.toString().getBytes(Charset.forName("UTF-8"));
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (final NoSuchAlgorithmException e) {
+            // SHA-1 is required of all Java platforms
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param directory Snapshot directory
+     * @param tool Tool
+     * @param key Key digest (see {@link #key(Snapshottable, Properties)})
+     * @return Snapshot file for the specified tool and key
+     */
+    public static File file(final File directory, final Snapshottable tool, final byte[] key) {
+        final StringBuilder sb = new StringBuilder(tool.getClass().getSimpleName()).append('-');
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", key[i]));
+        }
+        return new File(directory, sb.append(".snapshot").toString());
+    }
+
+    /**
+     * Loads a snapshot into the specified tool, if the snapshot exists, matches the key, and is intact.
+     * 
+     * @param f Snapshot file
+     * @param key Key digest (see {@link #key(Snapshottable, Properties)})
+     * @param tool Tool
+     * @return True if the snapshot was loaded, false if it is missing, stale, or corrupt
+     * @throws IOException If the snapshot cannot be read, or if
+     *             {@link Snapshottable#readSnapshot(ByteBuffer)} fails
+     */
+    public static boolean load(final File f, final byte[] key, final Snapshottable tool) throws IOException {
+        if (!f.exists()) {
+            return false;
+        }
+
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            final long size = raf.length();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            // The mapping remains valid after the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            BaseLogger.singleton().warning("Ignoring invalid snapshot: " + f);
+            return false;
+        }
+        final byte[] digest = new byte[key.length];
+        buffer.get(digest);
+        if (!Arrays.equals(digest, key)) {
+            // A file name collision (names include only 64 bits of the key)
+            return false;
+        }
+        final long length = buffer.getLong();
+        final long crc = buffer.getLong();
+        if (length != buffer.remaining() || crc(buffer.duplicate()) != crc) {
+            BaseLogger.singleton().warning("Ignoring corrupt snapshot: " + f);
+            return false;
+        }
+
+        tool.readSnapshot(buffer.slice());
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the specified tool to a temporary file and renames it to <code>f</code>
+     * 
+     * @param f Snapshot file
+     * @param key Key digest (see {@link #key(Snapshottable, Properties)})
+     * @param tool Tool (after setup)
+     * @throws IOException If unable to write the snapshot
+     */
+    public static void store(final File f, final byte[] key, final Snapshottable tool) throws IOException {
+        final File tmp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+        try {
+            final FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                final FileChannel channel = fos.getChannel();
+                channel.position(HEADER_LENGTH);
+                final CRC32 crc = new CRC32();
+                final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                        new CheckedOutputStream(fos, crc), 65536));
+                tool.writeSnapshot(os);
+                os.flush();
+
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).put((byte) VERSION).put(key)
+                        .putLong(channel.position() - HEADER_LENGTH).putLong(crc.getValue()).flip();
+                channel.write(header, 0);
+            } finally {
+                fos.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static long crc(final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[65536];
+        while (payload.hasRemaining()) {
+            final int n = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+}
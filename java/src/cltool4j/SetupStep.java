@@ -0,0 +1,23 @@
+package cltool4j;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a no-argument method of a command-line tool as a setup step, independent of
+ * {@link BaseCommandlineTool#setup()} and of any other steps. Steps run concurrently with each other and
+ * with {@link BaseCommandlineTool#setup()} (e.g. loading two unrelated models), and all complete before any
+ * input is processed, so the time spent in setup is that of the longest step rather than their sum. Steps are
+ * skipped (with {@link BaseCommandlineTool#setup()}) when setup state is loaded from a snapshot (see
+ * {@link Snapshottable}).<br/>
+ * <br/>
+ * 
+ * Fields assigned by a step are visible to all threads processing input. If a step fails, the tool fails
+ * after all other steps complete.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD })
+public @interface SetupStep {
+}
@@ -0,0 +1,48 @@
+package cltool4j;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tool whose {@link BaseCommandlineTool#setup()} state can be stored in a snapshot and reloaded by later
+ * runs, skipping an expensive setup (e.g. parsing a large text model). Snapshots are enabled with
+ * <code>-setup-cache</code>; see {@link SetupSnapshot}.<br/>
+ * <br/>
+ * 
+ * A snapshot is reused only if the tool class, its {@link #snapshotKey()}, and the configuration properties
+ * all match those of the run which stored it.
+ */
+public interface Snapshottable {
+
+    /**
+     * Returns everything (other than configuration properties) which determines the state created by
+     * {@link BaseCommandlineTool#setup()}: generally the values of model-related options, any model
+     * {@link File}s, and a version number to be incremented when the snapshot layout changes. {@link File}s
+     * are keyed on their path, length, and modification time; other values on {@link String#valueOf(Object)}.
+     * Called after option parsing.
+     * 
+     * @return Snapshot key
+     */
+    public Object[] snapshotKey();
+
+    /**
+     * Writes the state created by {@link BaseCommandlineTool#setup()}
+     * 
+     * @param out Destination (buffered)
+     * @throws IOException If the write fails
+     */
+    public void writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * Restores the state written by {@link #writeSnapshot(DataOutputStream)}, in place of
+     * {@link BaseCommandlineTool#setup()}. The buffer is generally memory-mapped, so large arrays can be read
+     * in bulk (e.g. with {@link ByteBuffer#asIntBuffer()}) or accessed in place, without copying.
+     * 
+     * @param in Snapshot contents, positioned at the beginning of the state written by
+     *            {@link #writeSnapshot(DataOutputStream)}
+     * @throws IOException If the snapshot cannot be read
+     */
+    public void readSnapshot(ByteBuffer in) throws IOException;
+}
@@ -0,0 +1,59 @@
+package cltool4j;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the time spent in each phase of a command-line tool's startup, for <code>-startup-trace</code>.
+ * Each call to {@link #mark(String)} ends a phase, which began at the previous mark (or at the start of the
+ * trace; generally the initialization of {@link BaseCommandlineTool}).
+ */
+final class StartupTrace {
+
+    /** Wall-clock and monotonic times at which the trace began */
+    private final long startMillis, start;
+
+    private final List<String> phases = new ArrayList<String>();
+    private final List<Long> times = new ArrayList<Long>();
+
+    /**
+     * @param startMillis Wall-clock time at which the trace began
+     * @param start {@link System#nanoTime()} at which the trace began
+     */
+    StartupTrace(final long startMillis, final long start) {
+        this.startMillis = startMillis;
+        this.start = start;
+    }
+
+    /**
+     * Ends a phase
+     * 
+     * @param phase Name of the phase
+     */
+    synchronized void mark(final String phase) {
+        phases.add(phase);
+        times.add(System.nanoTime());
+    }
+
+    /**
+     * Reports the time spent in each phase. JVM startup (until the trace began) is measured from the JVM
+     * start time, which is only queried here, since the management classes are relatively expensive to load.
+     * 
+     * @param out Destination
+     */
+    synchronized void report(final PrintStream out) {
+        final StringBuilder sb = new StringBuilder("Startup: JVM ");
+        sb.append(startMillis - ManagementFactory.getRuntimeMXBean().getStartTime()).append(" ms");
+        long previous = start;
+        for (int i = 0; i < phases.size(); i++) {
+            sb.append(", ").append(phases.get(i)).append(' ')
+                    .append(String.format(Locale.ROOT, "%.1f", (times.get(i) - previous) / 1e6)).append(" ms");
+            previous = times.get(i);
+        }
+        sb.append(" (total ").append(String.format(Locale.ROOT, "%.1f", (previous - start) / 1e6)).append(" ms)");
+        out.println(sb);
+    }
+}
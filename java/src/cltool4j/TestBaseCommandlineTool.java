@@ -6,11 +6,14 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -47,6 +50,43 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         assertEquals("test.\n", executeTool(new Cat(), "-header 2", input));
     }
 
+    @Test
+    public void testStartupTrace() throws Exception {
+        final String input = "This is a\nthree-line\ntest.\n";
+        final String output = executeTool(new Cat(), "-startup-trace", input);
+        assertTrue(output, output.matches("Startup: JVM \\d+ ms, argument parsing [\\d.]+ ms, "
+                + "logging [\\d.]+ ms, setup [\\d.]+ ms \\(total [\\d.]+ ms\\)\n" + input));
+    }
+
+    @Test
+    public void testMainClass() throws Exception {
+        assertEquals("cltool4j.Cat", BaseCommandlineTool.mainClass("cltool4j.Cat -v 2 file"));
+        assertEquals("Cat$Inner", BaseCommandlineTool.mainClass("Cat$Inner"));
+        assertNull(BaseCommandlineTool.mainClass(null));
+        // Missing jar, or jar filename containing spaces
+        assertNull(BaseCommandlineTool.mainClass("missing.jar -v 2"));
+        assertNull(BaseCommandlineTool.mainClass("/tools/my tool.jar -v 2"));
+    }
+
+    @Test
+    public void testCdsCommand() throws Exception {
+        assertEquals(8, CdsArchive.featureVersion("1.8"));
+        assertEquals(17, CdsArchive.featureVersion("17"));
+
+        final List<String> jvm = CdsArchive.jvmCommand(Arrays.asList("-Xmx1g",
+                "-XX:SharedArchiveFile=old.jsa", "-Xshare:auto", "-agentlib:jdwp=transport=dt_socket"));
+        assertEquals(Arrays.asList("-Xmx1g"), jvm.subList(1, jvm.size()));
+
+        final List<String> tool = CdsArchive.toolCommand("Cat", new String[] { "-cds-dump", "cat.jsa",
+                "-header", "2" });
+        assertEquals(Arrays.asList("Cat", "-header", "2"), tool.subList(2, tool.size()));
+
+        assertEquals(Arrays.asList("-XX:+UseAppCDS", "-XX:SharedArchiveFile=cat.jsa"),
+                CdsArchive.archiveFlags(10, new File("cat.jsa")));
+        assertEquals(Arrays.asList("-XX:SharedArchiveFile=cat.jsa"),
+                CdsArchive.archiveFlags(17, new File("cat.jsa")));
+    }
+
     /**
      * Tests iterating over input using the {@link java.lang.Iterable} returned by
      * {@link BaseCommandlineTool#inputLines()}.
@@ -238,18 +278,72 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         assertEquals(sb.toString(), executeTool(tool, "-option foo", ""));
     }
 
+    /**
+     * Runs a daemon in a separate process, and verifies that jobs share its setup and use their own arguments
+     * and input
+     */
+    @Test
+    public void testDaemon() throws Exception {
+        final File addressFile = File.createTempFile("daemon", ".address");
+        addressFile.delete();
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process daemon = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Prefix.class.getName(), "-daemon", addressFile.getPath(), "-prefix", "daemon:", "-v", "off")
+                .redirectErrorStream(true).start();
+        try {
+            for (int i = 0; i < 1000 && !addressFile.exists(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue("Daemon did not start", addressFile.exists());
+
+            final String input = "This is a\nthree-line\ntest.\n";
+            assertEquals("1:daemon:This is a\n1:daemon:three-line\n1:daemon:test.\n",
+                    executeTool(new Prefix(), "-connect " + addressFile, input));
+            assertEquals("1:job:a\n",
+                    executeTool(new Prefix(), "-connect " + addressFile + " -prefix job:", "a\n"));
+            assertEquals("1:daemon:test.\n",
+                    executeTool(new Prefix(), "-connect " + addressFile + " -header 2", input));
+
+            // Jobs run concurrently, so a job waiting for input does not block others
+            final Process waiting = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    Prefix.class.getName(), "-connect", addressFile.getPath(), "-prefix", "waiting:")
+                    .start();
+            final BufferedReader waitingOutput = new BufferedReader(new InputStreamReader(
+                    waiting.getInputStream()));
+            waiting.getOutputStream().write("a\n".getBytes());
+            waiting.getOutputStream().flush();
+            assertEquals("1:waiting:a", waitingOutput.readLine());
+            assertEquals("1:job:b\n",
+                    executeTool(new Prefix(), "-connect " + addressFile + " -prefix job:", "b\n"));
+            waiting.getOutputStream().close();
+            assertNull(waitingOutput.readLine());
+            assertEquals(0, waiting.waitFor());
+        } finally {
+            // Deleting the address file stops the daemon
+            addressFile.delete();
+            daemon.waitFor();
+        }
+    }
+
     @Test
     public void testExtendedUsageOutput() throws Exception {
         // Test with an invalid option
         final StringBuilder sb = new StringBuilder();
-        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-version] [-charset] [-pause] [-option opt] [-header lines] [-hidden] [files]\n");
+        sb.append("Usage: TestBaseCommandlineTool$Cat [-help] [-O option / file] [-v level] [-version] [-charset] [-shard i/n] [-shard-by mode] [-pause] [-daemon file] [-connect file] [-setup-cache dir] [-startup-trace] [-cds-dump archive] [-option opt] [-header lines] [-hidden] [files]\n");
         sb.append(" -help (--help,-?)    : Print usage information\n");
         sb.append(" -O <option / file>   : Option or option file (file in Java properties format or option as key=value)\n");
         sb.append(" -v <level>           : Verbosity  (all,+5,5; finest,+4,4; finer,+3,3; fine,+2,2,debug; config,+1,1; info,0;\n");
         sb.append("                        warning,-1; severe,-2; off,-3)   Default = info\n");
         sb.append(" -version (--version) : Print version information\n");
         sb.append(" -charset             : Charset of all input (STDIN and files)\n");
+        sb.append(" -shard <i/n>         : Process only shard i of n (numbered from 0) of the input\n");
+        sb.append(" -shard-by <mode>     : Sharding mode (files, bytes, hash);   Default = files\n");
         sb.append(" -pause               : Pause for a single carriage-return after setup\n");
+        sb.append(" -daemon <file>       : Run setup once and serve jobs from -connect (writing the daemon address to file)\n");
+        sb.append(" -connect <file>      : Run as a job on the -daemon whose address is in file\n");
+        sb.append(" -setup-cache <dir>   : Store setup state in (and reload it from) dir\n");
+        sb.append(" -startup-trace       : Report time spent in each startup phase (to STDERR)\n");
+        sb.append(" -cds-dump <archive>  : Write an AppCDS archive from a training run on the input (and print JVM flags to use it)\n");
         sb.append(" -option <opt>        : Integer option;   Default = 2\n");
         sb.append(" -header <lines>      : Skip header lines\n");
         sb.append(" -hidden              : Hidden option\n");
@@ -554,6 +648,37 @@ public class TestBaseCommandlineTool extends ToolTestCase {
         }
     }
 
+    /**
+     * Prefixes each line with the number of {@link #setup()} calls and a prefix. Public, so it can be run as
+     * a daemon.
+     */
+    public static class Prefix extends BaseCommandlineTool {
+        private int setupCalls;
+
+        @Option(name = "-prefix", metaVar = "prefix", usage = "Line prefix")
+        private String prefix = "";
+
+        @Option(name = "-header", metaVar = "lines", usage = "Skip header lines")
+        private int headerLines;
+
+        public static void main(final String[] args) {
+            run(args);
+        }
+
+        @Override
+        public void setup() throws Exception {
+            setupCalls++;
+        }
+
+        @Override
+        public void run() throws Exception {
+            for (final String s : inputLines(headerLines)) {
+                context().output().println(setupCalls + ":" + prefix + s);
+                context().output().flush();
+            }
+        }
+    }
+
     /**
      * Uses the {@link BaseCommandlineTool#inputLines()} iteration method.
      */
@@ -21,8 +21,11 @@ package cltool4j;
 
 import static junit.framework.Assert.assertEquals;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 
 import org.junit.Test;
@@ -53,6 +56,59 @@ public class TestBatchCommandlineTool extends ToolTestCase {
         assertEquals(expectedOutput, executeToolFromFile(new BatchCat(), "-xt 8 -batch 5", filename));
     }
 
+    /**
+     * Tests distributing batches to worker processes, verifying that output order is preserved and that
+     * failures on a worker are handled by the coordinator's failure policy
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testWorkers() throws Exception {
+        final String filename = "simple.txt";
+        final String expectedOutput = ToolTestCase.unitTestFileAsString(filename).toUpperCase();
+        assertEquals(expectedOutput,
+                executeToolFromFile(new UpperCase(), "-workers 2 -xt 2 -batch 3 -v off", filename));
+
+        assertEquals("A\nC\n", executeTool(new UpperCase(), "-workers 1 -batch 1 -failure-policy skip -v off",
+                "a\nfail\nc\n"));
+
+        // A batch with no result
+        assertEquals("A\nC\n", executeTool(new UpperCase(), "-workers 1 -batch 1 -v off", "a\nnone\nc\n"));
+    }
+
+    @Test
+    public void testWorkerArguments() throws Exception {
+        final UpperCase tool = new UpperCase();
+        executeTool(tool, "-workers 2 -xt 2 -batch 3 -startup-trace -pause -v off", "a\n");
+        assertEquals(Arrays.asList("-v", "off"), BatchWorkers.workerArguments(tool));
+    }
+
+    /**
+     * Outputs each line in upper case (failing on 'fail', and outputting nothing for a batch containing
+     * 'none'). Public, so it can be instantiated by worker processes.
+     */
+    public static class UpperCase extends BatchCommandlineTool {
+        @Override
+        protected FutureTask<List<String>> task(final List<String> input) {
+            return new FutureTask<List<String>>(new Callable<List<String>>() {
+                @Override
+                public List<String> call() {
+                    if (input.contains("none")) {
+                        return null;
+                    }
+                    final List<String> output = new ArrayList<String>();
+                    for (final String line : input) {
+                        if (line.equals("fail")) {
+                            throw new IllegalArgumentException(line);
+                        }
+                        output.add(line.toUpperCase());
+                    }
+                    return output;
+                }
+            });
+        }
+    }
+
     /**
      * Outputs each line as-is.
      */
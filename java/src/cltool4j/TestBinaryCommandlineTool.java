@@ -0,0 +1,153 @@
+package cltool4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Unit tests for {@link BinaryCommandlineTool}
+ */
+public class TestBinaryCommandlineTool extends ToolTestCase {
+
+    @Test
+    public void testVarints() throws Exception {
+        final long[] values = new long[] { 0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE,
+                Long.MAX_VALUE };
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (final long value : values) {
+            BinaryCommandlineTool.writeVarint(bos, value);
+        }
+        // 300 = 0b100101100 -> 0xac 0x02
+        assertArrayEquals(new byte[] { (byte) 0xac, 0x02 }, varint(300));
+
+        final ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+        for (final long value : values) {
+            assertEquals(value, BinaryCommandlineTool.readVarint(bis));
+        }
+        assertEquals(-1, BinaryCommandlineTool.readVarint(bis));
+    }
+
+    @Test
+    public void testRecords() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryCommandlineTool.writeRecord(bos, "abc".getBytes());
+        BinaryCommandlineTool.writeRecord(bos, new byte[0]);
+        BinaryCommandlineTool.writeRecord(bos, new byte[1000]);
+        final byte[] large = new byte[200000];
+        new Random(1).nextBytes(large);
+        BinaryCommandlineTool.writeRecord(bos, large);
+
+        final ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+        assertArrayEquals("abc".getBytes(), BinaryCommandlineTool.readRecord(bis));
+        assertArrayEquals(new byte[0], BinaryCommandlineTool.readRecord(bis));
+        assertArrayEquals(new byte[1000], BinaryCommandlineTool.readRecord(bis));
+        assertArrayEquals(large, BinaryCommandlineTool.readRecord(bis));
+        assertNull(BinaryCommandlineTool.readRecord(bis));
+
+        // A truncated record
+        try {
+            BinaryCommandlineTool.readRecord(new ByteArrayInputStream(new byte[] { 5, 'a', 'b' }));
+            fail("Expected EOFException");
+        } catch (final EOFException expected) {
+        }
+
+        // A corrupt length fails at the end of the input, without allocating the full length
+        final ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        BinaryCommandlineTool.writeVarint(corrupt, Integer.MAX_VALUE - 8);
+        corrupt.write(new byte[100]);
+        try {
+            BinaryCommandlineTool.readRecord(new ByteArrayInputStream(corrupt.toByteArray()));
+            fail("Expected EOFException");
+        } catch (final EOFException expected) {
+        }
+    }
+
+    /**
+     * Tests ordering of multithreaded output, with plain and gzipped input. Note: {@link ToolTestCase}
+     * normalizes '\r' to '\n', so we avoid records of length 13.
+     */
+    @Test
+    public void testBinaryReverse() throws Exception {
+        final String[] records = new String[] { "first", "second", "", "x", "fifth", "sixth", "seventh" };
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        final ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+        for (final String record : records) {
+            BinaryCommandlineTool.writeRecord(input, record.getBytes());
+            BinaryCommandlineTool.writeRecord(expectedOutput, new StringBuilder(record).reverse().toString()
+                    .getBytes());
+        }
+        final String expected = new String(expectedOutput.toByteArray());
+
+        assertEquals(expected, executeTool(new BinaryReverse(), "-xt 1",
+                new ByteArrayInputStream(input.toByteArray()), false));
+        assertEquals(expected, executeTool(new BinaryReverse(), "-xt 4",
+                new ByteArrayInputStream(input.toByteArray()), false));
+
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        final GZIPOutputStream gzos = new GZIPOutputStream(gzipped);
+        gzos.write(input.toByteArray());
+        gzos.close();
+        assertEquals(expected, executeTool(new BinaryReverse(), "-xt 4",
+                new ByteArrayInputStream(gzipped.toByteArray()), false));
+    }
+
+    /**
+     * Verifies that text record options are rejected, rather than silently ignored
+     */
+    @Test
+    public void testTextRecordOptions() throws Exception {
+        for (final String[] args : new String[][] { { "-records", "nul" },
+                { "-records", "delimiter", "-record-delimiter", ";" }, { "-lines", "1-2" }, { "-index" },
+                { "-prefetch", "10" } }) {
+            try {
+                new BinaryReverse().execute(new ArrayList<String>(), args);
+                fail("Expected CmdLineException for " + Arrays.toString(args));
+            } catch (final CmdLineException expected) {
+            }
+        }
+    }
+
+    private static byte[] varint(final long value) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryCommandlineTool.writeVarint(bos, value);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reverses the bytes of each record
+     */
+    private static class BinaryReverse extends BinaryCommandlineTool {
+        private final static Random random = new Random();
+
+        @Override
+        protected FutureTask<byte[]> recordTask(final byte[] record) {
+            final byte[] reversed = new byte[record.length];
+            return new FutureTask<byte[]>(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < record.length; i++) {
+                        reversed[i] = record[record.length - i - 1];
+                    }
+                    try {
+                        Thread.sleep(random.nextInt(10));
+                    } catch (final InterruptedException ignore) {
+                    }
+                }
+            }, reversed);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Unit tests for {@link Checkpoint} and the <code>-checkpoint</code> and <code>-resume</code> options of
+ * {@link ThreadableCommandlineTool}
+ */
+public class TestCheckpoint extends ToolTestCase {
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        final File f = tempFile(".checkpoint");
+        new Checkpoint(2, "foo.gz", 1234, 56789, false).store(f);
+        final Checkpoint checkpoint = Checkpoint.load(f);
+        assertEquals(2, checkpoint.fileIndex);
+        assertEquals("foo.gz", checkpoint.filename);
+        assertEquals(1234, checkpoint.records);
+        assertEquals(56789, checkpoint.outputLength);
+        assertFalse(checkpoint.complete);
+        assertFalse(new File(f.getPath() + ".tmp").exists());
+    }
+
+    /**
+     * Tests resuming a failed job from a checkpoint, across plain and gzipped input files
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testResume() throws Exception {
+        final StringBuilder expectedOutput = new StringBuilder();
+        final String[] files = new String[3];
+        for (int i = 0; i < files.length; i++) {
+            final StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 30; j++) {
+                sb.append("line " + i + "." + j + '\n');
+            }
+            files[i] = inputFile(sb.toString(), i == 1).getPath();
+            expectedOutput.append(sb.toString().toUpperCase());
+        }
+
+        final File checkpointFile = tempFile(".checkpoint");
+        final File outputFile = tempFile(".out");
+        final String args = "-xt 4 -v off -checkpoint " + checkpointFile + " -checkpoint-interval 5"
+                + " -output-file " + outputFile + " " + files[0] + " " + files[1] + " " + files[2];
+
+        // Fail midway through the second file
+        try {
+            executeTool(new Upcase("line 1.17"), args, "");
+            fail("Expected ExecutionException");
+        } catch (final ExecutionException expected) {
+        }
+        final Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+        assertFalse(checkpoint.complete);
+        assertTrue(checkpoint.toString(), checkpoint.fileIndex == 0 || checkpoint.fileIndex == 1);
+
+        // Resume, and verify that finished input is skipped and the output is complete
+        final Upcase resumed = new Upcase(null);
+        executeTool(resumed, args + " -resume", "");
+        assertTrue("Processed " + resumed.linesProcessed.get() + " lines", resumed.linesProcessed.get() < 90);
+        assertEquals(expectedOutput.toString(), new String(Files.readAllBytes(outputFile.toPath())));
+        assertTrue(Checkpoint.load(checkpointFile).complete);
+
+        // Nothing remains to be done
+        final Upcase completed = new Upcase(null);
+        executeTool(completed, args + " -resume", "");
+        assertEquals(0, completed.linesProcessed.get());
+        assertEquals(expectedOutput.toString(), new String(Files.readAllBytes(outputFile.toPath())));
+    }
+
+    /**
+     * Verifies that <code>-checkpoint</code> is rejected as an argument error by a tool which reads its input
+     * directly
+     */
+    @Test
+    public void testUnsupportedTool() throws Exception {
+        try {
+            new BinaryCommandlineTool() {
+                @Override
+                protected FutureTask<byte[]> recordTask(final byte[] record) {
+                    return null;
+                }
+            }.execute(new ArrayList<String>(), "-checkpoint", tempFile(".checkpoint").getPath());
+            fail("Expected CmdLineException");
+        } catch (final CmdLineException expected) {
+        }
+    }
+
+    private static File tempFile(final String suffix) throws IOException {
+        final File f = File.createTempFile("checkpoint", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static File inputFile(final String contents, final boolean gzip) throws IOException {
+        final File f = tempFile(gzip ? ".txt.gz" : ".txt");
+        final OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(f))
+                : new FileOutputStream(f);
+        os.write(contents.getBytes(StandardCharsets.UTF_8));
+        os.close();
+        return f;
+    }
+
+    /**
+     * Converts lines to upper-case, optionally failing on a specified line
+     */
+    private static class Upcase extends LinewiseCommandlineTool<String> {
+        private final String failOn;
+        final AtomicInteger linesProcessed = new AtomicInteger();
+
+        public Upcase(final String failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    linesProcessed.incrementAndGet();
+                    if (line.equals(failOn)) {
+                        throw new IllegalArgumentException(line);
+                    }
+                    return line.toUpperCase();
+                }
+            });
+        }
+    }
+}
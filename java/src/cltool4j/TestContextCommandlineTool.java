@@ -0,0 +1,111 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ContextCommandlineTool} and {@link ContextRecord}
+ */
+public class TestContextCommandlineTool extends ToolTestCase {
+
+    /**
+     * Tests context spanning chunk boundaries (but not file boundaries), with single- and multithreaded
+     * execution, and verifies that chunks are reused
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testContext() throws Exception {
+        final Random random = new Random(17);
+        final String[][] lines = new String[2][];
+        final File[] files = new File[2];
+        final StringBuilder expectedOutput = new StringBuilder();
+
+        for (int f = 0; f < files.length; f++) {
+            lines[f] = new String[f == 0 ? 5000 : 50];
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < lines[f].length; i++) {
+                lines[f][i] = (random.nextInt(20) == 0 ? "match " : "line ") + f + "." + i;
+                text.append(lines[f][i]).append('\n');
+            }
+            files[f] = File.createTempFile("context", ".txt");
+            files[f].deleteOnExit();
+            Files.write(files[f].toPath(), text.toString().getBytes());
+
+            for (int i = 0; i < lines[f].length; i++) {
+                if (lines[f][i].startsWith("match")) {
+                    for (int j = Math.max(i - 3, 0); j <= Math.min(i + 3, lines[f].length - 1); j++) {
+                        expectedOutput.append(j - i).append(':').append(j + 1).append(':').append(lines[f][j])
+                                .append('\n');
+                    }
+                    expectedOutput.append("--\n");
+                }
+            }
+        }
+
+        final String args = files[0] + " " + files[1];
+        for (final int threads : new int[] { 1, 4 }) {
+            final ContextGrep tool = new ContextGrep(3);
+            tool.chunkSize = 16;
+            assertEquals(expectedOutput.toString(), executeTool(tool, "-xt " + threads + " " + args, ""));
+            assertTrue("Allocated " + tool.chunksAllocated + " chunks", tool.chunksAllocated < 20);
+        }
+
+        // Context as large as a chunk
+        final ContextGrep tool = new ContextGrep(3);
+        tool.chunkSize = 3;
+        assertEquals(expectedOutput.toString(), executeTool(tool, "-xt 4 " + args, ""));
+    }
+
+    @Test
+    public void testShortInput() throws Exception {
+        assertEquals("0:1:match\n1:2:b\n--\n", executeTool(new ContextGrep(5), "", "match\nb\n"));
+        assertEquals("-1:1:a\n0:2:match\n--\n", executeTool(new ContextGrep(5), "-xt 2", "a\nmatch\n"));
+        assertEquals("0:1:match\n--\n", executeTool(new ContextGrep(0), "", "match\nb\n"));
+        assertEquals("", executeTool(new ContextGrep(2), "", ""));
+    }
+
+    /**
+     * Outputs each line starting with 'match', with its context, as
+     * <code>offset:line number:text</code>
+     */
+    private static class ContextGrep extends ContextCommandlineTool<String> {
+
+        private final int context;
+
+        public ContextGrep(final int context) {
+            this.context = context;
+        }
+
+        @Override
+        protected int contextRecords() {
+            return context;
+        }
+
+        @Override
+        protected FutureTask<String> contextTask(final ContextRecord record) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    if (!record.record().startsWith("match")) {
+                        return "";
+                    }
+                    final StringBuilder sb = new StringBuilder();
+                    for (int i = -record.before(); i <= record.after(); i++) {
+                        sb.append(i).append(':').append(record.lineNumber(i)).append(':');
+                        sb.append(record.get(i)).append('\n');
+                    }
+                    return sb.append("--").toString();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Unit tests for {@link ExecutionContext} and embedded execution (see
+ * {@link BaseCommandlineTool#execute(ExecutionContext, String...)})
+ */
+public class TestExecutionContext {
+
+    @Test
+    public void testIterableInput() throws Exception {
+        final List<String> input = Arrays.asList("a", "b", "c");
+        assertEquals(Arrays.asList("A", "B", "C"), new UpperCase().execute(input));
+        assertEquals(Arrays.asList("prefix:A", "prefix:B", "prefix:C"),
+                new UpperCase().execute(input, "-xt", "2", "-O", "prefix=prefix:"));
+
+        // -O options are added to the run's properties, not to the global properties
+        assertNull(GlobalConfigProperties.singleton().get("prefix"));
+        assertEquals(new ArrayList<String>(), new UpperCase().execute(new ArrayList<String>()));
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ConfigProperties properties = new ConfigProperties();
+        properties.setProperty("prefix", "> ");
+        new UpperCase().execute(new ExecutionContext(new ByteArrayInputStream("x\ny\n".getBytes()),
+                new PrintStream(bos), System.err, properties));
+        assertEquals("> X\n> Y\n", bos.toString());
+    }
+
+    /**
+     * Runs many tools concurrently, verifying that each reads its own input and writes its own output
+     */
+    @Test
+    public void testConcurrentExecution() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 32; i++) {
+                final List<String> input = new ArrayList<String>();
+                for (int j = 0; j < 500; j++) {
+                    input.add("run " + i + " line " + j);
+                }
+                results.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return new UpperCase().execute(input, "-xt", "2");
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                final List<String> output = results.get(i).get();
+                assertEquals(500, output.size());
+                for (int j = 0; j < 500; j++) {
+                    assertEquals("RUN " + i + " LINE " + j, output.get(j));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidArguments() throws Exception {
+        try {
+            new UpperCase().execute(Arrays.asList("a"), "-unknown");
+            fail("Expected CmdLineException");
+        } catch (final CmdLineException expected) {
+        }
+
+        // A missing input file (other than the first) is reported by throwing, rather than exiting the JVM
+        final File file = File.createTempFile("context", ".txt");
+        try {
+            new UpperCase().execute(Arrays.asList("a"), file.getPath(), file.getPath() + ".missing");
+            fail("Expected CmdLineException");
+        } catch (final CmdLineException expected) {
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Verifies that text output and {@link RowWritable} output are encoded (and decoded) consistently,
+     * regardless of the platform default charset
+     */
+    @Test
+    public void testOutputCharset() throws Exception {
+        final String s = "\u00e9\u4e2d";
+        assertEquals(Arrays.asList(s + "\t" + s, s.toUpperCase()),
+                new Echo().execute(Arrays.asList(s), "-charset", "UTF-8"));
+    }
+
+    /**
+     * Outputs each line in upper case, with the prefix specified by the 'prefix' property
+     */
+    private static class UpperCase extends LinewiseCommandlineTool<String> {
+        private String prefix;
+
+        @Override
+        protected void setup() {
+            prefix = context().properties().getProperty("prefix", "");
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return prefix + line.toUpperCase();
+                }
+            });
+        }
+    }
+
+    /**
+     * Outputs each line twice with a {@link RowWriter}, and then in upper case as text
+     */
+    private static class Echo extends LinewiseCommandlineTool<Object> {
+
+        @Override
+        protected FutureTask<Object> lineTask(final String line) {
+            return new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return new Line(line);
+                }
+            });
+        }
+
+        @Override
+        protected void output(final Object result) {
+            super.output(result);
+            super.output(result.toString());
+        }
+
+        private static class Line implements RowWritable {
+            private final String line;
+
+            public Line(final String line) {
+                this.line = line;
+            }
+
+            @Override
+            public void writeTo(final RowWriter writer) {
+                writer.field(line).field(line).endRow();
+            }
+
+            @Override
+            public String toString() {
+                return line.toUpperCase();
+            }
+        }
+    }
+}
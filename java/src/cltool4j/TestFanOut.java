@@ -0,0 +1,157 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link FanOut}
+ */
+public class TestFanOut {
+
+    private final static String INPUT;
+    private final static String UPPER_CASE;
+    private final static String LENGTHS;
+    static {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder upperCase = new StringBuilder();
+        final StringBuilder lengths = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final String line = "line " + i;
+            input.append(line).append('\n');
+            upperCase.append(line.toUpperCase()).append('\n');
+            lengths.append(line.length()).append('\n');
+        }
+        INPUT = input.toString();
+        UPPER_CASE = upperCase.toString();
+        LENGTHS = lengths.toString();
+    }
+
+    private File plainFile, gzipFile, upperCaseFile, lengthsFile;
+
+    @Before
+    public void setUp() throws IOException {
+        plainFile = File.createTempFile("fan-out", ".txt");
+        write(new FileOutputStream(plainFile), INPUT);
+        gzipFile = File.createTempFile("fan-out", ".gz");
+        write(new GZIPOutputStream(new FileOutputStream(gzipFile)), INPUT);
+        upperCaseFile = File.createTempFile("fan-out", ".upper");
+        lengthsFile = File.createTempFile("fan-out", ".lengths");
+    }
+
+    @After
+    public void tearDown() {
+        plainFile.delete();
+        gzipFile.delete();
+        upperCaseFile.delete();
+        lengthsFile.delete();
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        new FanOut().add(new TestBatchCommandlineTool.UpperCase(), upperCaseFile, "-xt", "4", "-batch", "7")
+                .add(new Length(), lengthsFile, "-xt", "2")
+                .execute(context(""), plainFile.getPath(), gzipFile.getPath());
+        assertEquals(UPPER_CASE + UPPER_CASE, read(upperCaseFile));
+        assertEquals(LENGTHS + LENGTHS, read(lengthsFile));
+
+        // From the context input
+        new FanOut().add(new TestBatchCommandlineTool.UpperCase(), upperCaseFile)
+                .add(new Length(), lengthsFile, "-xt", "3").execute(context(INPUT));
+        assertEquals(UPPER_CASE, read(upperCaseFile));
+        assertEquals(LENGTHS, read(lengthsFile));
+    }
+
+    /**
+     * Verifies that a failing tool does not block the others, and that its failure is reported
+     */
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            new FanOut().add(new Length(), lengthsFile, "-xt", "2")
+                    .add(new Length(), upperCaseFile, "-xt", "2", "-fail")
+                    .execute(context(""), plainFile.getPath(), gzipFile.getPath());
+            fail("Expected failure");
+        } catch (final ExecutionException expected) {
+            assertTrue(expected.toString(), expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(LENGTHS + LENGTHS, read(lengthsFile));
+    }
+
+    @Test
+    public void testUnsupportedTool() {
+        try {
+            new FanOut().add(new BinaryCommandlineTool() {
+                @Override
+                protected FutureTask<byte[]> recordTask(final byte[] record) {
+                    return null;
+                }
+            }, lengthsFile);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException expected) {
+        }
+
+        // Input options cannot be honored for a single tool
+        try {
+            new FanOut().add(new Length(), lengthsFile, "-shard", "0/2", "-shard-by", "bytes");
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException expected) {
+        }
+    }
+
+    private static ExecutionContext context(final String input) {
+        return new ExecutionContext(new ByteArrayInputStream(input.getBytes()), System.out, System.err,
+                new ConfigProperties());
+    }
+
+    private static void write(final OutputStream os, final String s) throws IOException {
+        os.write(s.getBytes());
+        os.close();
+    }
+
+    private static String read(final File f) throws IOException {
+        final Scanner s = new Scanner(f).useDelimiter("\\A");
+        try {
+            return s.hasNext() ? s.next() : "";
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Outputs the length of each line
+     */
+    private static class Length extends LinewiseCommandlineTool<String> {
+
+        @cltool4j.args4j.Option(name = "-fail", usage = "Fail on line 1000")
+        private boolean fail;
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    if (fail && line.equals("line 1000")) {
+                        throw new IllegalStateException("Failed on line 1000");
+                    }
+                    return Integer.toString(line.length());
+                }
+            });
+        }
+    }
+}
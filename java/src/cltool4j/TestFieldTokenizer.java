@@ -0,0 +1,205 @@
+package cltool4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link FieldTokenizer}, {@link ColumnBatch}, and {@link ColumnBatchCommandlineTool}
+ */
+public class TestFieldTokenizer extends ToolTestCase {
+
+    @Test
+    public void testTsv() throws Exception {
+        final FieldTokenizer tokenizer = FieldTokenizer.tsv();
+        tokenizer.tokenize("a\tbb\t\tddd");
+        assertEquals(4, tokenizer.fieldCount());
+        assertEquals("a", tokenizer.stringField(0));
+        assertEquals("bb", tokenizer.stringField(1));
+        assertEquals("", tokenizer.stringField(2));
+        assertEquals("ddd", tokenizer.stringField(3));
+        assertNull(tokenizer.field(4));
+        assertEquals(2, tokenizer.start(1));
+        assertEquals(4, tokenizer.end(1));
+
+        // The tokenizer is reused for the next line
+        tokenizer.tokenize("x");
+        assertEquals(1, tokenizer.fieldCount());
+        assertEquals("x", tokenizer.stringField(0));
+        assertFalse(tokenizer.hasField(1));
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        final FieldTokenizer tokenizer = FieldTokenizer.tsv(3, 1);
+        tokenizer.tokenize("a\tb\tc\td\te\tf");
+        assertEquals("b", tokenizer.stringField(1));
+        assertEquals("d", tokenizer.stringField(3));
+        assertTrue(tokenizer.fieldEquals(3, "d"));
+        assertFalse(tokenizer.fieldEquals(3, "dd"));
+
+        try {
+            tokenizer.field(2);
+            fail("Expected IllegalArgumentException for an unprojected column");
+        } catch (final IllegalArgumentException expected) {
+        }
+        try {
+            FieldTokenizer.tsv(1, 3, 1);
+            fail("Expected IllegalArgumentException for a duplicate column");
+        } catch (final IllegalArgumentException expected) {
+        }
+
+        // Short line
+        tokenizer.tokenize("a\tb");
+        assertEquals("b", tokenizer.stringField(1));
+        assertFalse(tokenizer.hasField(3));
+        assertNull(tokenizer.field(3));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        final FieldTokenizer tokenizer = FieldTokenizer.csv();
+        tokenizer.tokenize("plain,\"quoted, with comma\",\"say \"\"hi\"\"\",,\"\"");
+        assertEquals(5, tokenizer.fieldCount());
+        assertEquals("plain", tokenizer.stringField(0));
+        assertEquals("quoted, with comma", tokenizer.stringField(1));
+        assertEquals("say \"hi\"", tokenizer.stringField(2));
+        assertEquals("", tokenizer.stringField(3));
+        assertEquals("", tokenizer.stringField(4));
+
+        // Projected CSV, skipping over quoted delimiters in unprojected columns
+        final FieldTokenizer projected = FieldTokenizer.csv(2);
+        projected.tokenize("\"a,b\",\"c,d\",e");
+        assertEquals("e", projected.stringField(2));
+    }
+
+    @Test
+    public void testTypedFields() throws Exception {
+        final FieldTokenizer tokenizer = FieldTokenizer.tsv(0, 1, 2, 3);
+        tokenizer.tokenize("42\t-9223372036854775808\t3.25\t-1.5e-3");
+        assertEquals(42, tokenizer.intField(0));
+        assertEquals(Long.MIN_VALUE, tokenizer.longField(1));
+        assertEquals(3.25, tokenizer.doubleField(2), 0);
+        assertEquals(-1.5e-3, tokenizer.doubleField(3), 0);
+
+        tokenizer.tokenize("1.7976931348623157E308\t+17\t0.1\tNaN");
+        assertEquals(Double.MAX_VALUE, tokenizer.doubleField(0), 0);
+        assertEquals(17, tokenizer.longField(1));
+        assertEquals(0.1, tokenizer.doubleField(2), 0);
+        assertTrue(Double.isNaN(tokenizer.doubleField(3)));
+
+        tokenizer.tokenize("x\t9223372036854775808\t\t1");
+        try {
+            tokenizer.intField(0);
+            fail("Expected NumberFormatException");
+        } catch (final NumberFormatException expected) {
+        }
+        try {
+            tokenizer.longField(1);
+            fail("Expected NumberFormatException on overflow");
+        } catch (final NumberFormatException expected) {
+        }
+        try {
+            tokenizer.doubleField(2);
+            fail("Expected NumberFormatException for an empty field");
+        } catch (final NumberFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testColumnBatch() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        lines.add("a,1,\"x \"\"y\"\"\",0.5");
+        lines.add("b,2,z,1.5");
+        lines.add("c,3");
+
+        final ColumnBatch batch = new ColumnBatch(lines, ',', true, new int[] { 1, 2, 3 });
+        assertEquals(3, batch.size());
+        assertArrayEquals(new int[] { 1, 2, 3 }, batch.intColumn(1));
+        assertArrayEquals(new long[] { 1, 2, 3 }, batch.longColumn(1));
+        assertArrayEquals(new String[] { "x \"y\"", "z", null }, batch.stringColumn(2));
+        assertFalse(batch.hasField(2, 3));
+        try {
+            batch.doubleColumn(3);
+            fail("Expected NumberFormatException for a missing field");
+        } catch (final NumberFormatException expected) {
+        }
+        try {
+            batch.stringColumn(0);
+            fail("Expected IllegalArgumentException for an unprojected column");
+        } catch (final IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Tests a {@link ColumnBatchCommandlineTool}, verifying ordered output with multiple threads.
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testColumnBatchTool() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expectedOutput = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            input.append("row" + i + "\tignored\t" + i + "\t" + (i / 4.0) + "\n");
+            expectedOutput.append("row" + i + "\t" + (i + i / 4.0) + "\n");
+        }
+
+        assertEquals(expectedOutput.toString(), executeTool(new SumColumns(), "-xt 1", input.toString()));
+        assertEquals(expectedOutput.toString(),
+                executeTool(new SumColumns(), "-xt 4 -batch 7", input.toString()));
+
+        assertEquals("a\t3.5\nb\t1.0\n",
+                executeTool(new SumColumns(), "-csv", "a,\"x,y\",1,2.5\n\"b\",,0,1\n"));
+
+        // Field separators, including escape sequences
+        assertEquals("a\t3.5\n", executeTool(new SumColumns(), "-fs ;", "a;x;1;2.5\n"));
+        assertEquals("a\t3.5\n", executeTool(new SumColumns(), "-fs \\x1f", "a\u001fx\u001f1\u001f2.5\n"));
+        assertEquals(expectedOutput.toString(),
+                executeTool(new SumColumns(), "-fs \\t -batch 3", input.toString()));
+
+        // Escapes are decoded in the input charset
+        assertEquals(Arrays.asList("a\t3.5"), new SumColumns().execute(
+                Arrays.asList("a\u00a7x\u00a71\u00a72.5"), "-charset", "ISO-8859-1", "-fs", "\\xa7"));
+    }
+
+    /**
+     * Outputs the first column and the sum of columns 2 and 3
+     */
+    private static class SumColumns extends ColumnBatchCommandlineTool {
+
+        @Override
+        protected int[] columns() {
+            return new int[] { 0, 2, 3 };
+        }
+
+        @Override
+        protected FutureTask<List<String>> task(final ColumnBatch batch) {
+            return new FutureTask<List<String>>(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    final String[] keys = batch.stringColumn(0);
+                    final int[] ints = batch.intColumn(2);
+                    final double[] doubles = batch.doubleColumn(3);
+
+                    final List<String> output = new ArrayList<String>(batch.size());
+                    for (int i = 0; i < batch.size(); i++) {
+                        output.add(keys[i] + "\t" + (ints[i] + doubles[i]));
+                    }
+                    return output;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link JsonPaths}, {@link JsonRecord}, and {@link JsonCommandlineTool}
+ */
+public class TestJsonCommandlineTool extends ToolTestCase {
+
+    @Test
+    public void testNestedPaths() {
+        final JsonPaths paths = JsonPaths.compile("id", "user.name", "items[1].price", "matrix[1][0]", "user",
+                "missing", "tags");
+        final JsonRecord record = paths.record("{\"skip\": {\"id\": \"wrong\", \"s\": \"}]{[\\\"\"}, "
+                + "\"id\": 42, \"user\": {\"name\": \"A \\\"quoted\\\" \\u00e9\", \"age\": 7}, "
+                + "\"items\": [{\"price\": 1.5}, {\"price\": 2.25}], \"matrix\": [[1, 2], [3, 4]], "
+                + "\"tags\": null}");
+
+        assertEquals(42, record.intValue(0));
+        assertEquals("A \"quoted\" \u00e9", record.string(1));
+        assertEquals(2.25, record.doubleValue(2), 0);
+        assertEquals(3, record.longValue(3));
+        assertEquals("{\"name\": \"A \\\"quoted\\\" \\u00e9\", \"age\": 7}", record.raw(4));
+        assertFalse(record.has(5));
+        assertTrue(record.isNull(5));
+        assertNull(record.string(5));
+        assertTrue(record.has(6));
+        assertTrue(record.isNull(6));
+        assertEquals(-1, record.longValue(5, -1));
+
+        assertEquals(2, paths.index("items[1].price"));
+        assertEquals(-1, paths.index("foo"));
+    }
+
+    @Test
+    public void testTypedValues() {
+        final JsonPaths paths = JsonPaths.compile("flag", "count", "color", "time", "quoted", "name");
+        final JsonRecord record = paths.record("{\"flag\":true,\"count\":-12,\"color\":\"GREEN\","
+                + "\"time\":\"2008-12-01T12:34:56Z\",\"quoted\":\"17\",\"na\\u006de\":\"escaped key\"}");
+
+        assertTrue(record.booleanValue(0));
+        assertEquals(-12, record.intValue(1));
+        assertSame(Color.green, record.enumValue(Color.class, 2));
+        assertEquals(1228134896000L, record.timestamp(3));
+        assertEquals(17, record.intValue(4));
+        assertTrue(record.valueEquals(4, "17"));
+        assertFalse(record.valueEquals(4, "18"));
+        assertEquals("escaped key", record.string(5));
+
+        try {
+            record.booleanValue(1);
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testMalformed() {
+        final JsonPaths paths = JsonPaths.compile("a.b");
+        for (final String json : new String[] { "{\"a\": {\"b\" 1}}", "{\"a\": {\"c\": 1}", "{\"a\": [1, 2}",
+                "{\"a\": \"unterminated}", "{\"a\": {\"c\": 1} \"x\"}" }) {
+            try {
+                paths.record(json).has(0);
+                fail("Expected IllegalArgumentException for " + json);
+            } catch (final IllegalArgumentException expected) {
+            }
+        }
+
+        // Scanning stops once all declared paths are found, so trailing garbage is not detected
+        assertEquals(1, paths.record("{\"a\": {\"b\": 1}} garbage").intValue(0));
+
+        for (final String path : new String[] { "", "a.", ".a", "a..b", "a[", "a[x]", "a[-1]" }) {
+            try {
+                JsonPaths.compile(path);
+                fail("Expected IllegalArgumentException for " + path);
+            } catch (final IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    /**
+     * Tests ordered multithreaded output from a {@link JsonCommandlineTool}
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testJsonTool() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expectedOutput = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            input.append("{\"payload\": {\"big\": [1, 2, {\"x\": \"y\"}]}, \"user\": {\"id\": " + i
+                    + "}, \"event\": \"" + (i % 3 == 0 ? "click" : "view") + "\"}\n");
+            if (i % 10 == 0) {
+                input.append("\n");
+            }
+            expectedOutput.append(i + "\t" + (i % 3 == 0 ? "click" : "view") + "\n");
+        }
+
+        assertEquals(expectedOutput.toString(), executeTool(new UserEvents(), "-xt 1", input.toString()));
+        assertEquals(expectedOutput.toString(), executeTool(new UserEvents(), "-xt 4", input.toString()));
+    }
+
+    private static class UserEvents extends JsonCommandlineTool<String> {
+
+        @Override
+        protected String[] fields() {
+            return new String[] { "user.id", "event" };
+        }
+
+        @Override
+        protected FutureTask<String> recordTask(final JsonRecord record) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return record.longValue(0) + "\t" + record.string(1);
+                }
+            });
+        }
+    }
+
+    private enum Color {
+        red, green, blue;
+    }
+}
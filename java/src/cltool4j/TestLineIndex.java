@@ -0,0 +1,198 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Unit tests for {@link LineIndex} and the <code>-lines</code> option of {@link ThreadableCommandlineTool}
+ */
+public class TestLineIndex extends ToolTestCase {
+
+    private final static String[] TERMINATORS = { "\n", "\r\n", "\r" };
+
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private byte[] contents;
+
+    /**
+     * Generates 2000 lines with mixed terminators
+     */
+    private void generate() {
+        final Random random = new Random(42);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= 2000; i++) {
+            final String line = "line " + i + (random.nextInt(10) == 0 ? "" : " " + random.nextInt());
+            lines.add(line);
+            offsets.add((long) sb.length());
+            sb.append(line).append(TERMINATORS[random.nextInt(TERMINATORS.length)]);
+        }
+        contents = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        generate();
+        for (final int members : new int[] { 0, 1, 7 }) {
+            final File f = inputFile(members);
+            final LineIndex index = LineIndex.build(f, 500);
+            assertEquals(2000, index.lineCount());
+            assertEquals(contents.length, index.length());
+            assertTrue(index.toString(), index.size() > 10);
+
+            for (final int line : new int[] { 1, 2, 777, 1000, 1999, 2000 }) {
+                final int checkpoint = index.floor(line);
+                assertTrue(index.line(checkpoint) <= line);
+                final RecordReader reader = new RecordReader.LineRecordReader(index.open(f, checkpoint),
+                        StandardCharsets.UTF_8);
+                reader.setPosition(index.line(checkpoint) - 1, index.offset(checkpoint));
+                String record;
+                do {
+                    record = reader.readRecord();
+                } while (reader.lineNumber() < line);
+                reader.close();
+
+                assertEquals(lines.get(line - 1), record);
+                assertEquals(offsets.get(line - 1).longValue(), reader.offset());
+            }
+        }
+    }
+
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        generate();
+        final File f = inputFile(3);
+        final LineIndex index = LineIndex.build(f, 1000);
+        final File sidecar = LineIndex.sidecar(f);
+        sidecar.deleteOnExit();
+        index.store(sidecar);
+        assertTrue("Index is " + sidecar.length() + " bytes", sidecar.length() < index.size() * 16);
+
+        final LineIndex loaded = LineIndex.load(sidecar);
+        assertTrue(loaded.matches(f));
+        assertEquals(index.lineCount(), loaded.lineCount());
+        assertEquals(index.size(), loaded.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(index.line(i), loaded.line(i));
+            assertEquals(index.offset(i), loaded.offset(i));
+        }
+        assertEquals(loaded.toString(), LineIndex.forFile(f, false).toString());
+
+        // A modified file invalidates the index
+        assertTrue(f.setLastModified(f.lastModified() - 10000));
+        assertFalse(loaded.matches(f));
+        assertEquals(null, LineIndex.forFile(f, false));
+    }
+
+    /**
+     * Tests <code>-lines</code> with and without line indices, on plain, GZIP, and STDIN input
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testLineRange() throws Exception {
+        generate();
+        final File plain = inputFile(0);
+        final File gzip = inputFile(7);
+        LineIndex.sidecar(plain).deleteOnExit();
+        LineIndex.sidecar(gzip).deleteOnExit();
+
+        final StringBuilder expectedOutput = new StringBuilder();
+        for (int file = 0; file < 2; file++) {
+            for (int line = 1500; line <= 1510; line++) {
+                expectedOutput.append(line + ":" + offsets.get(line - 1) + ":" + lines.get(line - 1) + "\n");
+            }
+        }
+
+        final String args = "-lines 1500-1510 " + plain + " " + gzip;
+        assertEquals(expectedOutput.toString(), executeTool(new Numbered(), "-xt 1 " + args, ""));
+        assertFalse(LineIndex.sidecar(plain).exists());
+
+        assertEquals(expectedOutput.toString(), executeTool(new Numbered(), "-xt 4 -index " + args, ""));
+        assertTrue(LineIndex.sidecar(plain).exists());
+        assertTrue(LineIndex.sidecar(gzip).exists());
+        assertEquals(expectedOutput.toString(), executeTool(new Numbered(), "-xt 2 " + args, ""));
+
+        assertEquals("2:2:b\n3:4:c\n", executeTool(new Numbered(), "-lines 2-3", "a\nb\nc\nd\n"));
+        assertEquals("3:4:c\n4:6:d\n", executeTool(new Numbered(), "-lines 3-", "a\nb\nc\nd\n"));
+
+        // Invalid ranges are argument errors, reported before setup
+        for (final String[] invalid : new String[][] { { "-lines", "3-2" }, { "-lines", "x" },
+                { "-lines", "0" }, { "-records", "nul", "-lines", "1-2" } }) {
+            final Numbered tool = new Numbered();
+            try {
+                tool.execute(Arrays.asList("a"), invalid);
+                fail("Expected CmdLineException for " + Arrays.toString(invalid));
+            } catch (final CmdLineException expected) {
+            }
+            assertFalse(tool.setup);
+        }
+    }
+
+    /**
+     * @param members 0 for a plain file, or the number of GZIP members to split the file into
+     */
+    private File inputFile(final int members) throws IOException {
+        final File f = File.createTempFile("index", members == 0 ? ".txt" : ".txt.gz");
+        f.deleteOnExit();
+        final OutputStream os = new FileOutputStream(f);
+        if (members == 0) {
+            os.write(contents);
+        } else {
+            // Split at arbitrary byte positions (possibly within "\r\n")
+            for (int i = 0; i < members; i++) {
+                final GZIPOutputStream gzip = new GZIPOutputStream(os) {
+                    @Override
+                    public void close() throws IOException {
+                        finish();
+                    }
+                };
+                final int start = contents.length * i / members, end = contents.length * (i + 1) / members;
+                gzip.write(contents, start, end - start);
+                gzip.close();
+            }
+        }
+        os.close();
+        return f;
+    }
+
+    /**
+     * Outputs each line with its line number and offset
+     */
+    private static class Numbered extends LinewiseCommandlineTool<String> {
+        boolean setup;
+
+        @Override
+        protected void setup() {
+            setup = true;
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return inputLine() + ":" + inputOffset() + ":" + line;
+                }
+            });
+        }
+    }
+}
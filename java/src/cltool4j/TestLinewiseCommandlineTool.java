@@ -1,12 +1,31 @@
 package cltool4j;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 
+import cltool4j.args4j.CmdLineException;
+
 /**
  * Unit tests for {@link LinewiseCommandlineTool}. Note that this tests the threading functionality in
  * {@link ThreadableCommandlineTool}.
@@ -51,4 +70,472 @@ public class TestLinewiseCommandlineTool extends ToolTestCase {
             }, line);
         }
     }
+
+    /**
+     * Tests stopping after a fixed number of input records
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testMaxRecords() throws Exception {
+        final String input = numberedLines(1000);
+        final String expectedOutput = numberedLines(10);
+        assertEquals(expectedOutput, executeTool(new LinewiseCat(), "-xt 1 -max-records 10", input));
+        assertEquals(expectedOutput, executeTool(new LinewiseCat(), "-xt 4 -max-records 10", input));
+    }
+
+    /**
+     * Tests a tool which stops itself after finding the matches it needs
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testRequestStop() throws Exception {
+        final String input = numberedLines(10000);
+        for (final String threads : new String[] { "-xt 1", "-xt 4" }) {
+            final FirstMatches tool = new FirstMatches(3);
+            assertEquals("7\n17\n27\n", executeTool(tool, threads, input));
+            assertTrue("Read " + tool.linesProcessed.get() + " lines", tool.linesProcessed.get() < 1000);
+        }
+    }
+
+    /**
+     * Tests that processing stops when STDOUT is closed (e.g., when output is piped to <code>head</code>)
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testClosedStdout() throws Exception {
+        final InputStream systemIn = System.in;
+        final PrintStream systemOut = System.out;
+
+        for (final String threads : new String[] { "1", "4" }) {
+            final FirstMatches tool = new FirstMatches(Integer.MAX_VALUE);
+            try {
+                System.setIn(new ByteArrayInputStream(numberedLines(100000).getBytes()));
+                System.setOut(new PrintStream(new ClosedAfter(100)));
+                tool.runInternal(new String[] { "-xt", threads });
+            } finally {
+                System.setIn(systemIn);
+                System.setOut(systemOut);
+            }
+            assertTrue("Read " + tool.linesProcessed.get() + " lines", tool.linesProcessed.get() < 10000);
+        }
+    }
+
+    /**
+     * Tests that tasks exceeding <code>-task-timeout</code> are replaced by a fallback result, whether or not
+     * they respond to interruption, and that they do not stall the remaining input
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testTaskTimeout() throws Exception {
+        final String input = "1\nsleep\n2\nspin\n3\n4\n";
+        final String expectedOutput = "1\ntimeout 2\n2\ntimeout 4\n3\n4\n";
+        for (final String threads : new String[] { "-xt 1", "-xt 2" }) {
+            final Stragglers tool = new Stragglers();
+            try {
+                assertEquals(expectedOutput,
+                        executeTool(tool, threads + " -v severe -task-timeout 200", input));
+            } finally {
+                tool.release.countDown();
+            }
+        }
+    }
+
+    /**
+     * Tests speculative re-execution of a task which is slow only on its first execution
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testSpeculation() throws Exception {
+        final String input = numberedLines(20) + "slow\n" + numberedLines(20);
+        final TransientStraggler tool = new TransientStraggler();
+        assertEquals(input, executeTool(tool, "-xt 4 -speculate 4", input));
+        assertEquals(2, tool.slowExecutions.get());
+    }
+
+    /**
+     * Tests '-failure-policy skip' and '-failure-policy retry'
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testSkipAndRetry() throws Exception {
+        final String input = "1\nbad\n2\nflaky\n3\n";
+        for (final String threads : new String[] { "-xt 1", "-xt 4" }) {
+            assertEquals("1\n2\n3\n",
+                    executeTool(new Failures(2), threads + " -v severe -failure-policy skip", input));
+            assertEquals("1\n2\nflaky\n3\n", executeTool(new Failures(2), threads
+                    + " -v severe -failure-policy retry -retries 2", "1\n2\nflaky\n3\n"));
+        }
+    }
+
+    /**
+     * Tests that a failed task aborts processing promptly (rather than deadlocking the pipeline), including
+     * when retries are exhausted
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testAbort() throws Exception {
+        final String input = "1\n2\nflaky\n" + numberedLines(100000);
+        for (final String args : new String[] { "-xt 1", "-xt 4", "-xt 1 -failure-policy retry -retries 1",
+                "-xt 4 -failure-policy retry -retries 1" }) {
+            final Failures tool = new Failures(2);
+            try {
+                executeTool(tool, args + " -v off", input);
+                fail("Expected ExecutionException");
+            } catch (final ExecutionException expected) {
+                assertEquals("Task for input 3 failed", expected.getMessage());
+            }
+            assertTrue("Read " + tool.linesProcessed.get() + " lines", tool.linesProcessed.get() < 10000);
+        }
+    }
+
+    /**
+     * Tests provenance of each input, and ordered file callbacks, with multiple (plain, empty, and gzipped)
+     * input files processed in parallel
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testProvenance() throws Exception {
+        final File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("provenance", i == 2 ? ".txt.gz" : ".txt");
+            files[i].deleteOnExit();
+        }
+        Files.write(files[0].toPath(), "a\nbb\nccc\n".getBytes());
+        final OutputStream gzip = new GZIPOutputStream(new FileOutputStream(files[2]));
+        gzip.write("x\r\ny\n".getBytes());
+        gzip.close();
+
+        final String expectedOutput = "begin 0\n0:1:0:a\n0:2:2:bb\n0:3:5:ccc\nend 0\n"
+                + "begin 1\nend 1\nbegin 2\n2:1:0:x\n2:2:3:y\nend 2\n";
+        final String args = files[0] + " " + files[1] + " " + files[2];
+        assertEquals(expectedOutput, executeTool(new Provenance(), "-xt 1 " + args, ""));
+        assertEquals(expectedOutput, executeTool(new Provenance(), "-xt 4 " + args, ""));
+
+        // Prefetched input reports the same provenance
+        assertEquals(expectedOutput, executeTool(new Provenance(), "-xt 4 -prefetch 2 " + args, ""));
+    }
+
+    /**
+     * Tests that {@link SetupStep}s run concurrently with {@link BaseCommandlineTool#setup()}, and that
+     * <code>-prefetch</code> reads input during setup
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testConcurrentSetup() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            input.append(i).append('\n');
+        }
+        assertEquals("prefetched\n" + input,
+                executeTool(new ConcurrentSetup(), "-prefetch 1000", input.toString()));
+        assertEquals(input.toString(), executeTool(new ConcurrentSetup(), "", input.toString()));
+    }
+
+    /**
+     * Tests that each mode of <code>-shard</code> divides input (plain and gzipped files, with mixed line
+     * terminators) into disjoint shards which together contain every line exactly once
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testSharding() throws Exception {
+        final Random random = new Random(7);
+        final String[] terminators = { "\n", "\r\n", "\r" };
+        final String[] expectedLines = new String[900];
+        final File[] files = new File[3];
+        for (int f = 0; f < files.length; f++) {
+            files[f] = File.createTempFile("shard", f == 2 ? ".txt.gz" : ".txt");
+            files[f].deleteOnExit();
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 300; i++) {
+                final String line = "k" + random.nextInt(17) + " " + f + "." + i;
+                expectedLines[f * 300 + i] = line;
+                sb.append(line).append(terminators[random.nextInt(terminators.length)]);
+            }
+            final OutputStream os = f == 2 ? new GZIPOutputStream(new FileOutputStream(files[f]))
+                    : new FileOutputStream(files[f]);
+            os.write(sb.toString().getBytes());
+            os.close();
+        }
+        Arrays.sort(expectedLines);
+        final String args = files[0] + " " + files[1] + " " + files[2];
+
+        for (final String mode : new String[] { "files", "bytes", "hash" }) {
+            final StringBuilder output = new StringBuilder();
+            for (int shard = 0; shard < 3; shard++) {
+                final String shardOutput = executeTool(new KeyedCat(),
+                        "-xt 2 -shard " + shard + "/3 -shard-by " + mode + " " + args, "");
+                assertTrue(mode + " shard " + shard + " is empty", shardOutput.length() > 0);
+                output.append(shardOutput);
+            }
+            final String[] lines = output.toString().split("\n");
+            Arrays.sort(lines);
+            assertEquals(mode, Arrays.asList(expectedLines).toString(), Arrays.asList(lines).toString());
+        }
+
+        // Unsupported combinations are argument errors
+        for (final String[] invalid : new String[][] {
+                { "-shard", "0/2", "-shard-by", "bytes", "-lines", "1-5" },
+                { "-shard", "0/2", "-shard-by", "bytes", "-records", "nul" } }) {
+            try {
+                new KeyedCat().execute(Arrays.asList("a"), invalid);
+                fail("Expected CmdLineException for " + Arrays.toString(invalid));
+            } catch (final CmdLineException expected) {
+            }
+        }
+    }
+
+    private static String numberedLines(final int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Outputs lines ending in '7', and stops after the specified number of matches
+     */
+    private static class FirstMatches extends LinewiseCommandlineTool<String> {
+        private final int maxMatches;
+        private int matches;
+        final AtomicInteger linesProcessed = new AtomicInteger();
+
+        public FirstMatches(final int maxMatches) {
+            this.maxMatches = maxMatches;
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    linesProcessed.incrementAndGet();
+                    return line.endsWith("7") ? line : "";
+                }
+            });
+        }
+
+        @Override
+        protected void output(final String result) {
+            super.output(result);
+            if (result.length() > 0 && ++matches == maxMatches) {
+                requestStop();
+            }
+        }
+    }
+
+    /**
+     * Echoes input lines, except 'sleep' (which waits until released, but responds to interruption) and
+     * 'spin' (which ignores interruption until released)
+     */
+    private static class Stragglers extends LinewiseCommandlineTool<String> {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (line.equals("sleep")) {
+                        release.await();
+                    } else if (line.equals("spin")) {
+                        while (true) {
+                            try {
+                                release.await();
+                                break;
+                            } catch (final InterruptedException ignore) {
+                            }
+                        }
+                    }
+                    return line;
+                }
+            });
+        }
+
+        @Override
+        protected String taskTimedOut(final String input, final long position) {
+            return "timeout " + position;
+        }
+    }
+
+    /**
+     * Echoes input lines after a short delay. The first execution of 'slow' stalls until the speculative
+     * execution has completed (or until interrupted).
+     */
+    private static class TransientStraggler extends LinewiseCommandlineTool<String> {
+        final AtomicInteger slowExecutions = new AtomicInteger();
+        final CountDownLatch speculated = new CountDownLatch(1);
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (line.equals("slow")) {
+                        if (slowExecutions.incrementAndGet() == 1) {
+                            // Bounded only so a failure to speculate cannot hang the test
+                            speculated.await(5, TimeUnit.MINUTES);
+                        } else {
+                            speculated.countDown();
+                        }
+                    }
+                    Thread.sleep(5);
+                    return line;
+                }
+            });
+        }
+    }
+
+    /**
+     * Echoes input lines. Fails on 'bad', and on the first executions of 'flaky'.
+     */
+    private static class Failures extends LinewiseCommandlineTool<String> {
+        private final int flakyFailures;
+        final AtomicInteger flakyExecutions = new AtomicInteger();
+        final AtomicInteger linesProcessed = new AtomicInteger();
+
+        public Failures(final int flakyFailures) {
+            this.flakyFailures = flakyFailures;
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    linesProcessed.incrementAndGet();
+                    if (line.equals("bad")
+                            || (line.equals("flaky") && flakyExecutions.incrementAndGet() <= flakyFailures)) {
+                        throw new IllegalArgumentException(line);
+                    }
+                    return line;
+                }
+            });
+        }
+    }
+
+    /**
+     * Prefixes each line with its file index, line number, and byte offset, and outputs file callbacks
+     */
+    private static class Provenance extends LinewiseCommandlineTool<String> {
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    // Delay, so tasks complete out of order
+                    Thread.sleep(line.length() == 1 ? 20 : 0);
+                    return inputFileIndex() + ":" + inputLine() + ":" + inputOffset() + ":" + line;
+                }
+            });
+        }
+
+        @Override
+        protected void beginFile(final String filename) {
+            System.out.println("begin " + Arrays.asList(inputFiles).indexOf(filename));
+        }
+
+        @Override
+        protected void endFile(final String filename) {
+            System.out.println("end " + Arrays.asList(inputFiles).indexOf(filename));
+        }
+    }
+
+    /**
+     * Waits in {@link #setup()} and in two setup steps until all three are running, and reports whether all
+     * input had been read before setup completed
+     */
+    private static class ConcurrentSetup extends LinewiseCommandlineTool<String> {
+
+        private final CountDownLatch running = new CountDownLatch(3);
+
+        @Override
+        protected void setup() throws Exception {
+            await();
+            // Wait briefly for any prefetch to consume the input
+            for (int i = 0; i < 100 && context().input().available() > 0; i++) {
+                Thread.sleep(10);
+            }
+            if (context().input().available() == 0) {
+                System.out.println("prefetched");
+            }
+        }
+
+        @SetupStep
+        void loadA() throws InterruptedException {
+            await();
+        }
+
+        @SetupStep
+        private void loadB() throws InterruptedException {
+            await();
+        }
+
+        private void await() throws InterruptedException {
+            running.countDown();
+            if (!running.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Setup steps did not run concurrently");
+            }
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return line;
+                }
+            });
+        }
+    }
+
+    /**
+     * Simulates a pipe closed by the reader after a fixed number of bytes
+     */
+    /**
+     * Echoes input lines, sharded by their first word
+     */
+    private static class KeyedCat extends LinewiseCommandlineTool<String> {
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return line;
+                }
+            });
+        }
+
+        @Override
+        protected CharSequence shardKey(final String record) {
+            return record.substring(0, record.indexOf(' '));
+        }
+    }
+
+    private static class ClosedAfter extends OutputStream {
+        private int remaining;
+
+        public ClosedAfter(final int bytes) {
+            this.remaining = bytes;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (--remaining < 0) {
+                throw new IOException("Broken pipe");
+            }
+        }
+    }
 }
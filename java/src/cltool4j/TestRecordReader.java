@@ -0,0 +1,197 @@
+package cltool4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+
+/**
+ * Unit tests for {@link RecordReader} implementations and their use in {@link ThreadableCommandlineTool}.
+ */
+public class TestRecordReader extends ToolTestCase {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testParseDelimiter() {
+        assertArrayEquals(new byte[] { 0 }, RecordReader.parseDelimiter("\\0", UTF8));
+        assertArrayEquals(new byte[] { '\n', '\t' }, RecordReader.parseDelimiter("\\n\\t", UTF8));
+        assertArrayEquals(new byte[] { '-', '-', 0x1e }, RecordReader.parseDelimiter("--\\x1e", UTF8));
+        assertArrayEquals(new byte[] { '\\' }, RecordReader.parseDelimiter("\\", UTF8));
+    }
+
+    @Test
+    public void testDelimitedRecordReader() throws Exception {
+        // Single-byte delimiter, with a trailing unterminated record
+        RecordReader reader = new RecordReader.DelimitedRecordReader(new ByteArrayInputStream(
+                "a b\0c\0\0d".getBytes(UTF8)), new byte[] { 0 }, UTF8);
+        assertEquals("a b", reader.readRecord());
+        assertEquals("c", reader.readRecord());
+        assertEquals("", reader.readRecord());
+        assertEquals("d", reader.readRecord());
+        assertNull(reader.readRecord());
+
+        // Multi-byte delimiter, including a partial delimiter within a record
+        reader = new RecordReader.DelimitedRecordReader(new ByteArrayInputStream(
+                "one<>two<three<><>four<>".getBytes(UTF8)), "<>".getBytes(UTF8), UTF8);
+        assertEquals("one", reader.readRecord());
+        assertEquals("two<three", reader.readRecord());
+        assertEquals("", reader.readRecord());
+        assertEquals("four", reader.readRecord());
+        assertEquals(18, reader.offset());
+        assertNull(reader.readRecord());
+    }
+
+    /**
+     * Compares byte-level line splitting with {@link BufferedReader}, and verifies line numbers and offsets
+     * 
+     * @throws Exception if an error occurs while reading
+     */
+    @Test
+    public void testLineRecordReader() throws Exception {
+        final String[] terminators = new String[] { "\n", "\r", "\r\n" };
+        final Random random = new Random(17);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            // Include some lines longer than the read buffer
+            final int length = random.nextInt(20) == 0 ? random.nextInt(100000) : random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                sb.append(j % 50 == 0 ? '\u00e9' : (char) ('a' + random.nextInt(26)));
+            }
+            sb.append(terminators[random.nextInt(terminators.length)]);
+        }
+        sb.append("unterminated");
+        final byte[] bytes = sb.toString().getBytes(UTF8);
+
+        final BufferedReader expected = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), UTF8));
+        final RecordReader reader = new RecordReader.LineRecordReader(new ByteArrayInputStream(bytes), UTF8);
+        long lineNumber = 0;
+        for (String line = expected.readLine(); line != null; line = expected.readLine()) {
+            assertEquals(line, reader.readRecord());
+            assertEquals(++lineNumber, reader.lineNumber());
+            // The line should begin at the reported offset
+            final byte[] lineBytes = line.getBytes(UTF8);
+            final int offset = (int) reader.offset();
+            assertArrayEquals(lineBytes, Arrays.copyOfRange(bytes, offset, offset + lineBytes.length));
+        }
+        assertNull(reader.readRecord());
+
+        // Charsets which are not ASCII-compatible are split by a BufferedReader, without offsets
+        final Charset utf16 = Charset.forName("UTF-16");
+        final RecordReader utf16Reader = new RecordReader.LineRecordReader(new ByteArrayInputStream(
+                "a\r\nb".getBytes(utf16)), utf16);
+        assertEquals("a", utf16Reader.readRecord());
+        assertEquals("b", utf16Reader.readRecord());
+        assertEquals(2, utf16Reader.lineNumber());
+        assertEquals(-1, utf16Reader.offset());
+    }
+
+    @Test
+    public void testParagraphs() throws Exception {
+        final String input = "\nline 1\nline 2\n\n  \nline 3\n\nline 4\nline 5\n";
+        final String expectedOutput = "line 1\nline 2\nline 3\nline 4\nline 5\n";
+        assertEquals(expectedOutput, executeTool(new RecordCat(), "-xt 1 -records paragraph", input));
+        assertEquals(expectedOutput, executeTool(new RecordCat(), "-xt 4 -records blank", input));
+
+        // Each record should be passed to a single task
+        assertEquals("2\n1\n2\n", executeTool(new RecordLineCount(), "-xt 4 -records paragraph", input));
+    }
+
+    @Test
+    public void testMultiLineRecords() throws Exception {
+        final String input = "@r1\nACGT\n+\nIIII\n@r2\nTTGA\n+\nIIII\n";
+        assertEquals("4\n4\n",
+                executeTool(new RecordLineCount(), "-xt 2 -records lines -record-lines 4", input));
+
+        // Declared with the Records annotation
+        assertEquals("4\n4\n", executeTool(new FastqLineCount(), "-xt 2", input));
+
+        // And overridden on the command-line
+        assertEquals("2\n2\n2\n2\n", executeTool(new FastqLineCount(), "-xt 2 -record-lines 2", input));
+    }
+
+    @Test
+    public void testNulDelimitedRecords() throws Exception {
+        final String input = "file 1\0file\n2\0file 3\0";
+        assertEquals("1\n2\n1\n", executeTool(new RecordLineCount(), "-xt 3 -records nul", input));
+        assertEquals("1\n2\n1\n",
+                executeTool(new RecordLineCount(), "-xt 1 -records delimiter -record-delimiter \\0", input));
+
+        // A missing delimiter is an argument error, reported before reading input
+        try {
+            new RecordLineCount().execute(Arrays.asList("a"), "-records", "delimiter");
+            fail("Expected CmdLineException");
+        } catch (final CmdLineException expected) {
+        }
+    }
+
+    @Test
+    public void testBatchedRecords() throws Exception {
+        final String input = "a\0b\0c\0d\0e";
+        assertEquals("a\nb\nc\nd\ne\n",
+                executeTool(new BatchRecordCat(), "-xt 2 -batch 2 -records nul", input));
+    }
+
+    /**
+     * Outputs each record as-is
+     */
+    private static class RecordCat extends LinewiseCommandlineTool<String> {
+        private final static Random random = new Random();
+
+        @Override
+        protected FutureTask<String> lineTask(final String record) {
+            return new FutureTask<String>(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(random.nextInt(10));
+                    } catch (final InterruptedException ignore) {
+                    }
+                }
+            }, record);
+        }
+    }
+
+    /**
+     * Outputs the number of lines in each record
+     */
+    private static class RecordLineCount extends LinewiseCommandlineTool<Integer> {
+
+        @Override
+        protected FutureTask<Integer> lineTask(final String record) {
+            return new FutureTask<Integer>(new Runnable() {
+                public void run() {
+                }
+            }, record.split("\n").length);
+        }
+    }
+
+    @Records(format = RecordFormat.lines, lines = 4)
+    private static class FastqLineCount extends RecordLineCount {
+    }
+
+    private static class BatchRecordCat extends BatchCommandlineTool {
+
+        @Override
+        protected FutureTask<List<String>> task(final List<String> input) {
+            return new FutureTask<List<String>>(new Runnable() {
+                public void run() {
+                }
+            }, new ArrayList<String>(input));
+        }
+    }
+}
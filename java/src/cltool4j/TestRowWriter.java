@@ -0,0 +1,122 @@
+package cltool4j;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RowWriter} and output of {@link RowWritable} results
+ */
+public class TestRowWriter extends ToolTestCase {
+
+    @Test
+    public void testIntegers() {
+        final RowWriter writer = new RowWriter();
+        for (final long value : new long[] { 0, 7, -7, 10, 1234567890123L, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE }) {
+            assertEquals(Long.toString(value), writer.reset().append(value).toString());
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        final RowWriter writer = new RowWriter();
+        assertEquals("3.142", writer.reset().append(Math.PI, 3).toString());
+        assertEquals("-2.50", writer.reset().append(-2.5, 2).toString());
+        assertEquals("3", writer.reset().append(2.5, 0).toString());
+        assertEquals("0.001", writer.reset().append(0.0005, 3).toString());
+        assertEquals("0.00", writer.reset().append(-0.001, 2).toString());
+        assertEquals("100000000000000000000.00", writer.reset().append(1e20, 2).toString());
+        assertEquals("NaN", writer.reset().append(Double.NaN, 2).toString());
+        assertEquals("-Infinity", writer.reset().append(Double.NEGATIVE_INFINITY, 2).toString());
+
+        // Compare with String.format for random values
+        final Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            final double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10));
+            final int decimals = random.nextInt(7);
+            final String expected = String.format(Locale.US, "%." + decimals + "f", value);
+            final String actual = writer.reset().append(value, decimals).toString();
+            // Ties may round differently, since String.format rounds the shortest decimal representation
+            assertTrue(expected + " vs " + actual, expected.equals(actual)
+                    || Math.abs(Double.parseDouble(expected) - Double.parseDouble(actual)) <= Math.pow(10,
+                            -decimals) + 1e-9);
+        }
+    }
+
+    @Test
+    public void testRows() {
+        final RowWriter writer = new RowWriter(',', StandardCharsets.UTF_8);
+        writer.field("").field("a").field(42).field(0.125, 2).endRow();
+        assertTrue(writer.atRowStart());
+        writer.field("x\u00e9\u4e2d\ud83d\ude00", 1, 5).field(-1);
+
+        final String lineSeparator = System.getProperty("line.separator");
+        assertEquals(",a,42,0.13" + lineSeparator + "\u00e9\u4e2d\ud83d\ude00,-1", writer.toString());
+        final RowWriter utf8Writer = new RowWriter(',', StandardCharsets.UTF_8);
+        utf8Writer.field("\u00e9\u4e2d\ud83d\ude00").field(-1);
+        assertArrayEquals("\u00e9\u4e2d\ud83d\ude00,-1".getBytes(StandardCharsets.UTF_8),
+                utf8Writer.toByteArray());
+
+        // Non-UTF-8 charsets
+        assertArrayEquals("\u00e9".getBytes(StandardCharsets.ISO_8859_1),
+                new RowWriter('\t', StandardCharsets.ISO_8859_1).append('\u00e9').toByteArray());
+    }
+
+    /**
+     * Tests ordered output of {@link RowWritable} results with multiple threads
+     * 
+     * @throws Exception if an error occurs while executing the tool
+     */
+    @Test
+    public void testRowWritableOutput() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expectedOutput = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            input.append(i + "\n");
+            expectedOutput.append(i + "\t" + (i * i) + "\t" + String.format(Locale.US, "%.2f", Math.sqrt(i))
+                    + "\n");
+        }
+        // Blank input lines produce no output
+        input.append("\n");
+
+        assertEquals(expectedOutput.toString(), executeTool(new Squares(), "-xt 1", input.toString()));
+        assertEquals(expectedOutput.toString(), executeTool(new Squares(), "-xt 4", input.toString()));
+    }
+
+    private static class Squares extends LinewiseCommandlineTool<Squares.Result> {
+
+        @Override
+        protected FutureTask<Result> lineTask(final String line) {
+            return new FutureTask<Result>(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return new Result(line.length() > 0 ? Integer.parseInt(line) : -1);
+                }
+            });
+        }
+
+        private static class Result implements RowWritable {
+            private final int value;
+
+            public Result(final int value) {
+                this.value = value;
+            }
+
+            @Override
+            public void writeTo(final RowWriter writer) {
+                if (value >= 0) {
+                    writer.field(value).field((long) value * value).field(Math.sqrt(value), 2);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cltool4j.args4j.CmdLineException;
+import cltool4j.args4j.Option;
+
+/**
+ * Unit tests for {@link SetupSnapshot} and <code>-setup-cache</code>
+ */
+public class TestSetupSnapshot {
+
+    private File model, cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        model = File.createTempFile("snapshot", ".model");
+        final FileOutputStream os = new FileOutputStream(model);
+        os.write("a\t1\nb\t2\nc\t3\n".getBytes());
+        os.close();
+        cacheDirectory = Files.createTempDirectory("snapshot").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        model.delete();
+        for (final File f : cacheDirectory.listFiles()) {
+            f.delete();
+        }
+        cacheDirectory.delete();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final String[] args = { "-model", model.getPath(), "-setup-cache", cacheDirectory.getPath() };
+
+        // The first run parses the model and stores a snapshot
+        Lookup tool = new Lookup();
+        assertEquals(Arrays.asList("1", "3", "?"), tool.execute(Arrays.asList("a", "c", "d"), args));
+        assertEquals(1, tool.setups);
+        assertEquals(1, cacheDirectory.listFiles().length);
+
+        // The second loads it
+        tool = new Lookup();
+        assertEquals(Arrays.asList("2", "1"), tool.execute(Arrays.asList("b", "a"), args));
+        assertEquals(0, tool.setups);
+
+        // A different option value requires a new snapshot
+        tool = new Lookup();
+        assertEquals(Arrays.asList("b:2"), tool.execute(Arrays.asList("b"), "-model", model.getPath(),
+                "-setup-cache", cacheDirectory.getPath(), "-prefix-keys"));
+        assertEquals(1, tool.setups);
+        assertEquals(2, cacheDirectory.listFiles().length);
+
+        // As does a modified model file
+        assertTrue(model.setLastModified(model.lastModified() - 10000));
+        tool = new Lookup();
+        assertEquals(Arrays.asList("1"), tool.execute(Arrays.asList("a"), args));
+        assertEquals(1, tool.setups);
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        final String[] args = { "-model", model.getPath(), "-setup-cache", cacheDirectory.getPath() };
+        new Lookup().execute(Arrays.asList("a"), args);
+        final File snapshot = cacheDirectory.listFiles()[0];
+
+        // Flip a byte in the payload
+        final RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+        raf.seek(raf.length() - 1);
+        final int b = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        final Lookup tool = new Lookup();
+        final byte[] key = SetupSnapshot.key(tool, new ConfigProperties());
+        assertFalse(SetupSnapshot.load(new File(cacheDirectory, "missing"), key, tool));
+
+        // The corrupt snapshot is ignored and replaced
+        assertEquals(Arrays.asList("3"), tool.execute(Arrays.asList("c"), args));
+        assertEquals(1, tool.setups);
+        final Lookup reloaded = new Lookup();
+        assertEquals(Arrays.asList("3"), reloaded.execute(Arrays.asList("c"), args));
+        assertEquals(0, reloaded.setups);
+    }
+
+    /**
+     * Verifies that <code>-setup-cache</code> is rejected as an argument error, before setup, for a tool
+     * which does not implement {@link Snapshottable}
+     */
+    @Test
+    public void testNotSnapshottable() throws Exception {
+        final Echo tool = new Echo();
+        try {
+            tool.execute(Arrays.asList("a"), "-setup-cache", cacheDirectory.getPath());
+            fail("Expected CmdLineException");
+        } catch (final CmdLineException expected) {
+            assertEquals("Echo does not support -setup-cache", expected.getMessage());
+        }
+        assertEquals(0, tool.setups);
+    }
+
+    /**
+     * Outputs each input line, without support for setup snapshots
+     */
+    private static class Echo extends LinewiseCommandlineTool<String> {
+
+        int setups;
+
+        @Override
+        protected void setup() {
+            setups++;
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return line;
+                }
+            });
+        }
+    }
+
+    /**
+     * Looks up each input line in a tab-delimited model file
+     */
+    private static class Lookup extends LinewiseCommandlineTool<String> implements Snapshottable {
+
+        @Option(name = "-model", metaVar = "file", usage = "Model file")
+        private File modelFile;
+
+        @Option(name = "-prefix-keys", usage = "Prefix values with keys")
+        private boolean prefixKeys;
+
+        private Map<String, String> map;
+
+        int setups;
+
+        @Override
+        protected void setup() throws IOException {
+            setups++;
+            map = new HashMap<String, String>();
+            for (final String line : fileLines(modelFile)) {
+                final String[] split = line.split("\t");
+                map.put(split[0], prefixKeys ? split[0] + ':' + split[1] : split[1]);
+            }
+        }
+
+        @Override
+        public Object[] snapshotKey() {
+            return new Object[] { 1, modelFile, prefixKeys };
+        }
+
+        @Override
+        public void writeSnapshot(final DataOutputStream out) throws IOException {
+            out.writeInt(map.size());
+            for (final Map.Entry<String, String> entry : map.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+
+        @Override
+        public void readSnapshot(final ByteBuffer in) throws IOException {
+            map = new HashMap<String, String>();
+            for (int i = in.getInt(); i > 0; i--) {
+                map.put(readString(in), readString(in));
+            }
+        }
+
+        private static String readString(final ByteBuffer in) {
+            final byte[] bytes = new byte[in.getShort() & 0xffff];
+            in.get(bytes);
+            return new String(bytes);
+        }
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return map.containsKey(line) ? map.get(line) : "?";
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cltool4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ToolChain}
+ */
+public class TestToolChain {
+
+    private final static String INPUT;
+    private final static String EXPECTED_OUTPUT;
+    static {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expectedOutput = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final String line = "line " + i + (i % 3 == 0 ? " has five words" : "");
+            input.append(line).append('\n');
+            expectedOutput.append(i % 3 == 0 ? "5: LINE " : "2: LINE ").append(i)
+                    .append(i % 3 == 0 ? " HAS FIVE WORDS" : "").append('\n');
+        }
+        INPUT = input.toString();
+        EXPECTED_OUTPUT = expectedOutput.toString();
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        for (final String threads : new String[] { "1", "4" }) {
+            assertEquals(EXPECTED_OUTPUT, execute(ToolChain.of(new Tokenize(), "-xt", threads)
+                    .then(new Count(), "-xt", threads).then(new UpperCase(), "-xt", "2")));
+        }
+        // A small queue, to exercise blocking between stages
+        assertEquals(EXPECTED_OUTPUT, execute(ToolChain.of(new Tokenize(), "-xt", "3")
+                .then(new Count(), "-xt", "1").then(new UpperCase(), "-xt", "2").queueCapacity(2)));
+    }
+
+    /**
+     * Verifies that a failure in any stage stops the other stages, and is reported
+     */
+    @Test
+    public void testFailure() throws Exception {
+        final String[] fail = { "-xt", "2", "-fail" }, succeed = { "-xt", "2" };
+        for (final boolean failCount : new boolean[] { true, false }) {
+            try {
+                execute(ToolChain.of(new Tokenize(), "-xt", "2").then(new Count(), failCount ? fail : succeed)
+                        .then(new UpperCase(), failCount ? succeed : fail));
+                fail("Expected failure");
+            } catch (final ExecutionException expected) {
+                // Thrown by the failing stage (with the default 'abort' failure policy)
+                assertTrue(expected.toString(), expected.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    /**
+     * Verifies that each stage's <code>-O</code> options apply only to that stage
+     */
+    @Test
+    public void testStageProperties() throws Exception {
+        final ConfigProperties properties = new ConfigProperties();
+        assertEquals(EXPECTED_OUTPUT, execute(ToolChain.of(new Tokenize(), "-O", "stage=tokenize")
+                .then(new Count()).then(new UpperCase(), "-O", "stage=upper"), properties));
+        assertFalse(properties.containsKey("stage"));
+    }
+
+    private String execute(final ToolChain<String> chain) throws Exception {
+        return execute(chain, new ConfigProperties());
+    }
+
+    private String execute(final ToolChain<String> chain, final ConfigProperties properties)
+            throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        chain.execute(new ExecutionContext(new ByteArrayInputStream(INPUT.getBytes()), new PrintStream(bos),
+                System.err, properties));
+        return bos.toString();
+    }
+
+    /**
+     * Splits lines into words
+     */
+    private static class Tokenize extends LinewiseCommandlineTool<String[]> {
+        @Override
+        protected FutureTask<String[]> lineTask(final String line) {
+            return new FutureTask<String[]>(new Callable<String[]>() {
+                @Override
+                public String[] call() {
+                    return line.split(" ");
+                }
+            });
+        }
+    }
+
+    /**
+     * Prefixes words (re-joined) with the word count
+     */
+    private static class Count extends ThreadableCommandlineTool<String[], String> {
+
+        @cltool4j.args4j.Option(name = "-fail", usage = "Fail on the 1000th line")
+        private boolean fail;
+
+        @Override
+        protected String[] nextInput() throws IOException {
+            final String record = nextRecord();
+            return record != null ? record.split(" ") : null;
+        }
+
+        @Override
+        protected FutureTask<String> task(final String[] words) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    if (fail && words[1].equals("1000")) {
+                        throw new IllegalStateException("Failed on line 1000");
+                    }
+                    final StringBuilder sb = new StringBuilder().append(words.length).append(':');
+                    for (final String word : words) {
+                        sb.append(' ').append(word);
+                    }
+                    return sb.toString();
+                }
+            });
+        }
+    }
+
+    private static class UpperCase extends LinewiseCommandlineTool<String> {
+
+        @cltool4j.args4j.Option(name = "-fail", usage = "Fail on the 1000th line")
+        private boolean fail;
+
+        @Override
+        protected FutureTask<String> lineTask(final String line) {
+            return new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    if (fail && line.contains(" 1000")) {
+                        throw new IllegalStateException("Failed on line 1000");
+                    }
+                    return line.toUpperCase();
+                }
+            });
+        }
+    }
+}
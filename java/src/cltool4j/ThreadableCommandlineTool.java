@@ -19,14 +19,34 @@
  */
 package cltool4j;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import cltool4j.args4j.CmdLineException;
+import cltool4j.args4j.Option;
 
 /**
  * Implements threading, and queuing such that output remains in input order. Processes input from files or
@@ -42,6 +62,144 @@ import java.util.concurrent.LinkedBlockingQueue;
 @Threadable
 public abstract class ThreadableCommandlineTool<I, R> extends BaseCommandlineTool {
 
+    /** Default record format declared by the tool class, if any */
+    private final Records records = getClass().getAnnotation(Records.class);
+
+    /**
+     * Input record format. Defaults to single lines, unless the tool class is annotated with {@link Records}
+     */
+    @Option(name = "-records", metaVar = "format", usage = "Input record format")
+    protected RecordFormat recordFormat = records != null ? records.format() : RecordFormat.line;
+
+    @Option(name = "-record-delimiter", metaVar = "delimiter", usage = "Record delimiter for '-records delimiter' (supports \\n, \\t, \\0, \\xHH)")
+    protected String recordDelimiter = records != null ? records.delimiter() : null;
+
+    @Option(name = "-record-lines", metaVar = "lines", usage = "Lines per record for '-records lines'")
+    protected int recordLines = records != null ? records.lines() : 1;
+
+    @Option(name = "-lines", metaVar = "first-last", usage = "Process only the specified lines of each input file (e.g. 1000000-2000000, or 1000000-)")
+    protected String lineRange;
+
+    @Option(name = "-index", usage = "Create line index files (file.lidx) for input files lacking them, for use with -lines")
+    protected boolean createLineIndex = false;
+
+    @Option(name = "-max-records", metaVar = "count", usage = "Stop after reading the specified number of input records")
+    protected long maxRecords = 0;
+
+    /**
+     * Reads input ahead (including decompression and splitting into records) in a background thread, starting
+     * during {@link #setup()}, so a long setup overlaps reading the first input file
+     */
+    @Option(name = "-prefetch", metaVar = "records", usage = "Read ahead up to the specified number of input records (starting during setup)")
+    protected int prefetchRecords = 0;
+
+    @Option(name = "-failure-policy", metaVar = "policy", usage = "Action on task failure")
+    protected FailurePolicy failurePolicy = FailurePolicy.abort;
+
+    @Option(name = "-retries", metaVar = "count", usage = "Retries per input for '-failure-policy retry'")
+    protected int retries = 3;
+
+    @Option(name = "-speculate", metaVar = "factor", usage = "Re-execute (idempotent) tasks running longer than factor x median task time")
+    protected float speculationFactor = 0;
+
+    @Option(name = "-task-timeout", metaVar = "ms", usage = "Abandon tasks running longer than the specified time (see taskTimedOut())")
+    protected long taskTimeout = 0;
+
+    @Option(name = "-checkpoint", metaVar = "file", usage = "Record progress periodically in the specified file (see -resume)")
+    protected File checkpointFile;
+
+    @Option(name = "-checkpoint-interval", metaVar = "inputs", usage = "Inputs output between checkpoints")
+    protected int checkpointInterval = 10000;
+
+    @Option(name = "-resume", requires = "-checkpoint", usage = "Resume from the last checkpoint, skipping finished input")
+    protected boolean resume = false;
+
+    @Option(name = "-output-file", metaVar = "file", usage = "Write output to the specified file (truncated to the checkpoint and appended to with -resume)")
+    protected File outputFile;
+
+    /** Guards the current input source */
+    private final Object inputLock = new Object();
+
+    private RecordReader recordReader;
+
+    /** Index of the current input file (or -1 for STDIN), and records read from it. Guarded by inputLock */
+    private int fileIndex = -1;
+    private long fileRecords;
+
+    /**
+     * Provenance of the first record of the input currently being read by {@link #nextInput()}. Guarded by
+     * inputLock
+     */
+    private boolean inputStarted;
+    /** Set if the input position was attributed with {@link #attributeInput}. Guarded by inputLock */
+    private boolean inputAttributed;
+    private int inputFileIndex = -1;
+    private long inputRecord = -1, inputLine = -1, inputOffset = -1;
+
+    /** The input being processed (or output) on the current thread */
+    private final ThreadLocal<PendingTask> currentInput = new ThreadLocal<PendingTask>();
+
+    /**
+     * The file whose {@link #beginFile(String)} callback was executed last. Accessed only by the output step
+     */
+    private int outputFileIndex = -1;
+
+    /**
+     * End of the byte range of the current file (exclusive) for <code>-shard-by bytes</code>, or -1. Guarded
+     * by inputLock
+     */
+    private long shardEnd = -1;
+
+    /** Line range specified with <code>-lines</code> (lastLine is 0 if unbounded) */
+    private long firstLine = 1, lastLine;
+
+    /** The checkpoint being resumed from, if any */
+    private Checkpoint resumeFrom;
+
+    /** Input position (see {@link Checkpoint}) of the last input output. Accessed only by the output step */
+    private int committedFileIndex = -1;
+    private long committedRecords;
+    private int outputsSinceCheckpoint;
+
+    /** Counts output, for checkpoints */
+    private Checkpoint.CountingOutputStream countingOutput;
+    private FileOutputStream outputFileStream;
+
+    /** Queues from the previous stage and to the next stage, when executing in a {@link ToolChain} */
+    volatile ToolChain.Link<I> chainInput;
+    volatile ToolChain.Link<R> chainOutput;
+
+    /** Batches of input records shared with other tools, when executing in a {@link FanOut} */
+    volatile ToolChain.Link<List<String>> recordFeed;
+
+    /** Input records admitted for processing (see {@link #admitRecord()}) */
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private volatile boolean stopRequested;
+
+    /** Worker pool for the multithreaded pipeline */
+    private ThreadPoolExecutor executor;
+
+    /** The failure which aborted processing (see {@link FailurePolicy#abort}) */
+    private volatile ExecutionException abortCause;
+
+    /** Failed tasks, and those skipped or retried successfully. Accessed only by the output step */
+    private int failures, skipped, retried;
+
+    /** Recent task latencies (in nanoseconds), for <code>-speculate</code> */
+    private final long[] latencies = new long[64];
+    private int latencyCount;
+    private final static int MIN_SPECULATION_SAMPLES = 8;
+
+    /** Speculative copies launched, and those which finished first. Accessed only by the output thread */
+    private int speculations, speculationWins;
+
+    /**
+     * Formats {@link RowWritable} results in the output {@link Charset}. Created (and used) only by the
+     * output step (a single thread)
+     */
+    private RowWriter rowWriter;
+
     // A simple marker denoting the end of input lines.
     protected final FutureTask<R> END_OF_INPUT_MARKER = new FutureTask<R>(new Callable<R>() {
         @Override
@@ -58,41 +216,777 @@ public abstract class ThreadableCommandlineTool<I, R> extends BaseCommandlineToo
      */
     protected abstract I nextInput() throws IOException;
 
+    /**
+     * Returns the next input record, as split by the current {@link RecordReader}. Generally used by
+     * implementations of {@link #nextInput()}.
+     * 
+     * @return The next input record, or <code>null</code> at the end of input
+     * @throws IOException If the read fails
+     */
+    protected final String nextRecord() throws IOException {
+        synchronized (inputLock) {
+            if (recordReader == null) {
+                openInput();
+            }
+            if (!admitRecord()) {
+                return null;
+            }
+            while (true) {
+                String record = recordReader.readRecord();
+                if (record != null) {
+                    fileRecords++;
+                    if (firstLine > 1 || lastLine > 0) {
+                        final long line = recordReader.lineNumber();
+                        if (line < firstLine) {
+                            continue;
+                        }
+                        if (lastLine > 0 && line > lastLine) {
+                            // Done with this file
+                            record = null;
+                        }
+                    }
+                    if (shardEnd >= 0 && recordReader.offset() >= shardEnd) {
+                        // The record begins in the next shard's byte range
+                        record = null;
+                    } else if (record != null && shards > 1 && shardMode == ShardMode.hash
+                            && shardOf(shardKey(record)) != shard) {
+                        continue;
+                    }
+                }
+                if (record != null) {
+                    if (!inputStarted) {
+                        inputStarted = true;
+                        inputFileIndex = fileIndex;
+                        inputRecord = fileRecords;
+                        inputLine = recordReader.lineNumber();
+                        inputOffset = recordReader.offset();
+                    }
+                    return record;
+                }
+                if (!nextFile()) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the provenance of the record last returned by {@link #nextRecord()} into a chunk, for
+     * implementations of {@link #nextInput()} which read ahead of the input they return (see
+     * {@link #attributeInput}).
+     */
+    final void recordProvenance(final ContextRecord.Chunk chunk, final int i) {
+        synchronized (inputLock) {
+            chunk.fileIndices[i] = fileIndex;
+            chunk.recordNumbers[i] = fileRecords;
+            chunk.lines[i] = recordReader.lineNumber();
+            chunk.offsets[i] = recordReader.offset();
+        }
+    }
+
+    /**
+     * Attributes the input about to be returned by {@link #nextInput()} to a record read earlier (see
+     * {@link #recordProvenance}). Provenance and checkpoint positions then refer to that record, rather than
+     * to the last record read.
+     */
+    final void attributeInput(final ContextRecord.Chunk chunk, final int i) {
+        synchronized (inputLock) {
+            inputStarted = true;
+            inputAttributed = true;
+            inputFileIndex = chunk.fileIndices[i];
+            inputRecord = chunk.recordNumbers[i];
+            inputLine = chunk.lines[i];
+            inputOffset = chunk.offsets[i];
+        }
+    }
+
+    /**
+     * Opens the first input source, skipping any input already processed if resuming from a checkpoint
+     */
+    private void openInput() throws IOException {
+        if (recordFeed != null) {
+            recordReader = new FanOut.FeedReader(recordFeed);
+        } else if (opensInputFiles() && inputFiles.length > 0 && inputFiles[0].length() > 0) {
+            fileIndex = resumeFrom != null ? resumeFrom.fileIndex : 0;
+            openFile();
+        } else {
+            recordReader = recordReader(inputAsStream());
+        }
+
+        if (resumeFrom != null) {
+            while (fileRecords < resumeFrom.records && recordReader.readRecord() != null) {
+                fileRecords++;
+            }
+            BaseLogger.singleton().fine("Resuming after " + resumeFrom);
+        }
+        prefetch();
+    }
+
+    /**
+     * Starts reading ahead from the current input source (see <code>-prefetch</code>)
+     */
+    private void prefetch() {
+        if (prefetchRecords > 0) {
+            recordReader = new RecordReader.PrefetchRecordReader(recordReader, prefetchRecords);
+        }
+    }
+
+    private void openFile() throws IOException {
+        currentInputFile = inputFiles[fileIndex];
+        fileRecords = 0;
+        shardEnd = -1;
+
+        if (shards > 1 && shardMode == ShardMode.bytes) {
+            openShard();
+            return;
+        }
+
+        // Seek to the first line required (for -lines or -resume) if the file has a line index
+        long seekLine = firstLine;
+        if (resumeFrom != null && fileIndex == resumeFrom.fileIndex) {
+            seekLine = Math.max(seekLine, resumeFrom.records + 1);
+        }
+        if (seekLine > 1 && recordFormat == RecordFormat.line) {
+            final File f = new File(currentInputFile);
+            final LineIndex index = LineIndex.forFile(f, createLineIndex);
+            final int checkpoint = index != null ? index.floor(seekLine) : -1;
+            if (checkpoint >= 0) {
+                recordReader = recordReader(index.open(f, checkpoint));
+                recordReader.setPosition(index.line(checkpoint) - 1, index.offset(checkpoint));
+                fileRecords = index.line(checkpoint) - 1;
+                BaseLogger.singleton().fine(
+                        "Starting " + currentInputFile + " at line " + index.line(checkpoint) + " (offset "
+                                + index.offset(checkpoint) + ")");
+                return;
+            }
+        }
+        recordReader = recordReader(fileAsInputStream(currentInputFile));
+    }
+
+    /**
+     * Opens this process's byte range of the current file (see {@link ShardMode#bytes}). A line belongs to
+     * the range containing its first byte, so we begin reading at the byte preceding the range, and discard
+     * the (partial) line containing it.
+     */
+    private void openShard() throws IOException {
+        final File f = new File(currentInputFile);
+        final InputStream is = fileAsInputStream(currentInputFile);
+        if (is instanceof GZIPInputStream) {
+            // Compressed files cannot be divided; assign them whole
+            recordReader = recordReader(fileIndex % shards == shard ? is : new ByteArrayInputStream(
+                    new byte[0]));
+            return;
+        }
+        is.close();
+
+        final long start = f.length() * shard / shards;
+        shardEnd = f.length() * (shard + 1) / shards;
+        final FileInputStream fis = new FileInputStream(f);
+        fis.getChannel().position(Math.max(start - 1, 0));
+        recordReader = recordReader(fis);
+        if (start > 0) {
+            recordReader.setPosition(-1, start - 1);
+            recordReader.readRecord();
+        }
+    }
+
+    /**
+     * Proceeds to the next input file (if the tool opens its own input files)
+     * 
+     * @return False if there are no more input files
+     */
+    private boolean nextFile() throws IOException {
+        if (fileIndex < 0 || fileIndex + 1 >= inputFiles.length) {
+            return false;
+        }
+        recordReader.close();
+        fileIndex++;
+        openFile();
+        prefetch();
+        return true;
+    }
+
+    /**
+     * Input files are opened one at a time by {@link #nextRecord()}, so the file of each record is known (see
+     * {@link #inputFile()}), and finished files can be skipped when resuming from a checkpoint. Subclasses
+     * implementing {@link #nextInput()} without {@link #nextRecord()} (reading {@link System#in} directly)
+     * must override this method to return false.
+     */
+    @Override
+    protected boolean opensInputFiles() {
+        return true;
+    }
+
+    /**
+     * Returns the index of the input file containing the input being processed by the current thread (from
+     * within a task, {@link #task(Object)}, or {@link #output(Object)}). An input comprising multiple records
+     * (e.g. a batch) is identified by its first record.
+     * 
+     * @return The index of the input file in {@link #inputFiles}, or -1 for STDIN (or if unknown)
+     */
+    protected final int inputFileIndex() {
+        final PendingTask pending = currentInput.get();
+        return pending != null ? pending.startFileIndex : -1;
+    }
+
+    /**
+     * @return The name of the input file containing the input being processed by the current thread (see
+     *         {@link #inputFileIndex()}), or <code>null</code> for STDIN (or if unknown)
+     */
+    protected final String inputFile() {
+        final int index = inputFileIndex();
+        return index >= 0 ? inputFiles[index] : null;
+    }
+
+    /**
+     * @return The number (starting from 1) of the input record being processed by the current thread, within
+     *         its input file (see {@link #inputFileIndex()}), or -1 if unknown
+     */
+    protected final long inputRecord() {
+        final PendingTask pending = currentInput.get();
+        return pending != null ? pending.startRecord : -1;
+    }
+
+    /**
+     * @return The line number (starting from 1) of the input being processed by the current thread, within
+     *         its input file (see {@link #inputFileIndex()}), or -1 if unknown or if the record format is not
+     *         line-oriented. For the default record format, equal to {@link #inputRecord()}.
+     */
+    protected final long inputLine() {
+        final PendingTask pending = currentInput.get();
+        return pending != null ? pending.startLine : -1;
+    }
+
+    /**
+     * @return The byte offset of the input being processed by the current thread, within its (decompressed)
+     *         input file (see {@link #inputFileIndex()}), or -1 if unknown (e.g. for charsets which are not
+     *         ASCII-compatible)
+     */
+    protected final long inputOffset() {
+        final PendingTask pending = currentInput.get();
+        return pending != null ? pending.startOffset : -1;
+    }
+
+    /**
+     * Counts an input record about to be read, enforcing <code>-max-records</code>. Implementations of
+     * {@link #nextInput()} which do not use {@link #nextRecord()} should call this method before reading each
+     * record.
+     * 
+     * @return False if no more input should be read (because the record limit has been reached, or
+     *         {@link #requestStop()} has been called)
+     */
+    protected final boolean admitRecord() {
+        return !stopRequested && (maxRecords <= 0 || recordCount.incrementAndGet() <= maxRecords);
+    }
+
+    /**
+     * Stops processing early: no further input is read, pending tasks are cancelled, and no further results
+     * are output. {@link #run()} then returns promptly, and {@link #cleanup()} is called as usual. Called
+     * automatically when STDOUT is closed (e.g. when output is piped to <code>head</code>).<br/>
+     * <br/>
+     * 
+     * Tools which know they have produced all the output they need (e.g. after N matches) may call this
+     * method from any thread. When called from {@link #output(Object)}, output stops exactly after the
+     * current result; when called from a task, results of earlier tasks which have not yet been output are
+     * discarded as well.
+     */
+    public final void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * @return True if {@link #requestStop()} has been called
+     */
+    protected final boolean stopRequested() {
+        return stopRequested;
+    }
+
+    /**
+     * Creates the {@link RecordReader} used to split input into records. The default implementation returns
+     * a reader for the {@link RecordFormat} specified with <code>-records</code> (or the {@link Records}
+     * annotation). Subclasses may override this method to supply other record formats.
+     * 
+     * @param input Input source (decompressed if appropriate)
+     * @return a {@link RecordReader} reading from <code>input</code>
+     * @throws IOException If unable to read from <code>input</code>
+     */
+    protected RecordReader recordReader(final InputStream input) throws IOException {
+        return recordFormat.reader(input, inputCharset(), recordDelimiter, recordLines);
+    }
+
+    /**
+     * Opens the first input source before {@link #setup()} if <code>-prefetch</code> is specified, so input
+     * is read ahead during setup
+     */
+    @Override
+    void beforeSetup() throws Exception {
+        if (prefetchRecords > 0 && opensInputFiles() && chainInput == null && prepareInput()) {
+            synchronized (inputLock) {
+                if (recordReader == null) {
+                    openInput();
+                }
+            }
+        }
+    }
+
     @Override
     public final void run() throws Exception {
+        if (serveAsWorker()) {
+            return;
+        }
+        if (!prepareInput()) {
+            return;
+        }
+
+        PrintStream previousOutput = null;
+        if (checkpointFile != null || outputFile != null) {
+            previousOutput = openOutput();
+        }
+        boolean finished = false;
+        try {
+            startWorkers();
+            process();
+            finished = true;
+        } finally {
+            stopWorkers();
+            if (countingOutput != null) {
+                context().output().flush();
+                if (checkpointFile != null) {
+                    writeCheckpoint(finished && !stopRequested);
+                }
+                redirectOutput(previousOutput);
+                if (outputFileStream != null) {
+                    outputFileStream.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects an incomplete record format before {@link #setup()}, rather than when input is first read
+     */
+    @Override
+    void checkArguments() throws Exception {
+        super.checkArguments();
+
+        if (recordFormat == RecordFormat.delimiter) {
+            try {
+                RecordReader.parseDelimiter(recordDelimiter, inputCharset());
+            } catch (final IllegalArgumentException e) {
+                throw new CmdLineException("'-records delimiter' requires a valid -record-delimiter: "
+                        + e.getMessage());
+            }
+        } else if (recordFormat == RecordFormat.lines && recordLines < 1) {
+            throw new CmdLineException("Illegal -record-lines: " + recordLines);
+        }
+
+        if (checkpointFile != null && !opensInputFiles()) {
+            throw new CmdLineException(getClass().getSimpleName() + " does not support -checkpoint");
+        }
+
+        if (lineRange != null) {
+            parseLineRange();
+        }
+
+        if (shards > 1 && shardMode != ShardMode.files) {
+            if (!opensInputFiles()) {
+                throw new CmdLineException(getClass().getSimpleName() + " does not support -shard-by "
+                        + shardMode);
+            }
+            if (shardMode == ShardMode.bytes
+                    && (recordFormat != RecordFormat.line || lineRange != null
+                            || !RecordReader.LineRecordReader.asciiCompatible(inputCharset()))) {
+                throw new CmdLineException("-shard-by bytes requires line records in an "
+                        + "ASCII-compatible charset (and cannot be combined with -lines)");
+            }
+        }
+    }
+
+    /**
+     * Validates input options, and loads the checkpoint when resuming. Called by {@link #run()}, and before
+     * {@link #setup()} when prefetching input.
+     * 
+     * @return False if there is no input left to process
+     */
+    private boolean prepareInput() throws Exception {
+        if (resume) {
+            resumeFrom = Checkpoint.load(checkpointFile);
+            if (resumeFrom.complete) {
+                BaseLogger.singleton().info("Nothing to resume (" + resumeFrom + ")");
+                return false;
+            }
+            if (resumeFrom.fileIndex >= inputFiles.length
+                    || (resumeFrom.fileIndex >= 0 && !inputFiles[resumeFrom.fileIndex]
+                            .equals(resumeFrom.filename))) {
+                throw new IOException("Checkpoint (" + resumeFrom + ") does not match input files");
+            }
+            committedFileIndex = resumeFrom.fileIndex;
+            committedRecords = resumeFrom.records;
+        }
+
+        if (opensInputFiles() && inputFiles.length > 0 && inputFiles[0].length() > 0) {
+            // checkArguments() has verified that all input files exist
+            final int firstFile = resumeFrom != null ? resumeFrom.fileIndex : 0;
+            committedFileIndex = firstFile;
+            outputFileIndex = firstFile - 1;
+        }
+        return true;
+    }
+
+    /**
+     * Redirects output through a byte counter (and to <code>-output-file</code>, if specified). When
+     * resuming, the output file is truncated to the length recorded in the checkpoint.
+     * 
+     * @return The original output
+     */
+    private PrintStream openOutput() throws IOException {
+        final long initialLength = resumeFrom != null ? resumeFrom.outputLength : 0;
+        OutputStream os = context().output();
+        if (outputFile != null) {
+            if (resumeFrom != null) {
+                final RandomAccessFile raf = new RandomAccessFile(outputFile, "rw");
+                try {
+                    if (raf.length() < initialLength) {
+                        throw new IOException("Output file " + outputFile
+                                + " is shorter than the checkpoint (" + resumeFrom + ")");
+                    }
+                    raf.setLength(initialLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            outputFileStream = new FileOutputStream(outputFile, resumeFrom != null);
+            os = outputFileStream;
+        } else if (resumeFrom != null) {
+            BaseLogger.singleton().info(
+                    "Resuming; output should be appended to the first " + initialLength
+                            + " bytes of the original output");
+        }
+        countingOutput = new Checkpoint.CountingOutputStream(os, initialLength);
+        final String charset = context().outputCharset().name();
+        return redirectOutput(new PrintStream(new BufferedOutputStream(countingOutput, 65536), false,
+                charset));
+    }
 
-        if (maxThreads == 1) {
+    /**
+     * Records that all output for the input up to the specified position has been written, and writes a
+     * checkpoint every <code>-checkpoint-interval</code> inputs. Called by the output step.
+     */
+    private void committed(final int inputFileIndex, final long inputFileRecords) {
+        // If a stop has been requested, the last result was not output
+        if (checkpointFile == null || stopRequested) {
+            return;
+        }
+        committedFileIndex = inputFileIndex;
+        committedRecords = inputFileRecords;
+        if (++outputsSinceCheckpoint >= checkpointInterval) {
+            writeCheckpoint(false);
+        }
+    }
+
+    private void writeCheckpoint(final boolean complete) {
+        try {
+            context().output().flush();
+            if (outputFileStream != null) {
+                outputFileStream.getFD().sync();
+            }
+            final String filename = committedFileIndex >= 0 ? inputFiles[committedFileIndex] : null;
+            new Checkpoint(committedFileIndex, filename, committedRecords, countingOutput.count(), complete)
+                    .store(checkpointFile);
+            outputsSinceCheckpoint = 0;
+        } catch (final IOException e) {
+            BaseLogger.singleton().warning("Unable to write checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the key used to assign a record to a shard with <code>-shard-by hash</code>. The default
+     * implementation returns the whole record; subclasses may override this method to return a field, so all
+     * records with the same key are processed by the same shard.
+     * 
+     * @param record Input record
+     * @return The record's key
+     */
+    protected CharSequence shardKey(final String record) {
+        return record;
+    }
+
+    /**
+     * @return The shard to which a key is assigned. The hash is computed as {@link String#hashCode()} is (so
+     *         assignments are stable across JVMs), and mixed to spread similar keys across shards.
+     */
+    private int shardOf(final CharSequence key) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        // MurmurHash3 finalizer
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % shards;
+    }
+
+    /**
+     * Parses the <code>-lines</code> option
+     * 
+     * @throws CmdLineException if the range is malformed, or the record format is not line-oriented
+     */
+    private void parseLineRange() throws CmdLineException {
+        if (recordFormat == RecordFormat.nul || recordFormat == RecordFormat.delimiter) {
+            throw new CmdLineException("-lines requires a line-oriented record format");
+        }
+        final int dash = lineRange.indexOf('-');
+        try {
+            if (dash < 0) {
+                firstLine = lastLine = Long.parseLong(lineRange);
+            } else {
+                firstLine = Long.parseLong(lineRange.substring(0, dash));
+                lastLine = dash < lineRange.length() - 1 ? Long.parseLong(lineRange.substring(dash + 1)) : 0;
+            }
+        } catch (final NumberFormatException e) {
+            throw new CmdLineException("Illegal line range: " + lineRange);
+        }
+        if (firstLine < 1 || (lastLine > 0 && lastLine < firstLine)) {
+            throw new CmdLineException("Illegal line range: " + lineRange);
+        }
+    }
+
+    /**
+     * @return The next input: the next result of the previous stage, when executing as a later stage of a
+     *         {@link ToolChain}, or {@link #nextInput()}
+     */
+    private I readInput() throws Exception {
+        return chainInput != null ? chainInput.take() : nextInput();
+    }
+
+    private void process() throws Exception {
+
+        if (maxThreads == 1 && taskTimeout <= 0) {
             // Single-threaded version is simple...
-            for (I input = nextInput(); input != null; input = nextInput()) {
-                final FutureTask<R> task = task(input);
-                task.run();
-                output(task.get());
+            long position = 0;
+            for (I input = readInput(); input != null && !stopRequested; input = readInput()) {
+                final PendingTask pending = new PendingTask(input, ++position);
+                pending.createTask();
+                pending.run();
+                outputResult(pending);
             }
         } else {
             // For the multi-threaded version, we need to create a separate thread which will
-            // collect the output and spit it out in-order
+            // collect the output and spit it out in-order. Task timeouts are enforced by the output thread,
+            // so we use this version (with a single worker) for '-xt 1 -task-timeout ...' as well.
 
             // Allocate a queue large enough to contain several pending tasks for each thread, but small
             // enough to avoid attempting to schedule all future jobs at once.
-            final BlockingQueue<FutureTask<R>> outputQueue = new LinkedBlockingQueue<FutureTask<R>>(
+            final BlockingQueue<PendingTask> outputQueue = new LinkedBlockingQueue<PendingTask>(
                     maxThreads * 4);
             final OutputThread outputThread = new OutputThread(outputQueue);
             outputThread.start();
 
-            final ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+            // Worker threads are daemons, so a task which ignores interruption cannot prevent exit after an
+            // early stop or a timeout
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final Thread t = defaultFactory.newThread(r);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+            long position = 0;
+            try {
+                for (I input = readInput(); input != null && !stopRequested; input = readInput()) {
+                    final PendingTask pending = new PendingTask(input, ++position);
+                    pending.createTask();
+                    outputQueue.put(pending);
+                    executor.execute(pending);
+                }
+            } catch (final Exception e) {
+                // Let the output thread drain the queue and exit
+                requestStop();
+                throw e;
+            } finally {
+                // Enqueue a marker
+                final PendingTask marker = new PendingTask(null, 0);
+                marker.task = END_OF_INPUT_MARKER;
+                outputQueue.put(marker);
+
+                // The output thread will exit when it comes to the termination marker
+                outputThread.join();
+                if (stopRequested) {
+                    executor.shutdownNow();
+                } else {
+                    executor.shutdown();
+                }
+            }
+
+            if (speculations > 0) {
+                BaseLogger.singleton().fine(
+                        "Speculatively re-executed " + speculations + " tasks (" + speculationWins
+                                + " copies finished first)");
+            }
+        }
 
-            for (I input = nextInput(); input != null; input = nextInput()) {
-                final FutureTask<R> task = task(input);
-                outputQueue.put(task);
-                executor.execute(task);
+        if (!stopRequested) {
+            // Complete the callbacks for the last file (and any empty files)
+            final int lastFile;
+            synchronized (inputLock) {
+                lastFile = fileIndex;
             }
+            if (lastFile >= 0) {
+                fileCallbacks(lastFile);
+                endFile(inputFiles[lastFile]);
+            }
+        }
 
-            // Enqueue a marker
-            outputQueue.put(END_OF_INPUT_MARKER);
+        if (failures > 0) {
+            BaseLogger.singleton().warning(
+                    failures + " tasks failed (" + skipped + " skipped, " + retried + " succeeded on retry)");
+        }
+        if (abortCause != null) {
+            throw abortCause;
+        }
+    }
 
-            // The output thread will exit when it comes to the termination marker
-            outputThread.join();
-            executor.shutdown();
+    /**
+     * Waits for the result of a task, and outputs it (in the output step)
+     */
+    private void outputResult(final PendingTask pending) throws InterruptedException {
+        currentInput.set(pending);
+        fileCallbacks(pending.startFileIndex);
+        R result;
+        try {
+            result = pending.result();
+        } catch (final ExecutionException e) {
+            result = taskFailed(pending, e);
+        }
+        emit(result);
+        committed(pending.fileIndex, pending.fileRecords);
+        if (pending.settled()) {
+            releaseInput(pending.input);
+        }
+    }
+
+    /**
+     * Executes {@link #endFile(String)} and {@link #beginFile(String)} callbacks (in the output step) for
+     * input files up to and including the specified file, so callbacks are ordered with respect to output.
+     */
+    private void fileCallbacks(final int toFileIndex) {
+        while (outputFileIndex < toFileIndex && !stopRequested) {
+            if (outputFileIndex >= 0) {
+                endFile(inputFiles[outputFileIndex]);
+            }
+            beginFile(inputFiles[++outputFileIndex]);
+        }
+    }
+
+    /**
+     * Handles a failed task, according to <code>-failure-policy</code>. Called by the output step.
+     * 
+     * @return A result to output in place of the failed task's result, or <code>null</code> for none
+     */
+    private R taskFailed(final PendingTask failed, ExecutionException failure) throws InterruptedException {
+        failures++;
+
+        if (failurePolicy == FailurePolicy.skip) {
+            BaseLogger.singleton().warning(
+                    "Skipping input " + failed.position + " (" + failure.getCause() + "): "
+                            + abbreviate(failed.input));
+            skipped++;
+            return null;
+        }
+
+        if (failurePolicy == FailurePolicy.retry) {
+            for (int attempt = 1; attempt <= retries && !stopRequested; attempt++) {
+                BaseLogger.singleton().warning(
+                        "Task for input " + failed.position + " failed (" + failure.getCause()
+                                + "); retrying (" + attempt + "/" + retries + ")");
+                final PendingTask retry = new PendingTask(failed);
+                retry.createTask();
+                if (executor == null) {
+                    retry.run();
+                } else {
+                    executor.execute(retry);
+                }
+                try {
+                    final R result = retry.result();
+                    retried++;
+                    return result;
+                } catch (final ExecutionException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        abort(failed.input, failed.position, failure.getCause());
+        return null;
+    }
+
+    /**
+     * Stops processing after a failure. The first failure recorded is rethrown from {@link #run()}, so the
+     * tool exits with a non-zero status.
+     */
+    private void abort(final I input, final long position, final Throwable cause) {
+        synchronized (this) {
+            if (abortCause != null) {
+                return;
+            }
+            abortCause = new ExecutionException("Task for input " + position + " failed", cause);
+        }
+        BaseLogger.singleton().severe("Task for input " + position + " failed: " + abbreviate(input));
+        requestStop();
+    }
+
+    /**
+     * Called when a task exceeds the <code>-task-timeout</code> deadline (measured from the time it started
+     * running). The task has already been cancelled (and interrupted); if it does not respond to
+     * interruption, an additional worker thread replaces it until it completes, so a single pathological
+     * input cannot stall the pipeline.<br/>
+     * <br/>
+     * 
+     * The default implementation returns <code>null</code>, so nothing is output for the input. Subclasses
+     * may override this method to return a fallback result.
+     * 
+     * @param input The input whose task timed out
+     * @param position The position of the input (1 for the first input returned by {@link #nextInput()})
+     * @return A fallback result to output in place of the task's result, or <code>null</code> for none
+     */
+    protected R taskTimedOut(final I input, final long position) {
+        return null;
+    }
+
+    /**
+     * Outputs a result (unless it is <code>null</code> or a stop has been requested), or hands it to the next
+     * stage of a {@link ToolChain}, and stops processing if STDOUT has been closed (or the next stage has
+     * finished). {@link java.io.PrintStream} swallows write errors, so we poll
+     * {@link java.io.PrintStream#checkError()}.
+     */
+    private void emit(final R result) {
+        if (stopRequested || result == null) {
+            return;
+        }
+        if (chainOutput != null) {
+            try {
+                if (!chainOutput.put(result)) {
+                    // The next stage has finished (or failed)
+                    requestStop();
+                }
+            } catch (final InterruptedException e) {
+                requestStop();
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        output(result);
+        if (context().output().checkError()) {
+            BaseLogger.singleton().fine("STDOUT closed; stopping");
+            requestStop();
         }
     }
 
@@ -103,41 +997,408 @@ public abstract class ThreadableCommandlineTool<I, R> extends BaseCommandlineToo
     protected abstract FutureTask<R> task(I input);
 
     /**
-     * Outputs the result to STDOUT
+     * Creates the task for an input. Tools which distribute tasks to worker processes (see
+     * {@link BatchCommandlineTool}) override this method to return a task which executes
+     * {@link #task(Object)} remotely.
+     */
+    FutureTask<R> newTask(final I input) {
+        return task(input);
+    }
+
+    /**
+     * Serves tasks for a coordinator process, if this process was launched as a worker
+     * 
+     * @return True if this process ran as a worker (and all processing is complete)
+     */
+    boolean serveAsWorker() throws Exception {
+        return false;
+    }
+
+    /**
+     * Starts (or connects to) any worker processes, before input is read
+     */
+    void startWorkers() throws IOException {
+    }
+
+    /**
+     * Shuts down any worker processes, after all output is complete (or processing has failed)
+     */
+    void stopWorkers() {
+    }
+
+    /**
+     * Called by the output step once the result for an input has been output (or skipped), when no task for
+     * the input can still be running, so resources held by the input may be reused. Not called for inputs
+     * whose tasks were abandoned after a timeout or speculatively re-executed, or after a stop has been
+     * requested; such inputs are left to the garbage collector. The default implementation does nothing.
+     * 
+     * @param input The input whose result has been output
+     */
+    protected void releaseInput(final I input) {
+    }
+
+    /**
+     * Outputs the result to STDOUT. {@link RowWritable} results are formatted directly into a reused
+     * {@link RowWriter}; others are converted with {@link Object#toString()}.
      * 
      * @param result Result to write
      */
     protected void output(final R result) {
+        if (result instanceof RowWritable) {
+            if (rowWriter == null) {
+                rowWriter = new RowWriter('\t', context().outputCharset());
+            }
+            rowWriter.reset();
+            ((RowWritable) result).writeTo(rowWriter);
+            if (rowWriter.length() > 0) {
+                if (!rowWriter.atRowStart()) {
+                    rowWriter.endRow();
+                }
+                try {
+                    rowWriter.writeTo(context().output());
+                } catch (final IOException e) {
+                    // PrintStream does not throw IOExceptions
+                }
+                context().output().flush();
+            }
+            return;
+        }
+
         final String s = result.toString();
         if (s.length() > 0) {
-            System.out.println(s);
-            System.out.flush();
+            final PrintStream out = context().output();
+            out.println(s);
+            out.flush();
         }
     }
 
+    /**
+     * Adds (or removes) a worker, replacing (or releasing the replacement for) a timed-out task which has not
+     * yet responded to interruption
+     */
+    private void resizePool(final int delta) {
+        synchronized (executor) {
+            final int size = executor.getMaximumPoolSize() + delta;
+            if (delta > 0) {
+                executor.setMaximumPoolSize(size);
+                executor.setCorePoolSize(size);
+            } else {
+                executor.setCorePoolSize(size);
+                executor.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a completed task, for <code>-speculate</code>
+     */
+    private void recordLatency(final long nanos) {
+        synchronized (latencies) {
+            latencies[latencyCount++ % latencies.length] = nanos;
+        }
+    }
+
+    /**
+     * @return The time after which the head task will be speculatively re-executed (in nanoseconds), or 0 if
+     *         speculation is disabled or too few task latencies have been recorded
+     */
+    private long speculationThreshold() {
+        final long[] sorted;
+        synchronized (latencies) {
+            if (speculationFactor <= 0 || latencyCount < MIN_SPECULATION_SAMPLES) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(latencies, Math.min(latencyCount, latencies.length));
+        }
+        Arrays.sort(sorted);
+        return Math.max((long) (sorted[sorted.length / 2] * speculationFactor), 1);
+    }
+
+    /**
+     * @return True if a worker is idle (and no tasks are waiting for one)
+     */
+    private boolean idleWorker() {
+        return executor.getActiveCount() < executor.getCorePoolSize() && executor.getQueue().isEmpty();
+    }
+
+    /**
+     * A task queued for execution and ordered output, with the input it processes. Task start and completion
+     * (of the task or its speculative copy) are signaled on this object's monitor.
+     */
+    private class PendingTask implements Runnable {
+
+        final I input;
+        final long position;
+        FutureTask<R> task;
+
+        /** Provenance of the (first record of the) input */
+        final int startFileIndex;
+        final long startRecord, startLine, startOffset;
+
+        /** Input position after reading the input (see {@link Checkpoint}) */
+        final int fileIndex;
+        final long fileRecords;
+
+        /** Speculative copy of the task (see <code>-speculate</code>). Accessed only by the output thread */
+        private FutureTask<R> copy;
+
+        /** Start time (from {@link System#nanoTime()}), valid once <code>started</code> is set */
+        private long startTime;
+        private boolean started;
+        private boolean running;
+        /** Set if the task timed out while running, and a replacement worker has been added */
+        private boolean abandoned;
+
+        /**
+         * Creates a task for the input just returned by {@link ThreadableCommandlineTool#nextInput()}
+         */
+        public PendingTask(final I input, final long position) {
+            this.input = input;
+            this.position = position;
+            synchronized (inputLock) {
+                if (inputStarted) {
+                    this.startFileIndex = inputFileIndex;
+                    this.startRecord = inputRecord;
+                    this.startLine = inputLine;
+                    this.startOffset = inputOffset;
+                    inputStarted = false;
+                } else {
+                    this.startFileIndex = -1;
+                    this.startRecord = this.startLine = this.startOffset = -1;
+                }
+                if (inputAttributed) {
+                    this.fileIndex = startFileIndex;
+                    this.fileRecords = startRecord;
+                    inputAttributed = false;
+                } else {
+                    this.fileIndex = ThreadableCommandlineTool.this.fileIndex;
+                    this.fileRecords = ThreadableCommandlineTool.this.fileRecords;
+                }
+            }
+        }
+
+        /**
+         * Creates a task to retry a failed input
+         */
+        public PendingTask(final PendingTask failed) {
+            this.input = failed.input;
+            this.position = failed.position;
+            this.startFileIndex = failed.startFileIndex;
+            this.startRecord = failed.startRecord;
+            this.startLine = failed.startLine;
+            this.startOffset = failed.startOffset;
+            this.fileIndex = failed.fileIndex;
+            this.fileRecords = failed.fileRecords;
+        }
+
+        /**
+         * Creates the {@link FutureTask} with {@link ThreadableCommandlineTool#task(Object)}, with this
+         * input's provenance visible to the current thread
+         */
+        void createTask() {
+            currentInput.set(this);
+            task = newTask(input);
+        }
+
+        @Override
+        public void run() {
+            currentInput.set(this);
+            synchronized (this) {
+                startTime = System.nanoTime();
+                started = true;
+                running = true;
+                notifyAll();
+            }
+            try {
+                task.run();
+                if (speculationFactor > 0 && !task.isCancelled()) {
+                    recordLatency(System.nanoTime() - startTime);
+                }
+                if (failurePolicy == FailurePolicy.abort && !task.isCancelled()) {
+                    // Abort at once, rather than when the output thread reaches this task
+                    try {
+                        task.get();
+                    } catch (final ExecutionException e) {
+                        abort(input, position, e.getCause());
+                    } catch (final Exception ignore) {
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (abandoned) {
+                        resizePool(-1);
+                    }
+                    notifyAll();
+                }
+                currentInput.remove();
+            }
+        }
+
+        /**
+         * @return True if the task has completed and cannot still be running (i.e. it was neither abandoned
+         *         nor speculatively re-executed)
+         */
+        synchronized boolean settled() {
+            return !abandoned && copy == null;
+        }
+
+        /**
+         * @return Time since the task started running (in nanoseconds), or -1 if it has not yet started
+         */
+        synchronized long elapsedNanos() {
+            return started ? System.nanoTime() - startTime : -1;
+        }
+
+        /**
+         * Cancels the task (and any speculative copy), adding a replacement worker if it is still running
+         */
+        void abandon() {
+            task.cancel(true);
+            if (copy != null) {
+                copy.cancel(true);
+            }
+            synchronized (this) {
+                if (running && !abandoned) {
+                    abandoned = true;
+                    resizePool(1);
+                }
+            }
+        }
+
+        /**
+         * Launches a speculative copy of the task, if a worker is idle
+         * 
+         * @return True if a copy was launched
+         */
+        boolean speculate() {
+            if (!idleWorker()) {
+                return false;
+            }
+            currentInput.set(this);
+            final FutureTask<R> c = newTask(input);
+            copy = c;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    currentInput.set(PendingTask.this);
+                    c.run();
+                    currentInput.remove();
+                    synchronized (PendingTask.this) {
+                        PendingTask.this.notifyAll();
+                    }
+                }
+            });
+            speculations++;
+            BaseLogger.singleton().fine(
+                    "Speculatively re-executing input " + position + " after "
+                            + TimeUnit.NANOSECONDS.toMillis(elapsedNanos()) + " ms");
+            return true;
+        }
+
+        /**
+         * Waits for the result of the task, enforcing <code>-task-timeout</code> and launching a speculative
+         * copy if appropriate. The first result to complete is returned, and the other copy is cancelled.
+         * 
+         * @return The task's result, or the result of {@link ThreadableCommandlineTool#taskTimedOut} if it
+         *         timed out
+         */
+        R result() throws InterruptedException, ExecutionException {
+            if (taskTimeout <= 0 && speculationFactor <= 0) {
+                return task.get();
+            }
+
+            final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(taskTimeout);
+            final long speculationNanos = speculationThreshold();
+            synchronized (this) {
+                while (!task.isDone() && (copy == null || !copy.isDone())) {
+                    // Until the task starts, we don't know its deadlines, so we wait for it to start
+                    final long elapsed = elapsedNanos();
+                    long wait = Long.MAX_VALUE;
+
+                    if (timeoutNanos > 0 && elapsed >= 0) {
+                        if (elapsed >= timeoutNanos) {
+                            abandon();
+                            BaseLogger.singleton().warning(
+                                    "Task for input " + position + " exceeded " + taskTimeout
+                                            + " ms timeout: " + abbreviate(input));
+                            return taskTimedOut(input, position);
+                        }
+                        wait = timeoutNanos - elapsed;
+                    }
+
+                    if (speculationNanos > 0 && copy == null && elapsed >= 0) {
+                        if (elapsed < speculationNanos) {
+                            wait = Math.min(wait, speculationNanos - elapsed);
+                        } else if (!speculate()) {
+                            // Check again for an idle worker shortly
+                            wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10));
+                        }
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            }
+
+            // The first copy to finish wins
+            if (task.isDone()) {
+                if (copy != null) {
+                    copy.cancel(true);
+                }
+                return task.get();
+            }
+            task.cancel(true);
+            speculationWins++;
+            return copy.get();
+        }
+    }
+
+    private static String abbreviate(final Object input) {
+        final String s = String.valueOf(input);
+        return s.length() > 200 ? s.substring(0, 200) + "..." : s;
+    }
+
     private class OutputThread extends Thread {
 
-        private final BlockingQueue<FutureTask<R>> queue;
+        private final BlockingQueue<PendingTask> queue;
 
-        public OutputThread(final BlockingQueue<FutureTask<R>> queue) {
+        public OutputThread(final BlockingQueue<PendingTask> queue) {
             this.queue = queue;
         }
 
         @Override
         public void run() {
             while (true) {
+                PendingTask pending = null;
                 try {
-                    final FutureTask<R> task = queue.take();
-                    if (task == END_OF_INPUT_MARKER) {
+                    pending = queue.take();
+                    if (pending.task == END_OF_INPUT_MARKER) {
                         return;
                     }
-                    output(task.get());
+                    if (stopRequested) {
+                        // Continue draining the queue, so the main thread is never blocked enqueueing tasks
+                        pending.task.cancel(true);
+                        continue;
+                    }
+                    outputResult(pending);
+                } catch (final CancellationException ignore) {
                 } catch (final InterruptedException ignore) {
-                } catch (final ExecutionException e) {
-                    e.printStackTrace();
-                    return;
+                } catch (final RuntimeException e) {
+                    // Failure in output; stop, but continue draining the queue
+                    abort(pending != null ? pending.input : null, pending != null ? pending.position : 0, e);
                 }
             }
         }
     }
-}
+
+    /**
+     * Actions on task failure (see <code>-failure-policy</code>)
+     */
+    public static enum FailurePolicy {
+        /** Cancel all pending tasks, and exit with a non-zero status */
+        abort,
+        /** Log the failure, and continue with the next input */
+        skip,
+        /** Retry the failed input (up to <code>-retries</code> times), and abort if it continues to fail */
+        retry;
+    }
+}
\ No newline at end of file
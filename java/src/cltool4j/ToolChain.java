@@ -0,0 +1,256 @@
+package cltool4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composes several {@link ThreadableCommandlineTool}s into a single in-process pipeline (in place of
+ * <code>toolA | toolB | toolC</code>). The results of each stage are handed to the next as objects, through a
+ * bounded queue, so no serialization or parsing is required between stages, and each stage runs
+ * {@link BaseCommandlineTool#setup()} once, with its own arguments (e.g. its own <code>-xt</code>
+ * thread count).<br/>
+ * <br/>
+ * 
+ * The first stage reads input as usual (from the {@link ExecutionContext} input or from input files), and the
+ * last stage writes output as usual. Each later stage receives the results of the previous stage in place of
+ * {@link ThreadableCommandlineTool#nextInput()}, and intermediate stages do not call
+ * {@link ThreadableCommandlineTool#output(Object)}. If any stage fails, the others are stopped, and
+ * {@link #execute(ExecutionContext)} throws the first failure.<br/>
+ * <br/>
+ * 
+ * Example usage:
+ * 
+ * <pre>
+ * ToolChain.of(new Tokenizer(), "-xt", "2").then(new Tagger(), "-xt", "8", "-model", model)
+ *         .then(new Formatter()).execute(ExecutionContext.system());
+ * </pre>
+ * 
+ * @param <R> Result type of the last stage
+ */
+public final class ToolChain<R> {
+
+    /** Default capacity of the queue between each pair of stages */
+    public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final List<Stage> stages;
+    private final int queueCapacity;
+
+    private ToolChain(final List<Stage> stages, final int queueCapacity) {
+        this.stages = stages;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param first The first stage
+     * @param args Command-line arguments for the first stage
+     * @return A chain containing only the first stage
+     */
+    public static <R> ToolChain<R> of(final ThreadableCommandlineTool<?, R> first, final String... args) {
+        return new ToolChain<R>(Collections.singletonList(new Stage(first, args)), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param next A stage consuming the results of the last stage of this chain
+     * @param args Command-line arguments for the new stage
+     * @return A new chain, with the specified stage appended
+     */
+    public <S> ToolChain<S> then(final ThreadableCommandlineTool<? super R, S> next, final String... args) {
+        final List<Stage> newStages = new ArrayList<Stage>(stages);
+        newStages.add(new Stage(next, args));
+        return new ToolChain<S>(newStages, queueCapacity);
+    }
+
+    /**
+     * @param capacity Number of results which may be queued between each pair of stages
+     * @return A new chain, with the specified queue capacity
+     */
+    public ToolChain<R> queueCapacity(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Illegal queue capacity: " + capacity);
+        }
+        return new ToolChain<R>(stages, capacity);
+    }
+
+    /**
+     * Executes all stages concurrently, and waits for them to complete
+     * 
+     * @param context Input of the first stage, output of the last, and error output, output
+     *            {@link java.nio.charset.Charset}, and configuration of all stages. Each stage's
+     *            <code>-O</code> options are added to its own copy of the configuration.
+     * @throws Exception the first failure of any stage
+     */
+    public void execute(final ExecutionContext context) throws Exception {
+        for (final Stage stage : stages) {
+            if (stage.tool.chainInput != null || stage.tool.chainOutput != null) {
+                throw new IllegalStateException(stage.tool.getClass().getSimpleName()
+                        + " is already executing in a chain");
+            }
+        }
+
+        final int n = stages.size();
+        final List<Link<Object>> links = new ArrayList<Link<Object>>();
+        for (int i = 0; i < n - 1; i++) {
+            links.add(new Link<Object>(queueCapacity));
+        }
+
+        final PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        });
+
+        final Throwable[] failure = new Throwable[1];
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < n; i++) {
+            final Stage stage = stages.get(i);
+            final Link<Object> input = i > 0 ? links.get(i - 1) : null;
+            final Link<Object> output = i < n - 1 ? links.get(i) : null;
+            stage.tool.chainInput = input;
+            stage.tool.chainOutput = output;
+            final ExecutionContext stageContext = context.fork(input == null ? context.input()
+                    : new ByteArrayInputStream(new byte[0]), output == null ? context.output() : discard);
+
+            final Thread t = new Thread("chain-stage-" + i + "-" + stage.tool.getClass().getSimpleName()) {
+                @Override
+                public void run() {
+                    try {
+                        stage.tool.execute(stageContext, stage.args);
+                    } catch (final Throwable e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                        // Stop all stages, and unblock any stage waiting on a queue
+                        for (final Stage s : stages) {
+                            s.tool.requestStop();
+                        }
+                        for (final Link<Object> link : links) {
+                            link.close();
+                        }
+                    } finally {
+                        if (output != null) {
+                            output.finish();
+                        }
+                        if (input != null) {
+                            // The previous stage may stop once this stage cannot consume its results
+                            input.close();
+                        }
+                    }
+                }
+            };
+            threads.add(t);
+        }
+
+        try {
+            for (final Thread t : threads) {
+                t.start();
+            }
+            for (final Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            for (final Stage stage : stages) {
+                stage.tool.chainInput = null;
+                stage.tool.chainOutput = null;
+            }
+        }
+
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        } else if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+    }
+
+    private static final class Stage {
+        final ThreadableCommandlineTool<Object, Object> tool;
+        final String[] args;
+
+        @SuppressWarnings("unchecked")
+        Stage(final ThreadableCommandlineTool<?, ?> tool, final String[] args) {
+            this.tool = (ThreadableCommandlineTool<Object, Object>) tool;
+            this.args = args.clone();
+        }
+    }
+
+    /**
+     * A bounded queue between two stages. The producing stage stops when the consuming stage closes the queue
+     * (after completing or failing).
+     */
+    static final class Link<T> {
+
+        private final static Object END = new Object();
+
+        private final BlockingQueue<Object> queue;
+        private volatile boolean closed;
+
+        Link(final int capacity) {
+            this.queue = new ArrayBlockingQueue<Object>(capacity);
+        }
+
+        /**
+         * Queues a result, waiting for space if necessary
+         * 
+         * @return False if the consuming stage has closed the queue
+         */
+        boolean put(final T result) throws InterruptedException {
+            return offer(result);
+        }
+
+        private boolean offer(final Object o) throws InterruptedException {
+            while (!closed) {
+                if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Marks the end of the producing stage's results
+         */
+        void finish() {
+            try {
+                offer(END);
+            } catch (final InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * @return The next result, or <code>null</code> when the producing stage has finished
+         */
+        @SuppressWarnings("unchecked")
+        T take() throws InterruptedException {
+            final Object o = queue.take();
+            if (o == END) {
+                // Leave the marker for any subsequent call
+                queue.offer(END);
+                return null;
+            }
+            return (T) o;
+        }
+
+        /**
+         * Discards queued results, and causes subsequent calls to {@link #put(Object)} to return false
+         */
+        void close() {
+            closed = true;
+            queue.clear();
+            // Wake a consumer waiting on an empty queue
+            queue.offer(END);
+        }
+    }
+}
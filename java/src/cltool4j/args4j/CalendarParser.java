@@ -58,71 +58,89 @@ import java.util.Date;
  * <li>MM/dd</li>
  * </ul>
  * 
+ * ISO 8601 timestamps and '@'-prefixed epoch seconds are parsed first, without {@link SimpleDateFormat} (see
+ * {@link SliceParser#parseTimestamp(CharSequence)}). The remaining formats are parsed with per-thread
+ * {@link SimpleDateFormat} instances, so {@link #parseDate(String)} is safe to call concurrently (e.g., from
+ * worker threads).
+ * 
  * @author Aaron Dunlop
  * 
  */
 public class CalendarParser extends ArgumentParser<Calendar> {
 
-    protected final static SimpleDateFormat COMMANDLINE_DATE_FORMATS[] = new SimpleDateFormat[] {
+    protected final static String COMMANDLINE_DATE_PATTERNS[] = new String[] {
             // Dash-separated, without time
-            new SimpleDateFormat("yyyy-MM-dd"),
-            new SimpleDateFormat("MM-dd-yyyy"),
-            new SimpleDateFormat("MM-dd-yy"),
-            new SimpleDateFormat("MM-dd"),
+            "yyyy-MM-dd", "MM-dd-yyyy", "MM-dd-yy", "MM-dd",
 
             // Dash-separated, with time
-            new SimpleDateFormat("MM-dd-yyyy HH:mm:ss"),
-            new SimpleDateFormat("MM-dd-yy HH:mm:ss"),
-            new SimpleDateFormat("MM-dd HH:mm:ss"),
-            new SimpleDateFormat("MM-dd-yyyy HH:mm"),
-            new SimpleDateFormat("MM-dd-yy HH:mm"),
-            new SimpleDateFormat("MM-dd HH:mm"),
+            "MM-dd-yyyy HH:mm:ss", "MM-dd-yy HH:mm:ss", "MM-dd HH:mm:ss",
+            "MM-dd-yyyy HH:mm", "MM-dd-yy HH:mm", "MM-dd HH:mm",
 
             // Dot-separated, with time
-            new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS.ZZZ"),
-            new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss.SSS"),
-            new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss"),
-            new SimpleDateFormat("yyyy.MM.dd.HH.mm"),
-            new SimpleDateFormat("yyyy.MM.dd.HH.mm"),
+            "yyyy.MM.dd.HH.mm.ss.SSS.ZZZ", "yyyy.MM.dd.HH.mm.ss.SSS", "yyyy.MM.dd.HH.mm.ss",
+            "yyyy.MM.dd.HH.mm",
 
             // Dot- and colon-separated, with time
-            new SimpleDateFormat("yyyy.MM.dd HH:mm:ss.SSS ZZZ"),
-            new SimpleDateFormat("yyyy.MM.dd HH:mm:ss.SSS"), new SimpleDateFormat("yyyy.MM.dd HH:mm:ss"),
-            new SimpleDateFormat("yyyy.MM.dd HH:mm"),
+            "yyyy.MM.dd HH:mm:ss.SSS ZZZ", "yyyy.MM.dd HH:mm:ss.SSS", "yyyy.MM.dd HH:mm:ss",
+            "yyyy.MM.dd HH:mm",
 
-            new SimpleDateFormat("MM.dd.yyyy HH:mm:ss"),
-            new SimpleDateFormat("MM.dd.yy HH:mm:ss"),
-            new SimpleDateFormat("MM.dd HH:mm:ss"),
-            new SimpleDateFormat("MM.dd.yyyy HH:mm"),
-            new SimpleDateFormat("MM.dd.yy HH:mm"),
-            new SimpleDateFormat("MM.dd HH:mm"),
+            "MM.dd.yyyy HH:mm:ss", "MM.dd.yy HH:mm:ss", "MM.dd HH:mm:ss",
+            "MM.dd.yyyy HH:mm", "MM.dd.yy HH:mm", "MM.dd HH:mm",
 
             // Dot-separated, without time
-            new SimpleDateFormat("yyyy.MM.dd"),
-            new SimpleDateFormat("MM.dd.yyyy"),
-            new SimpleDateFormat("MM.dd.yy"),
-            new SimpleDateFormat("MM.dd"),
+            "yyyy.MM.dd", "MM.dd.yyyy", "MM.dd.yy", "MM.dd",
 
             // Slash-separated, with time
-            new SimpleDateFormat("MM/dd/yyyy HH:mm:ss"), new SimpleDateFormat("MM/dd/yy HH:mm:ss"),
-            new SimpleDateFormat("MM/dd HH:mm:ss"), new SimpleDateFormat("MM/dd/yyyy HH:mm"),
-            new SimpleDateFormat("MM/dd/yy HH:mm"), new SimpleDateFormat("MM/dd HH:mm"),
+            "MM/dd/yyyy HH:mm:ss", "MM/dd/yy HH:mm:ss", "MM/dd HH:mm:ss",
+            "MM/dd/yyyy HH:mm", "MM/dd/yy HH:mm", "MM/dd HH:mm",
 
             // Slash-separated, without time
-            new SimpleDateFormat("yyyy/MM/dd"), new SimpleDateFormat("MM/dd/yyyy"),
-            new SimpleDateFormat("MM/dd/yy"), new SimpleDateFormat("MM/dd") };
+            "yyyy/MM/dd", "MM/dd/yyyy", "MM/dd/yy", "MM/dd" };
+
+    /**
+     * Shared instances of {@link #COMMANDLINE_DATE_PATTERNS}, retained for compatibility with subclasses.
+     * 
+     * @deprecated {@link SimpleDateFormat} is not thread-safe, so these instances must not be used
+     *             concurrently. Use {@link #parseDate(String)}, or create instances from
+     *             {@link #COMMANDLINE_DATE_PATTERNS}.
+     */
+    @Deprecated
+    protected final static SimpleDateFormat COMMANDLINE_DATE_FORMATS[] = new SimpleDateFormat[
+            COMMANDLINE_DATE_PATTERNS.length];
 
     static {
-        for (final SimpleDateFormat formatter : COMMANDLINE_DATE_FORMATS) {
-            formatter.setLenient(false);
+        for (int i = 0; i < COMMANDLINE_DATE_FORMATS.length; i++) {
+            COMMANDLINE_DATE_FORMATS[i] = new SimpleDateFormat(COMMANDLINE_DATE_PATTERNS[i]);
+            COMMANDLINE_DATE_FORMATS[i].setLenient(false);
         }
     }
 
+    /** {@link SimpleDateFormat} is not thread-safe, so each thread maintains its own instances */
+    private final static ThreadLocal<SimpleDateFormat[]> DATE_FORMATS = new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            final SimpleDateFormat[] formats = new SimpleDateFormat[COMMANDLINE_DATE_PATTERNS.length];
+            for (int i = 0; i < formats.length; i++) {
+                formats[i] = new SimpleDateFormat(COMMANDLINE_DATE_PATTERNS[i]);
+                formats[i].setLenient(false);
+            }
+            return formats;
+        }
+    };
+
     public static Calendar parseDate(final String arg) {
         final Calendar c = Calendar.getInstance();
+
+        // ISO 8601 and epoch timestamps
+        try {
+            c.setTimeInMillis(SliceParser.parseTimestamp(arg));
+            return c;
+        } catch (final IllegalArgumentException ignore) {
+        }
+
         final int year = c.get(Calendar.YEAR);
 
-        for (final SimpleDateFormat dateFormat : COMMANDLINE_DATE_FORMATS) {
+        for (final SimpleDateFormat dateFormat : DATE_FORMATS.get()) {
             try {
                 final Date d = dateFormat.parse(arg);
                 c.setTime(d);
@@ -3,13 +3,17 @@ package cltool4j.args4j;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Analyzes {@link Option} and {@link Argument} annotations in the class hierarchy. Called from
- * {@link CmdLineParser}.
+ * {@link CmdLineParser}. Classes indexed at compile-time (see {@link OptionIndexProcessor}) are analyzed
+ * using their index; others by reflecting over all declared fields and methods.
  * 
  * @author Jan Materne
  */
@@ -20,10 +24,15 @@ class ClassParser {
 
         final LinkedList<Class<?>> classHierarchy = new LinkedList<Class<?>>();
 
+        final Map<Class<?>, OptionIndex> indices = new HashMap<Class<?>, OptionIndex>();
+
         // Process arguments working up the class hierarchy
         for (Class<?> c = bean.getClass(); c != null; c = c.getSuperclass()) {
+            final OptionIndex index = OptionIndex.load(c);
+            indices.put(c, index);
+
             Argument argument;
-            for (final Method m : c.getDeclaredMethods()) {
+            for (final Method m : index != null ? index.methods : Arrays.asList(c.getDeclaredMethods())) {
                 // Skip Scala's auto-generated methods
                 if (m.getName().endsWith("$eq") || m.getParameterTypes().length == 0) {
                     continue;
@@ -35,7 +44,7 @@ class ClassParser {
                 }
             }
 
-            for (final Field f : c.getDeclaredFields()) {
+            for (final Field f : index != null ? index.fields : Arrays.asList(c.getDeclaredFields())) {
                 if ((argument = f.getAnnotation(Argument.class)) != null) {
                     parser.addArgument(createSetter(bean, parser, f), argument);
                 }
@@ -47,8 +56,9 @@ class ClassParser {
 
         // Process options working down from the top of the class hierarchy.
         for (final Class<?> c : classHierarchy) {
+            final OptionIndex index = indices.get(c);
             Option option;
-            for (final Method m : c.getDeclaredMethods()) {
+            for (final Method m : index != null ? index.methods : Arrays.asList(c.getDeclaredMethods())) {
                 // Skip Scala's auto-generated methods
                 if (m.getName().endsWith("$eq") || m.getParameterTypes().length == 0) {
                     continue;
@@ -59,7 +69,7 @@ class ClassParser {
                 }
             }
 
-            for (final Field f : c.getDeclaredFields()) {
+            for (final Field f : index != null ? index.fields : Arrays.asList(c.getDeclaredFields())) {
                 if ((option = getOption(bean, parser, f)) != null) {
                     parser.addOption(createSetter(bean, parser, f), option);
                 }
@@ -3,6 +3,7 @@ package cltool4j.args4j;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Maps aliases to {@link java.lang.Enum} values. This allows use of long (and descriptive) enumeration names
@@ -127,6 +128,15 @@ public final class EnumAliasMap {
         return sb.toString();
     }
 
+    /**
+     * @param enumClass Enumeration
+     * @return All aliases mapped for the specified {@link Enum} (including lowercased enumeration names), or
+     *         <code>null</code> if none are mapped
+     */
+    Map<String, Enum<?>> aliases(final Class<? extends Enum<?>> enumClass) {
+        return classToAliasMaps.get(enumClass);
+    }
+
     public Enum<?> forString(final Class<? extends Enum<?>> enumClass, final String alias) {
         final HashMap<String, Enum<?>> aliasMap = classToAliasMaps.get(enumClass);
         if (aliasMap == null) {
@@ -0,0 +1,90 @@
+package cltool4j.args4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link Option}- and {@link Argument}-annotated members declared by a single class, as recorded at
+ * compile-time by {@link OptionIndexProcessor}. When an index is present, {@link ClassParser} looks up only
+ * the annotated members, rather than reflecting over every field and method of the class (and reading their
+ * annotations). Classes compiled without the processor are parsed reflectively, as before.<br/>
+ * <br/>
+ * 
+ * The index is stored as a resource (<code>META-INF/cltool4j/options/</code> followed by the binary class
+ * name), one member per line, in declaration order: <code>field name</code> or
+ * <code>method name parameter-type</code> (parameter types as returned by {@link Class#getName()}).
+ */
+final class OptionIndex {
+
+    final static String RESOURCE_PREFIX = "META-INF/cltool4j/options/";
+
+    private final static Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+    static {
+        for (final Class<?> c : new Class<?>[] { boolean.class, byte.class, char.class, short.class, int.class,
+                long.class, float.class, double.class }) {
+            PRIMITIVES.put(c.getName(), c);
+        }
+    }
+
+    /** Annotated methods and fields, in declaration order */
+    final List<Method> methods = new ArrayList<Method>();
+    final List<Field> fields = new ArrayList<Field>();
+
+    private OptionIndex() {
+    }
+
+    /**
+     * @param c Class
+     * @return The index of annotated members declared by <code>c</code>, or <code>null</code> if <code>c</code>
+     *         was not indexed (or if the index does not match the class)
+     */
+    static OptionIndex load(final Class<?> c) {
+        final ClassLoader loader = c.getClassLoader();
+        if (loader == null) {
+            // A JDK class
+            return null;
+        }
+        final InputStream is = loader.getResourceAsStream(RESOURCE_PREFIX + c.getName());
+        if (is == null) {
+            return null;
+        }
+
+        final OptionIndex index = new OptionIndex();
+        try {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            try {
+                for (String line = br.readLine(); line != null; line = br.readLine()) {
+                    final String[] split = line.split(" ");
+                    if (split[0].equals("field") && split.length == 2) {
+                        index.fields.add(c.getDeclaredField(split[1]));
+                    } else if (split[0].equals("method") && split.length == 3) {
+                        index.methods.add(c.getDeclaredMethod(split[1], type(split[2], loader)));
+                    } else if (line.length() > 0) {
+                        return null;
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch (final IOException e) {
+            return null;
+        } catch (final ReflectiveOperationException e) {
+            // A stale index (e.g. from an earlier compilation); fall back to reflection
+            return null;
+        }
+        return index;
+    }
+
+    private static Class<?> type(final String name, final ClassLoader loader) throws ClassNotFoundException {
+        final Class<?> primitive = PRIMITIVES.get(name);
+        return primitive != null ? primitive : Class.forName(name, false, loader);
+    }
+}
@@ -0,0 +1,164 @@
+package cltool4j.args4j;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor recording the {@link Option}- and {@link Argument}-annotated members of each class at
+ * compile-time (see {@link OptionIndex}), so option parsing at startup need not reflect over every member of
+ * each class in a tool's hierarchy. An (empty) index is also written for classes without annotated members,
+ * so they can be skipped entirely.<br/>
+ * <br/>
+ * 
+ * The processor is not registered in <code>META-INF/services</code>, so compiling against cltool4j does not
+ * run it implicitly. Tools opt in with <code>javac -processor cltool4j.args4j.OptionIndexProcessor</code>
+ * (or the equivalent build-tool setting, e.g. Ant's <code>&lt;compilerarg&gt;</code> or Maven's
+ * <code>annotationProcessors</code>), with the cltool4j jar on the processor path.
+ */
+@SupportedAnnotationTypes("*")
+public class OptionIndexProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        for (final Element e : roundEnv.getRootElements()) {
+            if (e instanceof TypeElement) {
+                index((TypeElement) e);
+            }
+        }
+        // Other processors may also process these annotations
+        return false;
+    }
+
+    /**
+     * Writes the index of a class, and of its nested classes
+     */
+    private void index(final TypeElement type) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Element member : type.getEnclosedElements()) {
+            if (member.getAnnotation(Option.class) == null && member.getAnnotation(Argument.class) == null) {
+                if (member instanceof TypeElement) {
+                    index((TypeElement) member);
+                }
+                continue;
+            }
+
+            if (member.getKind() == ElementKind.FIELD) {
+                sb.append("field ").append(member.getSimpleName()).append('\n');
+            } else if (member.getKind() == ElementKind.METHOD) {
+                final List<? extends VariableElement> parameters = ((ExecutableElement) member).getParameters();
+                if (parameters.isEmpty()) {
+                    // Ignored by ClassParser
+                    continue;
+                } else if (parameters.size() > 1) {
+                    // Leave the class to reflection, which reports the error
+                    return;
+                }
+                final String parameterType = className(parameters.get(0).asType());
+                if (parameterType == null) {
+                    // Not representable in the index (e.g. a type variable); leave the class to reflection
+                    return;
+                }
+                sb.append("method ").append(member.getSimpleName()).append(' ').append(parameterType)
+                        .append('\n');
+            }
+        }
+
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        try {
+            final FileObject f = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    OptionIndex.RESOURCE_PREFIX + binaryName, type);
+            final Writer w = new OutputStreamWriter(f.openOutputStream(), "UTF-8");
+            try {
+                w.write(sb.toString());
+            } finally {
+                w.close();
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Unable to write option index for " + binaryName + ": " + e.getMessage(), type);
+        }
+    }
+
+    /**
+     * @return The erasure of the specified type, formatted as by {@link Class#getName()}, or <code>null</code>
+     *         if the type cannot be represented
+     */
+    private String className(final TypeMirror type) {
+        final TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+        switch (erasure.getKind()) {
+        case BOOLEAN:
+        case BYTE:
+        case CHAR:
+        case SHORT:
+        case INT:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+            return erasure.toString();
+
+        case DECLARED:
+            return processingEnv.getElementUtils()
+                    .getBinaryName((TypeElement) ((DeclaredType) erasure).asElement()).toString();
+
+        case ARRAY:
+            final String component = className(((ArrayType) erasure).getComponentType());
+            if (component == null) {
+                return null;
+            }
+            return "[" + (component.startsWith("[") ? component : descriptor(component));
+
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return The JVM descriptor of a (non-array) type, as used in array class names
+     */
+    private static String descriptor(final String className) {
+        switch (className) {
+        case "boolean":
+            return "Z";
+        case "byte":
+            return "B";
+        case "char":
+            return "C";
+        case "short":
+            return "S";
+        case "int":
+            return "I";
+        case "long":
+            return "J";
+        case "float":
+            return "F";
+        case "double":
+            return "D";
+        default:
+            return "L" + className + ";";
+        }
+    }
+}
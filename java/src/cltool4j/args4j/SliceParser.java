@@ -0,0 +1,622 @@
+package cltool4j.args4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses numbers, enumerations, and timestamps from ranges of a {@link CharSequence} (or of a byte array
+ * containing ASCII or UTF-8 text) without allocating intermediate {@link String}s. Record-processing tools
+ * can parse fields in place (e.g., using offsets from {@link cltool4j.FieldTokenizer}), instead of calling
+ * <code>Integer.parseInt(line.substring(...))</code>.<br/>
+ * <br/>
+ * 
+ * All methods are static and thread-safe. Malformed input is reported with a {@link NumberFormatException}
+ * (numbers) or an {@link IllegalArgumentException} (enumerations and timestamps); only those error paths
+ * allocate.<br/>
+ * <br/>
+ * 
+ * Supported timestamp formats:
+ * <ul>
+ * <li>ISO 8601: <code>yyyy-MM-dd</code>, optionally followed by 'T' (or a space) and <code>HH:mm</code>,
+ * <code>HH:mm:ss</code>, or <code>HH:mm:ss.SSS</code> (fractional seconds are truncated to milliseconds), and
+ * optionally by a zone designator (<code>Z</code>, <code>+HH</code>, <code>+HHmm</code>, or
+ * <code>+HH:mm</code>). Timestamps without a zone designator are interpreted in the default time zone.</li>
+ * <li>Epoch seconds (with optional fractional seconds), or epoch milliseconds, parsed with
+ * {@link #parseEpochSeconds(CharSequence, int, int)} and {@link #parseEpochMillis(CharSequence, int, int)}.
+ * {@link #parseTimestamp(CharSequence, int, int)} accepts epoch seconds with a leading '@' (as GNU
+ * <code>date</code> does).</li>
+ * </ul>
+ */
+public final class SliceParser {
+
+    private final static double[] POWERS_OF_10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final static long MILLIS_PER_MINUTE = 60 * 1000L;
+    private final static long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    /** Lowercased enumeration names and aliases, by enum class */
+    private final static Map<Class<?>, EnumLookup> enumLookups = new ConcurrentHashMap<Class<?>, EnumLookup>();
+
+    /** Per-thread state, so concurrent callers share neither the time zone nor the byte-array view */
+    private final static ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    private SliceParser() {
+    }
+
+    /**
+     * @param s Text to parse
+     * @return The parsed integer
+     * @throws NumberFormatException if <code>s</code> is not a decimal integer or is out of range
+     */
+    public static int parseInt(final CharSequence s) {
+        return parseInt(s, 0, s.length());
+    }
+
+    /**
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The integer parsed from the specified range
+     * @throws NumberFormatException if the range is not a decimal integer or is out of range
+     */
+    public static int parseInt(final CharSequence s, final int start, final int end) {
+        final long value = parseLong(s, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer overflow: " + s.subSequence(start, end));
+        }
+        return (int) value;
+    }
+
+    /**
+     * @param s Text to parse
+     * @return The parsed long
+     * @throws NumberFormatException if <code>s</code> is not a decimal integer or is out of range
+     */
+    public static long parseLong(final CharSequence s) {
+        return parseLong(s, 0, s.length());
+    }
+
+    /**
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The long parsed from the specified range
+     * @throws NumberFormatException if the range is not a decimal integer or is out of range
+     */
+    public static long parseLong(final CharSequence s, final int start, final int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number: \"" + s.subSequence(start, end) + "\"");
+        }
+
+        // Accumulate negatively, since the magnitude of Long.MIN_VALUE exceeds Long.MAX_VALUE
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+                throw new NumberFormatException("Not a number: \"" + s.subSequence(start, end) + "\"");
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * @param buf Source bytes (ASCII or UTF-8)
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The integer parsed from the specified range
+     * @throws NumberFormatException if the range is not a decimal integer or is out of range
+     */
+    public static int parseInt(final byte[] buf, final int start, final int end) {
+        final long value = parseLong(buf, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer overflow: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @param buf Source bytes (ASCII or UTF-8)
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The long parsed from the specified range
+     * @throws NumberFormatException if the range is not a decimal integer or is out of range
+     */
+    public static long parseLong(final byte[] buf, final int start, final int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number: \"" + ascii(buf, start, end) + "\"");
+        }
+
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+                throw new NumberFormatException("Not a number: \"" + ascii(buf, start, end) + "\"");
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * @param s Text to parse
+     * @return The parsed double
+     * @throws NumberFormatException if <code>s</code> is not a floating-point number
+     */
+    public static double parseDouble(final CharSequence s) {
+        return parseDouble(s, 0, s.length());
+    }
+
+    /**
+     * Parses a decimal floating-point number from a range of a {@link CharSequence}. Numbers with up to 15
+     * significant digits and a decimal exponent of at most 22 are parsed without allocation (and are
+     * correctly rounded, since both the mantissa and the power of 10 are exactly representable as doubles).
+     * Anything else (more digits, larger exponents, 'NaN', 'Infinity', hexadecimal notation, etc.) is
+     * delegated to {@link Double#parseDouble(String)}.
+     * 
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The double parsed from the specified range
+     * @throws NumberFormatException if the range is not a floating-point number
+     */
+    public static double parseDouble(final CharSequence s, final int start, final int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean digits = false, decimalPoint = false;
+
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++significantDigits > 15) {
+                        return Double.parseDouble(s.subSequence(start, end).toString());
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (decimalPoint) {
+                    exponent--;
+                }
+            } else if (c == '.' && !decimalPoint) {
+                decimalPoint = true;
+            } else if ((c == 'e' || c == 'E') && digits) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                    negativeExponent = s.charAt(i) == '-';
+                    i++;
+                }
+                if (i == end || end - i > 4) {
+                    return Double.parseDouble(s.subSequence(start, end).toString());
+                }
+                int explicitExponent = 0;
+                for (; i < end; i++) {
+                    final int digit = s.charAt(i) - '0';
+                    if (digit < 0 || digit > 9) {
+                        return Double.parseDouble(s.subSequence(start, end).toString());
+                    }
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+                exponent += negativeExponent ? -explicitExponent : explicitExponent;
+                break;
+            } else {
+                return Double.parseDouble(s.subSequence(start, end).toString());
+            }
+        }
+
+        if (!digits) {
+            // Let Double handle (and reject) it
+            return Double.parseDouble(s.subSequence(start, end).toString());
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_10.length) {
+            value = mantissa * POWERS_OF_10[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_10.length) {
+            value = mantissa / POWERS_OF_10[-exponent];
+        } else {
+            return Double.parseDouble(s.subSequence(start, end).toString());
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param buf Source bytes (ASCII or UTF-8)
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The double parsed from the specified range
+     * @throws NumberFormatException if the range is not a floating-point number
+     */
+    public static double parseDouble(final byte[] buf, final int start, final int end) {
+        final ByteSlice slice = threadState.get().byteSlice;
+        try {
+            return parseDouble(slice.set(buf, start, end), 0, end - start);
+        } finally {
+            slice.clear();
+        }
+    }
+
+    /**
+     * Parses an enumeration value case-insensitively, by name or by any alias registered with
+     * {@link EnumAliasMap}. Unlike {@link EnumParser}, this method does not attempt the enum's
+     * <code>forString()</code> method.
+     * 
+     * @param enumClass Enumeration class
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return The matching enumeration value
+     * @throws IllegalArgumentException if no value or alias matches
+     */
+    public static <E extends Enum<E>> E parseEnum(final Class<E> enumClass, final CharSequence s,
+            final int start, final int end) {
+        EnumLookup lookup = enumLookups.get(enumClass);
+        if (lookup == null) {
+            lookup = new EnumLookup(enumClass);
+            enumLookups.put(enumClass, lookup);
+        }
+
+        final E value = enumClass.cast(lookup.get(s, start, end));
+        if (value == null) {
+            throw new IllegalArgumentException("No " + enumClass.getSimpleName() + " matches \""
+                    + s.subSequence(start, end) + "\"");
+        }
+        return value;
+    }
+
+    /**
+     * @param enumClass Enumeration class
+     * @param s Text to parse
+     * @return The matching enumeration value
+     * @throws IllegalArgumentException if no value or alias matches
+     */
+    public static <E extends Enum<E>> E parseEnum(final Class<E> enumClass, final CharSequence s) {
+        return parseEnum(enumClass, s, 0, s.length());
+    }
+
+    /**
+     * Parses a timestamp in ISO 8601 format, or epoch seconds preceded by '@'.
+     * 
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return Milliseconds since the epoch
+     * @throws IllegalArgumentException if the range is not a supported timestamp
+     */
+    public static long parseTimestamp(final CharSequence s, final int start, final int end) {
+        if (start < end && s.charAt(start) == '@') {
+            return parseEpochSeconds(s, start + 1, end);
+        }
+        return parseIsoTimestamp(s, start, end);
+    }
+
+    /**
+     * @param s Text to parse
+     * @return Milliseconds since the epoch
+     * @throws IllegalArgumentException if <code>s</code> is not a supported timestamp
+     */
+    public static long parseTimestamp(final CharSequence s) {
+        return parseTimestamp(s, 0, s.length());
+    }
+
+    /**
+     * @param buf Source bytes (ASCII or UTF-8)
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return Milliseconds since the epoch
+     * @throws IllegalArgumentException if the range is not a supported timestamp
+     */
+    public static long parseTimestamp(final byte[] buf, final int start, final int end) {
+        final ByteSlice slice = threadState.get().byteSlice;
+        try {
+            return parseTimestamp(slice.set(buf, start, end), 0, end - start);
+        } finally {
+            slice.clear();
+        }
+    }
+
+    /**
+     * Parses an ISO 8601 timestamp (see class documentation for the supported forms)
+     * 
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return Milliseconds since the epoch
+     * @throws IllegalArgumentException if the range is not an ISO 8601 timestamp
+     */
+    public static long parseIsoTimestamp(final CharSequence s, final int start, final int end) {
+        // yyyy-MM-dd
+        if (end - start < 10 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-') {
+            throw illegalTimestamp(s, start, end);
+        }
+        final int year = digits(s, start, 4);
+        final int month = digits(s, start + 5, 2);
+        final int day = digits(s, start + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw illegalTimestamp(s, start, end);
+        }
+
+        long millis = daysSinceEpoch(year, month, day) * MILLIS_PER_DAY;
+        int i = start + 10;
+
+        // Optional time: 'T' or ' ', followed by HH:mm[:ss[.SSS]]
+        if (i < end && (s.charAt(i) == 'T' || s.charAt(i) == 't' || s.charAt(i) == ' ')) {
+            if (end - i < 6 || s.charAt(i + 3) != ':') {
+                throw illegalTimestamp(s, start, end);
+            }
+            final int hour = digits(s, i + 1, 2);
+            final int minute = digits(s, i + 4, 2);
+            int second = 0;
+            i += 6;
+            if (i < end && s.charAt(i) == ':') {
+                second = digits(s, i + 1, end - i > 2 ? 2 : 0);
+                i += 3;
+            }
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+                throw illegalTimestamp(s, start, end);
+            }
+            millis += ((hour * 60L + minute) * 60 + second) * 1000;
+
+            // Fractional seconds, truncated to milliseconds
+            if (i < end && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+                int scale = 100;
+                for (i++; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++) {
+                    millis += (s.charAt(i) - '0') * scale;
+                    scale /= 10;
+                }
+            }
+        }
+
+        if (i == end) {
+            // Local time
+            final TimeZone timeZone = threadState.get().timeZone;
+            final int offset = timeZone.getOffset(millis - timeZone.getRawOffset());
+            return millis - timeZone.getOffset(millis - offset);
+        }
+
+        // Zone designator
+        final char zone = s.charAt(i);
+        if ((zone == 'Z' || zone == 'z') && i + 1 == end) {
+            return millis;
+        }
+        if (zone != '+' && zone != '-') {
+            throw illegalTimestamp(s, start, end);
+        }
+        final int hours = digits(s, i + 1, end - i > 2 ? 2 : 0);
+        int minutes = 0;
+        i += 3;
+        if (i < end && s.charAt(i) == ':') {
+            i++;
+        }
+        if (i < end) {
+            minutes = digits(s, i, end - i == 2 ? 2 : 0);
+            i += 2;
+        }
+        if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59 || i != end) {
+            throw illegalTimestamp(s, start, end);
+        }
+        final long offset = (hours * 60L + minutes) * MILLIS_PER_MINUTE;
+        return zone == '+' ? millis - offset : millis + offset;
+    }
+
+    /**
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return Milliseconds since the epoch, parsed from a (possibly fractional) number of seconds since the
+     *         epoch
+     * @throws NumberFormatException if the range is not a number
+     */
+    public static long parseEpochSeconds(final CharSequence s, final int start, final int end) {
+        int dot = start;
+        while (dot < end && s.charAt(dot) != '.') {
+            dot++;
+        }
+        long millis = parseLong(s, start, dot) * 1000;
+
+        // Fractional seconds, truncated to milliseconds (and signed like the integral part)
+        int fraction = 0, scale = 100;
+        for (int i = dot + 1; i < end; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: \"" + s.subSequence(start, end) + "\"");
+            }
+            fraction += digit * scale;
+            scale /= 10;
+        }
+        return s.charAt(start) == '-' ? millis - fraction : millis + fraction;
+    }
+
+    /**
+     * @param s Source text
+     * @param start Start offset
+     * @param end End offset (exclusive)
+     * @return Milliseconds since the epoch
+     * @throws NumberFormatException if the range is not an integer
+     */
+    public static long parseEpochMillis(final CharSequence s, final int start, final int end) {
+        return parseLong(s, start, end);
+    }
+
+    /**
+     * @return The non-negative integer represented by <code>length</code> digits, or -1 if any is not a digit
+     */
+    private static int digits(final CharSequence s, final int start, final int length) {
+        if (length == 0) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(final int year, final int month) {
+        switch (month) {
+        case 2:
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return Days since 1970-01-01 in the proleptic Gregorian calendar
+     */
+    private static long daysSinceEpoch(int year, final int month, final int day) {
+        // Count years from March, so the leap day falls at the end of the year
+        if (month <= 2) {
+            year--;
+        }
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static IllegalArgumentException illegalTimestamp(final CharSequence s, final int start,
+            final int end) {
+        return new IllegalArgumentException("Illegal timestamp: \"" + s.subSequence(start, end) + "\"");
+    }
+
+    private static String ascii(final byte[] buf, final int start, final int end) {
+        return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Enumeration names and aliases, lowercased, for case-insensitive matching without allocation
+     */
+    private final static class EnumLookup {
+        private final char[][] keys;
+        private final Enum<?>[] values;
+
+        EnumLookup(final Class<? extends Enum<?>> enumClass) {
+            final Enum<?>[] constants = enumClass.getEnumConstants();
+            final Map<String, Enum<?>> aliases = EnumAliasMap.singleton().aliases(enumClass);
+            final int size = constants.length + (aliases != null ? aliases.size() : 0);
+
+            keys = new char[size][];
+            values = new Enum<?>[size];
+            int i = 0;
+            for (final Enum<?> e : constants) {
+                keys[i] = e.name().toLowerCase(Locale.ROOT).toCharArray();
+                values[i++] = e;
+            }
+            if (aliases != null) {
+                for (final Map.Entry<String, Enum<?>> entry : aliases.entrySet()) {
+                    keys[i] = entry.getKey().toLowerCase(Locale.ROOT).toCharArray();
+                    values[i++] = entry.getValue();
+                }
+            }
+        }
+
+        Enum<?> get(final CharSequence s, final int start, final int end) {
+            final int length = end - start;
+            for (int k = 0; k < keys.length; k++) {
+                final char[] key = keys[k];
+                if (key.length != length) {
+                    continue;
+                }
+                int i = 0;
+                while (i < length && Character.toLowerCase(s.charAt(start + i)) == key[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return values[k];
+                }
+            }
+            return null;
+        }
+    }
+
+    private final static class ThreadState {
+        final TimeZone timeZone = TimeZone.getDefault();
+        final ByteSlice byteSlice = new ByteSlice();
+    }
+
+    /**
+     * A reusable view of a range of bytes, decoded as ISO-8859-1 (which suffices for the ASCII digits,
+     * signs, and separators of numbers and timestamps)
+     */
+    private final static class ByteSlice implements CharSequence {
+        private byte[] buf;
+        private int start;
+        private int end;
+
+        ByteSlice set(final byte[] newBuf, final int newStart, final int newEnd) {
+            this.buf = newBuf;
+            this.start = newStart;
+            this.end = newEnd;
+            return this;
+        }
+
+        void clear() {
+            this.buf = null;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (buf[start + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(final int subStart, final int subEnd) {
+            return new String(buf, start + subStart, subEnd - subStart, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
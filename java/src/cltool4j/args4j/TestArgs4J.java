@@ -7,13 +7,21 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.StringWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
 import org.junit.Test;
 
 /**
@@ -368,6 +376,86 @@ public class TestArgs4J {
         }
     }
 
+    /**
+     * Compiles a bean class with {@link OptionIndexProcessor}, and verifies that it is parsed using the
+     * resulting index, with the same results as reflective parsing
+     */
+    @Test
+    public void testOptionIndex() throws Exception {
+        final File dir = Files.createTempDirectory("option-index").toFile();
+        try {
+            final File source = new File(dir, "IndexedBean.java");
+            final String nl = System.getProperty("line.separator");
+            Files.write(source.toPath(), ("import cltool4j.args4j.*;" + nl //
+                    + "public class IndexedBean {" + nl //
+                    + "    @Option(name = \"-int\", usage = \"Integer\") public int i = 2;" + nl //
+                    + "    public int unannotated;" + nl //
+                    + "    @Option(name = \"-strings\") public java.util.List<String> strings;" + nl //
+                    + "    @Option(name = \"-long\") public void setLong(long l) { this.l = l; }" + nl //
+                    + "    public long l;" + nl //
+                    + "    @Argument(metaVar = \"files\", multiValued = true) public String[] files;" + nl //
+                    + "    public static class Nested {" + nl //
+                    + "        @Option(name = \"-b\") public boolean b;" + nl //
+                    + "    }" + nl //
+                    + "}" + nl).getBytes());
+
+            final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            assertEquals(0, compiler.run(null, null, null, "-processor", OptionIndexProcessor.class.getName(),
+                    "-classpath", System.getProperty("java.class.path"), "-d", dir.getPath(),
+                    source.getPath()));
+
+            final File index = new File(dir, OptionIndex.RESOURCE_PREFIX + "IndexedBean");
+            assertEquals("field i\nfield strings\nmethod setLong long\nfield files\n",
+                    new String(Files.readAllBytes(index.toPath()), "UTF-8"));
+            assertEquals("field b\n", new String(Files.readAllBytes(new File(dir, OptionIndex.RESOURCE_PREFIX
+                    + "IndexedBean$Nested").toPath()), "UTF-8"));
+
+            final URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, getClass()
+                    .getClassLoader());
+            try {
+                final Class<?> c = loader.loadClass("IndexedBean");
+                assertEquals(4, OptionIndex.load(c).fields.size() + OptionIndex.load(c).methods.size());
+                final String indexed = parseIndexedBean(c);
+
+                // And without the index
+                assertTrue(index.delete());
+                assertEquals(null, OptionIndex.load(c));
+                assertEquals(indexed, parseIndexedBean(c));
+            } finally {
+                loader.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory and its contents
+     */
+    private static void delete(final File f) {
+        final File[] children = f.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private String parseIndexedBean(final Class<?> c) throws Exception {
+        final Object bean = c.newInstance();
+        final CmdLineParser parser = new CmdLineParser(bean);
+        parser.parseArguments("-int", "3", "-strings", "a", "-strings", "b", "-long", "4", "f1", "f2");
+        assertEquals(3, c.getField("i").get(bean));
+        assertEquals(4L, c.getField("l").get(bean));
+        assertEquals(java.util.Arrays.asList("a", "b"), c.getField("strings").get(bean));
+        assertEquals(2, ((String[]) c.getField("files").get(bean)).length);
+
+        final StringWriter usage = new StringWriter();
+        new CmdLineParser(c.newInstance()).printUsage(usage, true);
+        return usage.toString();
+    }
+
     @Test
     public void testRequiredResource() throws CmdLineException {
 
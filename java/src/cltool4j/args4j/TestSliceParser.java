@@ -0,0 +1,186 @@
+package cltool4j.args4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SliceParser} and {@link CalendarParser}
+ */
+public class TestSliceParser {
+
+    @Test
+    public void testIntegers() {
+        assertEquals(42, SliceParser.parseInt("x42y", 1, 3));
+        assertEquals(-17, SliceParser.parseInt("-17"));
+        assertEquals(Integer.MIN_VALUE, SliceParser.parseInt(Integer.toString(Integer.MIN_VALUE)));
+        assertEquals(Long.MAX_VALUE, SliceParser.parseLong(Long.toString(Long.MAX_VALUE)));
+        assertEquals(Long.MIN_VALUE, SliceParser.parseLong(Long.toString(Long.MIN_VALUE)));
+
+        final byte[] bytes = "a\t-123\t4567".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-123, SliceParser.parseInt(bytes, 2, 6));
+        assertEquals(4567L, SliceParser.parseLong(bytes, 7, 11));
+
+        for (final String illegal : new String[] { "", "-", "1x", "2147483648", "9223372036854775808" }) {
+            try {
+                SliceParser.parseInt(illegal);
+                fail("Expected NumberFormatException for \"" + illegal + "\"");
+            } catch (final NumberFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        for (final String s : new String[] { "0", "-0.0", "3.25", "0.1", "1e10", "-1.5E-3", "123456789012345",
+                "1234567890.123456789", "1e300", "4.9e-324", "NaN", "-Infinity", ".5", "5." }) {
+            assertEquals(s, Double.parseDouble(s), SliceParser.parseDouble(s), 0);
+        }
+        assertEquals(2.5, SliceParser.parseDouble("2.5".getBytes(StandardCharsets.US_ASCII), 0, 3), 0);
+
+        for (final String illegal : new String[] { "", "-", "1.2.3", "e5", "1x" }) {
+            try {
+                SliceParser.parseDouble(illegal);
+                fail("Expected NumberFormatException for \"" + illegal + "\"");
+            } catch (final NumberFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testEnums() {
+        assertSame(Color.Red, SliceParser.parseEnum(Color.class, "red"));
+        assertSame(Color.Green, SliceParser.parseEnum(Color.class, "x,GREEN,y", 2, 7));
+        assertSame(Color.Green, SliceParser.parseEnum(Color.class, "g"));
+        assertSame(Color.Blue, SliceParser.parseEnum(Color.class, "Azure"));
+
+        try {
+            SliceParser.parseEnum(Color.class, "purple");
+            fail("Expected IllegalArgumentException");
+        } catch (final IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Verifies that enum lookup does not depend on the default locale (in Turkish, 'I' lower-cases to a
+     * dotless 'i')
+     */
+    @Test
+    public void testEnumLocale() {
+        final Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertSame(Severity.INFO, SliceParser.parseEnum(Severity.class, "info"));
+            assertSame(Severity.WARNING, SliceParser.parseEnum(Severity.class, "Warning"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void testIsoTimestamps() {
+        assertEquals(1228089600000L, SliceParser.parseTimestamp("2008-12-01Z"));
+        assertEquals(1228134896000L, SliceParser.parseTimestamp("2008-12-01T12:34:56Z"));
+        assertEquals(1228134896789L, SliceParser.parseTimestamp("2008-12-01T12:34:56.789123Z"));
+        assertEquals(1228134840000L, SliceParser.parseTimestamp("2008-12-01 12:34Z"));
+        assertEquals(1228134896000L, SliceParser.parseTimestamp("2008-12-01T07:34:56-05:00"));
+        assertEquals(1228134896000L, SliceParser.parseTimestamp("2008-12-01T18:04:56+0530"));
+        assertEquals(1228134896000L, SliceParser.parseTimestamp("2008-12-01T14:34:56+02"));
+        assertEquals(951782400000L, SliceParser.parseTimestamp("2000-02-29T00:00:00Z"));
+        assertEquals(-86400000L, SliceParser.parseTimestamp("1969-12-31Z"));
+
+        // Local time
+        final TimeZone timeZone = TimeZone.getDefault();
+        final long utc = SliceParser.parseTimestamp("2008-07-01T12:00:00Z");
+        assertEquals(utc - timeZone.getOffset(utc), SliceParser.parseTimestamp("2008-07-01T12:00:00"));
+
+        // Byte ranges
+        final byte[] bytes = "\t2008-12-01T12:34:56Z\t".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(1228134896000L, SliceParser.parseTimestamp(bytes, 1, bytes.length - 1));
+
+        for (final String illegal : new String[] { "2008-12-01T", "2008-13-01", "2001-02-29",
+                "2008-12-01T24:00", "2008-12-01T12:34:56+5", "2008-12-01T12:34:56X", "2008/12/01",
+                "123456" }) {
+            try {
+                SliceParser.parseTimestamp(illegal);
+                fail("Expected IllegalArgumentException for \"" + illegal + "\"");
+            } catch (final IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testEpochTimestamps() {
+        assertEquals(1228134896000L, SliceParser.parseTimestamp("@1228134896"));
+        assertEquals(1228134896500L, SliceParser.parseEpochSeconds("1228134896.5", 0, 12));
+        assertEquals(-1500L, SliceParser.parseEpochSeconds("-1.5", 0, 4));
+        assertEquals(1228134896789L, SliceParser.parseEpochMillis("1228134896789", 0, 13));
+    }
+
+    /**
+     * Parses dates concurrently from several threads, which would intermittently fail or return incorrect
+     * values with shared {@link java.text.SimpleDateFormat} instances.
+     * 
+     * @throws Exception if a parse fails
+     */
+    @Test
+    public void testConcurrentCalendarParsing() throws Exception {
+        final String[] dates = new String[] { "2008.12.01", "12/01/2008", "2011-03-04", "03.04.2011 10:15" };
+        final long[] expected = new long[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            expected[i] = CalendarParser.parseDate(dates[i]).getTimeInMillis();
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 2000; j++) {
+                            final int i = j % dates.length;
+                            assertEquals(dates[i], expected[i], CalendarParser.parseDate(dates[i])
+                                    .getTimeInMillis());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                assertNull(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final Calendar c = CalendarParser.parseDate("2008-12-01T12:34:56Z");
+        assertEquals(1228134896000L, c.getTimeInMillis());
+    }
+
+    private enum Severity {
+        INFO, WARNING;
+    }
+
+    private enum Color {
+        Red, Green("g"), Blue("azure");
+
+        private Color(final String... aliases) {
+            EnumAliasMap.singleton().addAliases(this, aliases);
+        }
+    }
+}